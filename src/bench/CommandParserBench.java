@@ -0,0 +1,211 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import server.CommandParser;
+
+/**
+ *
+ * Compares CommandParser with the split(" ") and string concatenation that
+ * ServerThread.process() used before it. First checks, over many random
+ * commands, that both find the same words and message text; then measures
+ * the time and bytes allocated per command for each, using the JVM's
+ * per-thread allocation counter.
+ *
+ * Usage: java bench.CommandParserBench [words per broadcast] [iterations]
+ *
+ */
+public class CommandParserBench {
+	private static final int CHECKED_COMMANDS = 100000;
+
+	public static void main(String[] args) {
+		int words = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+		checkEquivalence();
+
+		StringBuilder broadcast = new StringBuilder("broadcast");
+		for (int i = 0; i < words; i++) {
+			broadcast.append(" word").append(i);
+		}
+		String[] commands = {
+				broadcast.toString(),
+				"message alice " + broadcast.substring(10),
+				"whoelse",
+				"block bob" };
+
+		CommandParser parser = new CommandParser();
+		// Warm both up before measuring either.
+		for (int round = 0; round < 2; round++) {
+			boolean report = round == 1;
+			run("legacy split", commands, iterations, report, new Parse() {
+				public int parse(String command) {
+					return legacyMessage(command).length();
+				}
+			});
+			run("CommandParser", commands, iterations, report,
+					new Parse() {
+						public int parse(String command) {
+							return parserMessage(parser, command).length();
+						}
+					});
+		}
+	}
+
+	private interface Parse {
+		int parse(String command);
+	}
+
+	private static void run(
+			String name,
+			String[] commands,
+			int iterations,
+			boolean report,
+			Parse parse) {
+		long sink = 0;
+		long bytesBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			sink += parse.parse(commands[i % commands.length]);
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - bytesBefore;
+		if (report) {
+			System.out.printf("%-14s %10.1f ns/op %10.1f bytes/op (%d)%n",
+					name,
+					(double) nanos / iterations,
+					(double) bytes / iterations,
+					sink);
+		}
+	}
+
+	/**
+	 * @return Bytes allocated so far by the calling thread, or 0 if the JVM
+	 * does not count them.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads =
+				ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0L;
+	}
+
+	/**
+	 * Does the work the old ServerThread.process() did to find a command's
+	 * message text.
+	 */
+	private static String legacyMessage(String command) {
+		String[] inputArray = command.split(" ");
+		if (inputArray.length < 2) {
+			return "";
+		} else if (inputArray.length == 2) {
+			return inputArray[1];
+		}
+		String message = "";
+		int from = inputArray[0].equals("message") ? 2 : 1;
+		for (int i = from; i < inputArray.length; i++) {
+			message += inputArray[i] + " ";
+		}
+		return message.substring(0, message.length() - 1);
+	}
+
+	/**
+	 * Does the same work with parser.
+	 */
+	private static String parserMessage(CommandParser parser, String command) {
+		parser.parse(command);
+		int words = parser.getWordCount();
+		if (words < 2) {
+			return "";
+		} else if (words == 2) {
+			return parser.getArgument();
+		} else if (parser.commandIs("message")) {
+			return parser.getTextAfterArgument();
+		}
+		return parser.getTextAfterCommand();
+	}
+
+	/**
+	 * Parses command as ServerThread.process() used to, and describes what
+	 * it found.
+	 */
+	private static String legacy(String command) {
+		String[] inputArray = command.split(" ");
+		if (inputArray.length <= 1) {
+			return inputArray.length + "|"
+					+ (inputArray.length == 1 ? inputArray[0] : "");
+		} else if (inputArray.length == 2) {
+			return "2|" + inputArray[0] + "|" + inputArray[1];
+		}
+		String message = "";
+		int from = inputArray[0].equals("message") ? 2 : 1;
+		for (int i = from; i < inputArray.length; i++) {
+			message += inputArray[i] + " ";
+		}
+		message = message.substring(0, message.length() - 1);
+		return "n|" + inputArray[0] + "|"
+				+ (from == 2 ? inputArray[1] + "|" : "") + message;
+	}
+
+	/**
+	 * Parses command with parser, and describes what it found in the same
+	 * form as legacy().
+	 */
+	private static String parse(CommandParser parser, String command) {
+		parser.parse(command);
+		int words = parser.getWordCount();
+		if (words <= 1) {
+			return words + "|" + (words == 1 ? firstWord(command) : "");
+		} else if (words == 2) {
+			return "2|" + firstWord(command) + "|" + parser.getArgument();
+		}
+		if (parser.commandIs("message")) {
+			return "n|message|" + parser.getArgument() + "|"
+					+ parser.getTextAfterArgument();
+		}
+		return "n|" + firstWord(command) + "|" + parser.getTextAfterCommand();
+	}
+
+	private static String firstWord(String command) {
+		int space = command.indexOf(' ');
+		return space < 0 ? command : command.substring(0, space);
+	}
+
+	/**
+	 * Checks that CommandParser agrees with split(" ") on random commands
+	 * made of a few words and runs of spaces.
+	 */
+	private static void checkEquivalence() {
+		String[] vocabulary = { "message", "broadcast", "block", "whoelse",
+				"alice", "x", "", " ", "  " };
+		Random random = new Random(1);
+		CommandParser parser = new CommandParser();
+		for (int i = 0; i < CHECKED_COMMANDS; i++) {
+			StringBuilder command = new StringBuilder();
+			int parts = random.nextInt(6);
+			for (int j = 0; j < parts; j++) {
+				if (j > 0) {
+					command.append(' ');
+				}
+				command.append(vocabulary[random.nextInt(vocabulary.length)]);
+			}
+			String input = command.toString();
+			String[] split = input.split(" ");
+			parser.parse(input);
+			// A command of only spaces has no words; split() agrees, but
+			// the old process() then failed on inputArray[0].
+			if (split.length != parser.getWordCount()
+					|| (split.length > 0 && (!parser.commandIs(split[0])
+							|| !legacy(input).equals(parse(parser, input))))) {
+				throw new IllegalStateException("CommandParser disagrees "
+						+ "with split(\" \") on '" + input + "'");
+			}
+		}
+		System.out.println("CommandParser agrees with split(\" \") on "
+				+ CHECKED_COMMANDS + " random commands.");
+	}
+}
@@ -0,0 +1,186 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ * Measures the throughput and average latency of an operation run by a
+ * number of threads at once, in the manner of JMH: every thread runs the
+ * operation in a loop, first for a warmup period whose results are thrown
+ * away, then for a measured period. Each result the operation returns is
+ * added to a sink that is printed, so that the JIT cannot remove the work
+ * as dead code.
+ *
+ * Bytes allocated per operation are reported too, from the JVM's
+ * per-thread allocation counters, where the JVM provides them.
+ *
+ */
+public class Harness {
+	private final long warmupMillis;
+	private final long measureMillis;
+
+	/**
+	 * Operation to be measured.
+	 */
+	public interface Operation {
+
+		/**
+		 * Runs the operation once.
+		 *
+		 * @param thread Index of the calling thread, from 0.
+		 *
+		 * @param iteration Number of times the calling thread has run the
+		 * operation before.
+		 *
+		 * @return Any value that depends on the work done.
+		 */
+		long run(int thread, long iteration) throws Exception;
+	}
+
+	/**
+	 * @param warmupMillis Time each measurement spends warming up.
+	 *
+	 * @param measureMillis Time each measurement is taken over.
+	 */
+	public Harness(long warmupMillis, long measureMillis) {
+		this.warmupMillis = warmupMillis;
+		this.measureMillis = measureMillis;
+	}
+
+	/**
+	 * Runs operation on threads threads, and prints a line of results.
+	 *
+	 * @param name Name of the benchmark.
+	 *
+	 * @param params Parameters the operation was set up with, printed
+	 * with the results.
+	 *
+	 * @param threads Number of threads to run the operation on at once.
+	 *
+	 * @param operation Operation to measure.
+	 */
+	public void run(
+			String name,
+			String params,
+			int threads,
+			Operation operation) throws InterruptedException {
+		Worker[] workers = new Worker[threads];
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(i, operation, ready, start);
+			workers[i].start();
+		}
+		ready.await();
+		start.countDown();
+
+		Thread.sleep(warmupMillis);
+		for (Worker worker : workers) {
+			worker.mark();
+		}
+		long begin = System.nanoTime();
+		Thread.sleep(measureMillis);
+		for (Worker worker : workers) {
+			worker.finish();
+		}
+		long elapsed = System.nanoTime() - begin;
+
+		long operations = 0;
+		long bytes = 0;
+		long sink = 0;
+		for (Worker worker : workers) {
+			worker.join();
+			if (worker.failure != null) {
+				throw new IllegalStateException(name + " failed.",
+						worker.failure);
+			}
+			operations += worker.measuredOperations;
+			bytes += worker.measuredBytes;
+			sink += worker.sink;
+		}
+		if (operations == 0) {
+			operations = 1;
+		}
+		System.out.printf("%-18s %-26s %3d thread(s) %14.0f ops/s "
+				+ "%12.1f ns/op %10.1f B/op (%d)%n",
+				name,
+				params,
+				threads,
+				operations * 1e9 / elapsed,
+				(double) elapsed * threads / operations,
+				(double) bytes / operations,
+				sink & 0xff);
+	}
+
+	/**
+	 * @return Bytes allocated so far by the calling thread, or 0 if the JVM
+	 * does not count them.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads =
+				ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0L;
+	}
+
+	/**
+	 * Thread that runs the operation until it is finished, counting the
+	 * operations and bytes allocated from the moment it is marked.
+	 */
+	private static final class Worker extends Thread {
+		private final int index;
+		private final Operation operation;
+		private final CountDownLatch ready;
+		private final CountDownLatch start;
+		private volatile boolean marked = false;
+		private volatile boolean finished = false;
+		private long measuredOperations;
+		private long measuredBytes;
+		private long sink;
+		private Throwable failure;
+
+		Worker(
+				int index,
+				Operation operation,
+				CountDownLatch ready,
+				CountDownLatch start) {
+			super("Harness-" + index);
+			this.index = index;
+			this.operation = operation;
+			this.ready = ready;
+			this.start = start;
+		}
+
+		void mark() {
+			marked = true;
+		}
+
+		void finish() {
+			finished = true;
+		}
+
+		public void run() {
+			try {
+				ready.countDown();
+				start.await();
+				long iteration = 0;
+				while (!marked) {
+					sink += operation.run(index, iteration++);
+				}
+				long firstOperation = iteration;
+				long firstBytes = allocatedBytes();
+				while (!finished) {
+					sink += operation.run(index, iteration++);
+				}
+				measuredBytes = allocatedBytes() - firstBytes;
+				measuredOperations = iteration - firstOperation;
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+	}
+}
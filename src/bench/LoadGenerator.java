@@ -0,0 +1,610 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import server.LatencyHistogram;
+import server.LatencySummary;
+
+/**
+ *
+ * Headless load generator. Logs thousands of simulated clients in to a
+ * running Server over loopback, all driven by one selector thread, then
+ * has them send a scripted mix of message, broadcast and whoelse commands
+ * at a fixed rate, and reports:
+ *
+ * - commands sent and messages delivered per second;
+ * - end-to-end delivery latency percentiles, from the moment a command is
+ *   written to the moment each recipient reads the message;
+ * - messages that were lost, or delivered more than once.
+ *
+ * Each message carries a unique id and the time it was sent. The generator
+ * knows how many recipients each id should reach, and counts the copies
+ * that arrive, so any shortfall or excess is found once traffic has
+ * drained.
+ *
+ * The clients log in with the first --SESSIONS username and password pairs
+ * of --USERS_FILE, which must be the server's user_pass.txt or a subset of
+ * it. --GENERATE_USERS=n prints n pairs to add to user_pass.txt.
+ *
+ * Usage: java bench.LoadGenerator <port> [--SESSIONS=1000] [--RATE=1000]
+ * [--DURATION=30] [--DRAIN=5] [--MIX=message:90,broadcast:5,whoelse:5]
+ * [--MESSAGE_SIZE=64] [--USERS_FILE=user_pass.txt] [--HOST=127.0.0.1]
+ *
+ * Thousands of sessions need as many file descriptors, on both the server
+ * and the generator; raise ulimit -n to match.
+ *
+ */
+public class LoadGenerator {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	// Sessions logging in at once, so that the server's accept backlog is
+	// never overrun.
+	private static final int LOGIN_CONCURRENCY = 200;
+	private static final long LOGIN_TIMEOUT_NANOS = 120000000000L;
+	private static final long REPORT_NANOS = 1000000000L;
+	private static final String MARK = ": #";
+
+	private enum State { USERNAME, PASSWORD, WELCOME, READY, CLOSED }
+
+	private final InetSocketAddress address;
+	private final List<String[]> credentials;
+	private final int rate;
+	private final long durationNanos;
+	private final long drainNanos;
+	private final String[] commands;
+	private final int[] weights;
+	private final int messageSize;
+
+	private final Selector selector;
+	private final Random random = new Random(1);
+	private final ArrayList<Session> ready = new ArrayList<Session>();
+	private final Tracker tracker = new Tracker();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private int connecting = 0;
+	private int loggedIn = 0;
+	private long sent = 0;
+	private long delivered = 0;
+	private long refused = 0;
+	private long disconnected = 0;
+	private String failure;
+
+	private LoadGenerator(
+			InetSocketAddress address,
+			List<String[]> credentials,
+			int rate,
+			long durationNanos,
+			long drainNanos,
+			String mix,
+			int messageSize) throws IOException {
+		this.address = address;
+		this.credentials = credentials;
+		this.rate = rate;
+		this.durationNanos = durationNanos;
+		this.drainNanos = drainNanos;
+		this.messageSize = messageSize;
+		this.selector = Selector.open();
+
+		String[] parts = mix.split(",");
+		this.commands = new String[parts.length];
+		this.weights = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			String[] part = parts[i].split(":");
+			commands[i] = part[0].trim();
+			weights[i] = part.length > 1 ? Integer.parseInt(part[1].trim()) : 1;
+			if (!commands[i].equals("message")
+					&& !commands[i].equals("broadcast")
+					&& !commands[i].equals("whoelse")) {
+				throw new IllegalArgumentException("Unknown command in mix: "
+						+ commands[i]);
+			}
+		}
+	}
+
+	/**
+	 * Logs every session in, runs the traffic, waits for it to drain, and
+	 * prints the results.
+	 */
+	private void run() throws IOException {
+		long start = System.nanoTime();
+		int next = 0;
+		while (loggedIn < credentials.size() && failure == null) {
+			while (next < credentials.size()
+					&& connecting < LOGIN_CONCURRENCY) {
+				connect(next, credentials.get(next));
+				next++;
+			}
+			poll(10L);
+			if (System.nanoTime() - start > LOGIN_TIMEOUT_NANOS) {
+				failure = "Only " + loggedIn + " of " + credentials.size()
+						+ " sessions logged in.";
+			}
+		}
+		if (failure != null) {
+			System.err.println(failure);
+			System.exit(1);
+		}
+		System.out.printf("%d session(s) logged in in %d ms.%n",
+				loggedIn, (System.nanoTime() - start) / 1000000L);
+
+		int totalWeight = 0;
+		for (int weight : weights) {
+			totalWeight += weight;
+		}
+		long loadStart = System.nanoTime();
+		long lastReport = loadStart;
+		long lastSent = 0;
+		long lastDelivered = 0;
+		while (true) {
+			long now = System.nanoTime();
+			if (now - loadStart >= durationNanos) {
+				break;
+			}
+			long due = (now - loadStart) * rate / 1000000000L;
+			while (sent < due && ready.size() > 1) {
+				issue(totalWeight);
+			}
+			poll(1L);
+
+			if (now - lastReport >= REPORT_NANOS) {
+				double seconds = (now - lastReport) / 1e9;
+				LatencySummary summary = latency.summarize();
+				System.out.printf("t=%3ds %10.0f cmd/s %10.0f msg/s "
+						+ "p50 %8.3f ms p99 %8.3f ms%n",
+						(now - loadStart) / 1000000000L,
+						(sent - lastSent) / seconds,
+						(delivered - lastDelivered) / seconds,
+						summary.getP50Nanos() / 1e6,
+						summary.getP99Nanos() / 1e6);
+				lastReport = now;
+				lastSent = sent;
+				lastDelivered = delivered;
+			}
+		}
+		long loadNanos = System.nanoTime() - loadStart;
+
+		long drainStart = System.nanoTime();
+		while (System.nanoTime() - drainStart < drainNanos
+				&& tracker.outstanding(delivered) > 0) {
+			poll(10L);
+		}
+		report(loadNanos);
+	}
+
+	/**
+	 * Starts connecting the session for one username and password.
+	 */
+	private void connect(int index, String[] credential) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Session session = new Session(index, credential[0], credential[1],
+				channel);
+		int ops = channel.connect(address)
+				? SelectionKey.OP_READ : SelectionKey.OP_CONNECT;
+		session.key = channel.register(selector, ops, session);
+		connecting++;
+	}
+
+	/**
+	 * Sends one command, chosen by the mix, from a random ready session.
+	 */
+	private void issue(int totalWeight) throws IOException {
+		Session from = ready.get(random.nextInt(ready.size()));
+		int pick = random.nextInt(totalWeight);
+		int command = 0;
+		while (pick >= weights[command]) {
+			pick -= weights[command++];
+		}
+
+		if (commands[command].equals("message")) {
+			Session to = ready.get(random.nextInt(ready.size() - 1));
+			if (to == from) {
+				to = ready.get(ready.size() - 1);
+			}
+			long id = tracker.add(1);
+			from.send("message " + to.username + " " + payload(id));
+		} else if (commands[command].equals("broadcast")) {
+			long id = tracker.add(ready.size() - 1);
+			from.send("broadcast " + payload(id));
+		} else {
+			from.send("whoelse");
+		}
+		sent++;
+	}
+
+	/**
+	 * @return Message text carrying id and the time it is sent, padded to
+	 * messageSize.
+	 */
+	private String payload(long id) {
+		StringBuilder payload = new StringBuilder(messageSize);
+		payload.append('#').append(id).append(',')
+				.append(System.nanoTime()).append(',');
+		while (payload.length() < messageSize) {
+			payload.append('x');
+		}
+		return payload.toString();
+	}
+
+	/**
+	 * Handles whatever the selector has ready, waiting at most timeout
+	 * milliseconds for it.
+	 */
+	private void poll(long timeout) throws IOException {
+		selector.select(timeout);
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			Session session = (Session) key.attachment();
+			try {
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.isConnectable()) {
+					session.channel.finishConnect();
+					key.interestOps(SelectionKey.OP_READ);
+				}
+				if (key.isValid() && key.isReadable()) {
+					session.read();
+				}
+				if (key.isValid() && key.isWritable()) {
+					session.flush();
+				}
+			} catch (IOException e) {
+				session.close("I/O error: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Handles one line from the server to session.
+	 */
+	private void receive(Session session, String line) throws IOException {
+		switch (session.state) {
+		case USERNAME:
+			if (line.startsWith(">Username:")) {
+				session.send(session.username);
+				session.state = State.PASSWORD;
+			}
+			break;
+		case PASSWORD:
+			if (line.startsWith(">Password:")) {
+				session.send(session.password);
+				session.state = State.WELCOME;
+			}
+			break;
+		case WELCOME:
+			if (line.startsWith(">Command:")) {
+				session.state = State.READY;
+				ready.add(session);
+				connecting--;
+				loggedIn++;
+			} else if (line.startsWith(">Username:")
+					|| line.contains("already connected")
+					|| line.contains("blocked")) {
+				failure = "Session " + session.username + " could not log "
+						+ "in: " + line;
+			}
+			break;
+		case READY:
+			int mark = line.indexOf(MARK);
+			if (mark >= 0 && !line.endsWith("__broadcast")) {
+				delivered(line, mark + MARK.length());
+			} else if (line.contains("could not be delivered")) {
+				refused++;
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Counts a message delivered to a session, whose id starts at from.
+	 */
+	private void delivered(String line, int from) {
+		int comma = line.indexOf(',', from);
+		int second = comma < 0 ? -1 : line.indexOf(',', comma + 1);
+		if (second < 0) {
+			return;
+		}
+		long id = Long.parseLong(line.substring(from, comma));
+		long sentAt = Long.parseLong(line.substring(comma + 1, second));
+		latency.record(System.nanoTime() - sentAt);
+		tracker.receive(id);
+		delivered++;
+	}
+
+	private void report(long loadNanos) {
+		double seconds = loadNanos / 1e9;
+		LatencySummary summary = latency.summarize();
+		System.out.println();
+		System.out.printf("Commands sent:       %d (%.0f/s)%n",
+				sent, sent / seconds);
+		System.out.printf("Messages expected:   %d%n", tracker.expected());
+		System.out.printf("Messages delivered:  %d (%.0f/s)%n",
+				delivered, delivered / seconds);
+		System.out.printf("Messages lost:       %d%n", tracker.lost());
+		System.out.printf("Messages duplicated: %d%n", tracker.duplicated());
+		System.out.printf("Refused by server:   %d%n", refused);
+		System.out.printf("Sessions dropped:    %d%n", disconnected);
+		System.out.printf("Latency p50 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, "
+				+ "max %.3f ms%n",
+				summary.getP50Nanos() / 1e6,
+				summary.getP99Nanos() / 1e6,
+				summary.getP999Nanos() / 1e6,
+				summary.getMaxNanos() / 1e6);
+	}
+
+	/**
+	 * One simulated client.
+	 */
+	private final class Session {
+		private final int index;
+		private final String username;
+		private final String password;
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private State state = State.USERNAME;
+		private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private ByteBuffer out = ByteBuffer.allocate(1024);
+
+		Session(int index, String username, String password,
+				SocketChannel channel) {
+			this.index = index;
+			this.username = username;
+			this.password = password;
+			this.channel = channel;
+		}
+
+		/**
+		 * Writes line to the server, queueing whatever the socket will not
+		 * take at once.
+		 */
+		void send(String line) throws IOException {
+			byte[] bytes = (line + "\n").getBytes(UTF_8);
+			if (out.remaining() < bytes.length) {
+				ByteBuffer grown = ByteBuffer.allocate(
+						Math.max(out.capacity() * 2,
+								out.position() + bytes.length));
+				out.flip();
+				grown.put(out);
+				out = grown;
+			}
+			out.put(bytes);
+			flush();
+		}
+
+		void flush() throws IOException {
+			out.flip();
+			channel.write(out);
+			boolean pending = out.hasRemaining();
+			out.compact();
+			if (key.isValid()) {
+				key.interestOps(pending
+						? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+						: SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Reads what the server has sent, and handles each complete line.
+		 */
+		void read() throws IOException {
+			int read = channel.read(in);
+			if (read < 0) {
+				close("closed by the server");
+				return;
+			}
+			in.flip();
+			int start = in.position();
+			for (int i = start; i < in.limit(); i++) {
+				if (in.get(i) == '\n') {
+					String line = new String(in.array(), start, i - start,
+							UTF_8);
+					receive(this, line);
+					start = i + 1;
+				}
+			}
+			in.position(start);
+			in.compact();
+			if (!in.hasRemaining()) {
+				close("line longer than " + READ_BUFFER_SIZE + " bytes");
+			}
+		}
+
+		void close(String reason) {
+			if (state == State.CLOSED) {
+				return;
+			}
+			if (state == State.READY) {
+				ready.remove(this);
+				disconnected++;
+				System.err.println("Session " + username + " (" + index
+						+ ") dropped: " + reason);
+			} else {
+				failure = "Session " + username + " could not log in: "
+						+ reason;
+			}
+			state = State.CLOSED;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * How many recipients each message id should reach, and how many copies
+	 * of it have arrived, in chunks that grow with the number of messages.
+	 */
+	private static final class Tracker {
+		private static final int CHUNK = 1 << 16;
+		private final ArrayList<int[]> expected = new ArrayList<int[]>();
+		private final ArrayList<int[]> received = new ArrayList<int[]>();
+		private long next = 0;
+		private long totalExpected = 0;
+
+		/**
+		 * @return Id of a new message, which should reach recipients
+		 * recipients.
+		 */
+		long add(int recipients) {
+			long id = next++;
+			if (id % CHUNK == 0) {
+				expected.add(new int[CHUNK]);
+				received.add(new int[CHUNK]);
+			}
+			expected.get((int) (id / CHUNK))[(int) (id % CHUNK)] = recipients;
+			totalExpected += recipients;
+			return id;
+		}
+
+		void receive(long id) {
+			if (id >= 0 && id < next) {
+				received.get((int) (id / CHUNK))[(int) (id % CHUNK)]++;
+			}
+		}
+
+		long expected() {
+			return totalExpected;
+		}
+
+		/**
+		 * @return Number of deliveries still to come, given delivered so
+		 * far.
+		 */
+		long outstanding(long delivered) {
+			return totalExpected - delivered;
+		}
+
+		long lost() {
+			long lost = 0;
+			for (long id = 0; id < next; id++) {
+				lost += Math.max(0, expected(id) - received(id));
+			}
+			return lost;
+		}
+
+		long duplicated() {
+			long duplicated = 0;
+			for (long id = 0; id < next; id++) {
+				duplicated += Math.max(0, received(id) - expected(id));
+			}
+			return duplicated;
+		}
+
+		private int expected(long id) {
+			return expected.get((int) (id / CHUNK))[(int) (id % CHUNK)];
+		}
+
+		private int received(long id) {
+			return received.get((int) (id / CHUNK))[(int) (id % CHUNK)];
+		}
+	}
+
+	/**
+	 * @return The first sessions username and password pairs in file.
+	 */
+	private static List<String[]> readCredentials(String file, int sessions)
+			throws IOException {
+		List<String[]> credentials = new ArrayList<String[]>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while (credentials.size() < sessions
+					&& (line = reader.readLine()) != null) {
+				String[] entries = line.split(" ");
+				if (entries.length >= 2) {
+					credentials.add(new String[] { entries[0], entries[1] });
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return credentials;
+	}
+
+	private static String value(String arg) {
+		return arg.substring(arg.indexOf("=") + 1);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: java bench.LoadGenerator <port> " +
+					"[--SESSIONS] [--RATE] [--DURATION] [--DRAIN] [--MIX] " +
+					"[--MESSAGE_SIZE] [--USERS_FILE] [--HOST]\n" +
+					"       java bench.LoadGenerator --GENERATE_USERS=n");
+			System.exit(1);
+		}
+		if (args[0].contains("GENERATE_USERS")) {
+			int users = Integer.parseInt(value(args[0]));
+			for (int i = 0; i < users; i++) {
+				System.out.println("load" + i + " load" + i);
+			}
+			return;
+		}
+
+		int port = Integer.parseInt(args[0]);
+		String host = "127.0.0.1";
+		int sessions = 1000;
+		int rate = 1000;
+		long duration = 30L;
+		long drain = 5L;
+		String mix = "message:90,broadcast:5,whoelse:5";
+		int messageSize = 64;
+		String usersFile = "user_pass.txt";
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].contains("SESSIONS")) {
+				sessions = Integer.parseInt(value(args[i]));
+			} else if (args[i].contains("RATE")) {
+				rate = Integer.parseInt(value(args[i]));
+			} else if (args[i].contains("DURATION")) {
+				duration = Long.parseLong(value(args[i]));
+			} else if (args[i].contains("DRAIN")) {
+				drain = Long.parseLong(value(args[i]));
+			} else if (args[i].contains("MIX")) {
+				mix = value(args[i]);
+			} else if (args[i].contains("MESSAGE_SIZE")) {
+				messageSize = Integer.parseInt(value(args[i]));
+			} else if (args[i].contains("USERS_FILE")) {
+				usersFile = value(args[i]);
+			} else if (args[i].contains("HOST")) {
+				host = value(args[i]);
+			}
+		}
+
+		List<String[]> credentials = readCredentials(usersFile, sessions);
+		if (credentials.size() < Math.max(2, sessions)) {
+			System.err.println(usersFile + " holds only " +
+					credentials.size() + " user(s); at least " +
+					Math.max(2, sessions) + " are needed. Use " +
+					"--GENERATE_USERS to make more.");
+			System.exit(1);
+		}
+
+		new LoadGenerator(
+				new InetSocketAddress(host, port),
+				credentials,
+				rate,
+				duration * 1000000000L,
+				drain * 1000000000L,
+				mix,
+				messageSize).run();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import server.ClientConnection;
+
+/**
+ *
+ * Connection to a client that is not there. Everything sent to it is
+ * counted and thrown away at once, so that a benchmark measures the server
+ * and not the network or a slow reader.
+ *
+ */
+public class NullConnection implements ClientConnection {
+	private final Socket socket;
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * @param socket Socket returned by getSocket(), which the server only
+	 * reads the client's address from. It may be shared by many
+	 * connections.
+	 */
+	public NullConnection(Socket socket) {
+		this.socket = socket;
+	}
+
+	public boolean send(ByteBuffer message, boolean mayWait) {
+		bytes.add(message.remaining());
+		return true;
+	}
+
+	public boolean reply(ByteBuffer message) {
+		bytes.add(message.remaining());
+		return true;
+	}
+
+	public void close() {
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public int getQueuedMessages() {
+		return 0;
+	}
+
+	/**
+	 * @return Number of bytes sent to the connection so far.
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+}
@@ -0,0 +1,301 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import server.Server;
+import server.ServerThread;
+
+/**
+ *
+ * Benchmarks for the server's hot paths, run against a real Server whose
+ * clients are NullConnections, so that nothing but the server's own work
+ * is measured. Each benchmark is run for every combination of the number
+ * of users logged in, the size of the messages sent, and the number of
+ * threads running it at once:
+ *
+ * process-message  A client messaging another, through ServerThread.receive.
+ * process-whoelse  A client listing every other user.
+ * broadcast        A client broadcasting to every other user.
+ * checkUserPass    Checking a username and password.
+ * isBlocked        Checking whether a username is blocked at an address,
+ *                  with one blocked username per user.
+ * offline          Storing an offline message, then taking it.
+ * addStatistic     Counting a command for analysis.
+ * wholasthr        Listing the users connected in the last hour.
+ *
+ * Commands from different threads are given by different clients, so no
+ * benchmark is run on more threads than there are users.
+ *
+ * Usage: java bench.ServerBench [--USERS=100,10000] [--MESSAGE_SIZE=16,1024]
+ * [--THREADS=1,4,16,64] [--WARMUP=500] [--MEASURE=1000] [--ONLY=name,...]
+ *
+ * Like the Server, it must be run from a directory holding user_pass.txt.
+ *
+ */
+public class ServerBench {
+	private static final String PASSWORD = "benchmark";
+
+	private final int users;
+	private final Server server;
+	private final ServerThread[] sessions;
+	private final File offlineDirectory;
+
+	/**
+	 * Starts a server on an ephemeral port, and logs users clients in to
+	 * it.
+	 *
+	 * @param users Number of clients to log in.
+	 *
+	 * @param socket Socket the clients' connections claim to be on.
+	 */
+	private ServerBench(int users, Socket socket) throws IOException {
+		this.users = users;
+		this.server = new Server(0, 60000L, 3600000L, 1800000L);
+		this.offlineDirectory = Files.createTempDirectory("bench-offline")
+				.toFile();
+		server.openOfflineStore(offlineDirectory);
+		// The benchmarks give commands as fast as they can.
+		server.setCommandRate(0.0, 0);
+		server.setBroadcastRate(0.0, 0);
+
+		this.sessions = new ServerThread[users];
+		HashMap<String, String> passwords = new HashMap<String, String>();
+		for (int i = 0; i < users; i++) {
+			passwords.put(username(i), PASSWORD);
+		}
+		server.addUsers(passwords);
+		for (int i = 0; i < users; i++) {
+			sessions[i] = new ServerThread(
+					new NullConnection(socket), null, server, 1800000L, false);
+			sessions[i].start();
+			sessions[i].receive(username(i));
+			sessions[i].receive(PASSWORD);
+			server.addConnectedLastHr(username(i));
+			server.block("10.0." + (i >> 8 & 0xff) + "." + (i & 0xff),
+					username(i));
+		}
+		if (server.getConnected().size() != users) {
+			throw new IllegalStateException("Only " +
+					server.getConnected().size() + " of " + users +
+					" users could log in.");
+		}
+	}
+
+	private static String username(int i) {
+		return "bench" + i;
+	}
+
+	/**
+	 * @return User index for thread's iteration'th operation, spread over
+	 * every user without sharing a random number generator.
+	 */
+	private int pick(int thread, long iteration) {
+		return (int) ((iteration * 7919L + thread * 104729L) % users);
+	}
+
+	/**
+	 * Runs every benchmark selected by only.
+	 */
+	private void run(
+			Harness harness,
+			int messageSize,
+			boolean first,
+			int[] threadCounts,
+			List<String> only) throws InterruptedException {
+		final String message = message(messageSize);
+		String params = "users=" + users + " size=" + messageSize;
+
+		for (int threads : threadCounts) {
+			if (threads > users) {
+				continue;
+			}
+			if (selected(only, "process-message")) {
+				harness.run("process-message", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								int to = pick(thread, iteration);
+								if (to == thread) {
+									to = (to + 1) % users;
+								}
+								sessions[thread].receive("message " +
+										username(to) + " " + message);
+								return to;
+							}
+						});
+			}
+			if (selected(only, "broadcast")) {
+				harness.run("broadcast", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								sessions[thread].receive("broadcast " +
+										message);
+								return iteration;
+							}
+						});
+			}
+			if (selected(only, "offline")) {
+				harness.run("offline", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								String away = "away" + thread + "-" +
+										pick(thread, iteration >> 1);
+								if ((iteration & 1) == 0) {
+									return server.addOfflineMessage(away,
+											message) ? 1 : 0;
+								}
+								return server.getOfflineMessage(away).size();
+							}
+						});
+			}
+
+			// The rest do not depend on the size of messages.
+			if (!first) {
+				continue;
+			}
+			if (selected(only, "process-whoelse")) {
+				harness.run("process-whoelse", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								sessions[thread].receive("whoelse");
+								return iteration;
+							}
+						});
+			}
+			if (selected(only, "checkUserPass")) {
+				harness.run("checkUserPass", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								return server.checkUserPass(
+										username(pick(thread, iteration)),
+										PASSWORD) ? 1 : 0;
+							}
+						});
+			}
+			if (selected(only, "isBlocked")) {
+				harness.run("isBlocked", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								int i = pick(thread, iteration);
+								return server.isBlocked("10.0." +
+										(i >> 8 & 0xff) + "." + (i & 0xff),
+										username(i)) ? 1 : 0;
+							}
+						});
+			}
+			if (selected(only, "addStatistic")) {
+				harness.run("addStatistic", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								server.addStatistic((iteration & 3) == 0
+										? "broadcast" : "message");
+								return iteration;
+							}
+						});
+			}
+			if (selected(only, "wholasthr")) {
+				harness.run("wholasthr", params, threads,
+						new Harness.Operation() {
+							public long run(int thread, long iteration) {
+								return server.getConnectedLastHr().size();
+							}
+						});
+			}
+		}
+	}
+
+	private void close() {
+		File[] files = offlineDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		offlineDirectory.delete();
+	}
+
+	private static boolean selected(List<String> only, String name) {
+		return only.isEmpty() || only.contains(name);
+	}
+
+	/**
+	 * @return Words of text, size characters long.
+	 */
+	private static String message(int size) {
+		StringBuilder message = new StringBuilder(size);
+		while (message.length() < size) {
+			message.append("lorem ipsum ");
+		}
+		message.setLength(size);
+		return message.toString();
+	}
+
+	private static int[] parseList(String arg) {
+		String[] values = arg.substring(arg.indexOf("=") + 1).split(",");
+		int[] parsed = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			parsed[i] = Integer.parseInt(values[i].trim());
+		}
+		return parsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] userCounts = { 100, 10000 };
+		int[] messageSizes = { 16, 1024 };
+		int[] threadCounts = { 1, 4, 16, 64 };
+		long warmup = 500L;
+		long measure = 1000L;
+		List<String> only = new ArrayList<String>();
+
+		for (String arg : args) {
+			if (arg.contains("USERS")) {
+				userCounts = parseList(arg);
+			} else if (arg.contains("MESSAGE_SIZE")) {
+				messageSizes = parseList(arg);
+			} else if (arg.contains("THREADS")) {
+				threadCounts = parseList(arg);
+			} else if (arg.contains("WARMUP")) {
+				warmup = Long.parseLong(arg.substring(arg.indexOf("=") + 1));
+			} else if (arg.contains("MEASURE")) {
+				measure = Long.parseLong(arg.substring(arg.indexOf("=") + 1));
+			} else if (arg.contains("ONLY")) {
+				only = Arrays.asList(
+						arg.substring(arg.indexOf("=") + 1).split(","));
+			}
+		}
+
+		// Every client claims to be on the same loopback connection, which
+		// the server only asks for its address.
+		ServerSocket listener = new ServerSocket(
+				0, 1, InetAddress.getLoopbackAddress());
+		Socket socket = new Socket(
+				InetAddress.getLoopbackAddress(), listener.getLocalPort());
+		Socket accepted = listener.accept();
+
+		Harness harness = new Harness(warmup, measure);
+		for (int users : userCounts) {
+			ServerBench bench = new ServerBench(users, socket);
+			try {
+				for (int i = 0; i < messageSizes.length; i++) {
+					bench.run(harness, messageSizes[i], i == 0,
+							threadCounts, only);
+				}
+			} finally {
+				bench.close();
+			}
+		}
+
+		accepted.close();
+		socket.close();
+		listener.close();
+		System.exit(0);
+	}
+}
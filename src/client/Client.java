@@ -3,6 +3,10 @@ package client;
 import java.io.IOException;
 import java.net.*;
 import java.io.*;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 public class Client {
 	private int port;
@@ -19,7 +23,8 @@ public class Client {
 
 	public static void main(String[] args) {
 		if (args.length == 0) {
-			System.err.println("Usage: java Client <host> <port number> [-v]");
+			System.err.println("Usage: java Client <host> <port number> " +
+					"[--TEXT] [--DEFLATE] [--TLS] [-v]");
 			System.exit(1);
 		}
 
@@ -27,23 +32,52 @@ public class Client {
 		int portNum = Integer.parseInt(args[1]);
 
 		boolean verbose = false;
+		boolean framed = true;
+		boolean deflate = false;
+		boolean tls = false;
 		for(String arg : args) {
 			if (arg.equals("-v")) {
 				verbose = true;
+			} else if (arg.equals("--TEXT")) {
+				framed = false;
+			} else if (arg.equals("--DEFLATE")) {
+				deflate = true;
+			} else if (arg.equals("--TLS")) {
+				tls = true;
 			}
 		}
+		// Only framed output can be compressed.
+		deflate = deflate && framed;
+
+		if (framed) {
+			runEngine(host, portNum, deflate, tls, verbose);
+			return;
+		}
 
 		Client client = new Client(portNum, host);
 
 		try {
 			if (verbose)
 				System.out.println("Opening connection to server.");
-			client.server = new Socket(host, portNum);
+			if (tls) {
+				// The server's certificate is checked against the trust 
+				// store given by -Djavax.net.ssl.trustStore, or the 
+				// runtime's own.
+				SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault()
+						.createSocket(host, portNum);
+				socket.startHandshake();
+				if (verbose)
+					System.out.println("Connected over " + 
+							socket.getSession().getProtocol() + ".");
+				client.server = socket;
+			} else {
+				client.server = new Socket(host, portNum);
+			}
 
 			if (verbose)
 				System.out.println("Getting input stream from server.");
-			client.in = new BufferedReader(
-					new InputStreamReader(client.server.getInputStream()));
+			client.in = new BufferedReader(new InputStreamReader(
+					client.server.getInputStream()));
 			client.stdIn = new BufferedReader(
 					new InputStreamReader(System.in));
 
@@ -51,6 +85,7 @@ public class Client {
 				System.out.println("Establishing output stream to server.");
 			client.out = new PrintWriter(
 					client.server.getOutputStream(), true);
+
 			Thread clientInThread = new Thread(new ClientReaderThread(
 					client.in));
 			clientInThread.start();
@@ -80,7 +115,9 @@ public class Client {
 		try {
 			if (verbose)
 				System.out.println("Closing connection to server");
-			client.in.close();
+			if (client.in != null) {
+				client.in.close();
+			}
 			client.out.close();
 			client.server.close();
 			client.stdIn.close();
@@ -89,4 +126,81 @@ public class Client {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Runs the console client over a ClientEngine, which asks the server for 
+	 * binary framing. Lines typed are sent as soon as they are entered, 
+	 * without waiting for the server to prompt for them, and the program 
+	 * ends when the server closes the connection.
+	 * 
+	 * @param host Host of the server.
+	 * 
+	 * @param port Port of the server.
+	 * 
+	 * @param deflate True to ask the server to compress what it sends.
+	 * 
+	 * @param tls True to connect over TLS.
+	 * 
+	 * @param verbose True to print what the client is doing.
+	 */
+	private static void runEngine(
+			String host, 
+			int port, 
+			boolean deflate, 
+			boolean tls, 
+			boolean verbose) {
+		ConsoleListener console = new ConsoleListener(host, port);
+		ClientEngine engine;
+		try {
+			// The server's certificate is checked against the trust store 
+			// given by -Djavax.net.ssl.trustStore, or the runtime's own.
+			engine = new ClientEngine(host, port, deflate, 
+					tls ? SSLContext.getDefault() : null, console);
+			if (verbose)
+				System.out.println("Opening connection to server, and " +
+						"requesting binary framing" + 
+						(deflate ? " and deflate" : "") + 
+						(tls ? " over TLS." : "."));
+			engine.connect();
+		} catch (NoSuchAlgorithmException e) {
+			System.err.println("TLS is not available in this runtime.");
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		} catch (IOException e) {
+			System.err.println("There was an error estabishing the connection "
+					+ "with the chat server " + host + " on port " + port
+					+ ".");
+			e.printStackTrace();
+			System.exit(1);
+			return;
+		}
+
+		BufferedReader stdIn = new BufferedReader(
+				new InputStreamReader(System.in));
+		try {
+			String command;
+			while ((command = stdIn.readLine()) != null) {
+				console.lineEntered();
+				engine.send(command);
+				if (command.equals("logout")) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("There was an error reading from StdIn " +
+					"and sending message to server.");
+			e.printStackTrace();
+		}
+
+		// The console ends the program once the server closes the 
+		// connection.
+		try {
+			engine.join();
+		} catch (InterruptedException e) {
+			System.err.println("There was an error during communication " +
+					"with the server.");
+			e.printStackTrace();
+		}
+	}
 }
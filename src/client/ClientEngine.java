@@ -0,0 +1,711 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import protocol.Frame;
+
+/**
+ *
+ * Connection to a chat server that can be driven by a program as well as
+ * by a person. The connection is non-blocking and served by one thread of
+ * the engine's own, waiting on a Selector, so a bot or a test needs no
+ * reader and writer threads of its own, and is never made to exit by
+ * anything the server says.
+ *
+ * The engine always asks for binary framing, and optionally for deflate,
+ * and may connect over TLS. Each line sent, with send() or the methods
+ * built on it, returns a future of the frames that answer it: any notices,
+ * ending with the next prompt or a disconnect reason. The server answers
+ * lines in the order they were sent, so the engine keeps the lines still
+ * waiting for an answer, oldest first, and any number of commands may be
+ * sent without waiting for a prompt in between. Every frame, answer or not,
+ * is also given to a ClientListener, so messages and broadcasts from other
+ * users are seen as they arrive.
+ *
+ * Messages and broadcasts, the echo of the user's own broadcast included,
+ * are never part of an answer. A notice the server sends of its own accord
+ * while a line is waiting is counted in that line's answer.
+ *
+ * Futures complete, and the listener is called, on the engine's thread;
+ * neither may wait on another of the engine's futures.
+ *
+ */
+public class ClientEngine implements Runnable {
+	private static final int READ_BUFFER_SIZE = 16 * 1024;
+	private static final String COMMAND_PROMPT = ">Command:";
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final String host;
+	private final int port;
+	private final boolean deflate;
+	private final SSLContext tls;
+	private final ClientListener listener;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	// Lines sent and not yet answered, oldest first, and the bytes of lines
+	// not yet taken by the engine's thread to be written. Both are guarded
+	// by lock, so that lines are written in the order they wait.
+	private final ArrayDeque<Answer> outstanding = new ArrayDeque<Answer>();
+	private ByteArrayOutputStream unsent = new ByteArrayOutputStream();
+	private boolean closing = false;
+	private boolean closed = false;
+
+	private Selector selector;
+	private SocketChannel channel;
+	private SelectionKey key;
+	private Thread thread;
+
+	// Everything below is only used by the engine's thread.
+	private SSLEngine ssl;
+	// TLS records read and not yet unwrapped, and wrapped and not yet
+	// written. Null unless over TLS.
+	private ByteBuffer netIn;
+	private ByteBuffer netOut;
+	// Bytes received, after TLS, that have not yet been decoded.
+	private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	// Bytes inflated that do not yet make a whole frame. Null unless the
+	// server is deflating.
+	private ByteBuffer inflated;
+	private Inflater inflater;
+	// Line being written.
+	private ByteBuffer out;
+	// The server prompts for a username in text, before it has read the
+	// request for framing; that line is skipped.
+	private boolean skipping = true;
+	private boolean disconnected = false;
+
+	/**
+	 * @param host Hostname or address of the server.
+	 *
+	 * @param port Port the server is listening on.
+	 *
+	 * @param deflate True to ask the server to compress what it sends.
+	 *
+	 * @param tls Context to connect over TLS with, such as
+	 * SSLContext.getDefault(), or null to connect in plain text.
+	 *
+	 * @param listener Listener to give every frame to, or null.
+	 */
+	public ClientEngine(
+			String host,
+			int port,
+			boolean deflate,
+			SSLContext tls,
+			ClientListener listener) {
+		this.host = host;
+		this.port = port;
+		this.deflate = deflate;
+		this.tls = tls;
+		this.listener = listener;
+	}
+
+	/**
+	 * Starts connecting to the server, and the engine's thread. Lines may
+	 * be sent straight away; they are written once the connection is made.
+	 *
+	 * @return Future of the server's username prompt, which completes once
+	 * the connection is framed, or fails if it could not be made.
+	 *
+	 * @throws IOException If the connection could not be started.
+	 */
+	public CompletableFuture<List<Frame>> connect() throws IOException {
+		if (thread != null) {
+			throw new IllegalStateException("The engine has already " +
+					"connected.");
+		}
+		selector = Selector.open();
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		if (tls != null) {
+			ssl = tls.createSSLEngine(host, port);
+			ssl.setUseClientMode(true);
+			netIn = ByteBuffer.allocate(
+					ssl.getSession().getPacketBufferSize());
+			netOut = ByteBuffer.allocate(
+					ssl.getSession().getPacketBufferSize());
+		}
+		boolean connected = channel.connect(
+				new InetSocketAddress(host, port));
+		key = channel.register(selector,
+				connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT);
+		if (connected && ssl != null) {
+			ssl.beginHandshake();
+		}
+
+		thread = new Thread(this, "ClientEngine " + host + ":" + port);
+		CompletableFuture<List<Frame>> framed =
+				send(deflate ? Frame.PREFACE_DEFLATE : Frame.PREFACE);
+		thread.start();
+		return framed;
+	}
+
+	/**
+	 * Logs in. The username and password are sent at once, without waiting
+	 * for the password prompt.
+	 *
+	 * @param username Username to log in as.
+	 *
+	 * @param password Password of username.
+	 *
+	 * @return Future of the server's welcome, any offline messages, and
+	 * the first command prompt. It fails with the server's reason if the
+	 * credentials are refused, or the user is blocked or logged in
+	 * elsewhere.
+	 */
+	public CompletableFuture<List<Frame>> login(
+			String username,
+			String password) {
+		send(username);
+		return send(password, true);
+	}
+
+	/**
+	 * Sends a message to one user.
+	 *
+	 * @param username Username of the recipient.
+	 *
+	 * @param message Message to send.
+	 *
+	 * @return Future of the server's answer.
+	 */
+	public CompletableFuture<List<Frame>> message(
+			String username,
+			String message) {
+		return send("message " + username + " " + message);
+	}
+
+	/**
+	 * Broadcasts a message to every connected user.
+	 *
+	 * @param message Message to broadcast.
+	 *
+	 * @return Future of the server's answer.
+	 */
+	public CompletableFuture<List<Frame>> broadcast(String message) {
+		return send("broadcast " + message);
+	}
+
+	/**
+	 * Logs out. The server then closes the connection.
+	 *
+	 * @return Future of the server's farewell.
+	 */
+	public CompletableFuture<List<Frame>> logout() {
+		return send("logout");
+	}
+
+	/**
+	 * Sends one line, such as a command, to the server. Safe to call from
+	 * any thread, and never waits for the line to be written.
+	 *
+	 * @param line Line to send, without a line break.
+	 *
+	 * @return Future of the frames that answer line, ending with a PROMPT
+	 * or DISCONNECT frame. It fails if the connection closes first.
+	 */
+	public CompletableFuture<List<Frame>> send(String line) {
+		return send(line, false);
+	}
+
+	/**
+	 * @return Number of lines sent that the server has not yet answered.
+	 */
+	public int getOutstanding() {
+		lock.lock();
+		try {
+			return outstanding.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the connection at once, without waiting for outstanding lines
+	 * to be answered. Their futures fail.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closing = true;
+		} finally {
+			lock.unlock();
+		}
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Waits until the connection has closed.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void join() throws InterruptedException {
+		if (thread != null) {
+			thread.join();
+		}
+	}
+
+	private CompletableFuture<List<Frame>> send(String line, boolean login) {
+		if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+			throw new IllegalArgumentException("A line cannot contain a " +
+					"line break.");
+		}
+		if (thread == null) {
+			throw new IllegalStateException("The engine has not connected.");
+		}
+		Answer answer = new Answer(login);
+		// Read by the server with its default charset, as it would be from
+		// the console client.
+		byte[] bytes = (line + "\n").getBytes(Charset.defaultCharset());
+		lock.lock();
+		try {
+			if (closed) {
+				answer.future.completeExceptionally(
+						new ClosedChannelException());
+				return answer.future;
+			}
+			outstanding.add(answer);
+			unsent.write(bytes, 0, bytes.length);
+		} finally {
+			lock.unlock();
+		}
+		selector.wakeup();
+		return answer.future;
+	}
+
+	public void run() {
+		IOException cause = null;
+		try {
+			while (!isClosing()) {
+				selector.select();
+				if (selector.selectedKeys().remove(key)) {
+					if (key.isConnectable()) {
+						if (!channel.finishConnect()) {
+							continue;
+						}
+						key.interestOps(SelectionKey.OP_READ);
+						if (ssl != null) {
+							ssl.beginHandshake();
+						}
+					}
+					if (key.isReadable() && !read()) {
+						break;
+					}
+				}
+				if (channel.isConnected()) {
+					flush();
+				}
+			}
+		} catch (IOException e) {
+			cause = e;
+		} catch (RuntimeException e) {
+			// Such as from the listener; the futures must still complete.
+			cause = new IOException("The engine failed.", e);
+		}
+		finish(cause);
+	}
+
+	private boolean isClosing() {
+		lock.lock();
+		try {
+			return closing;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads whatever the server has sent, and handles every whole frame.
+	 *
+	 * @return False once the server has closed the connection.
+	 */
+	private boolean read() throws IOException {
+		if (ssl == null) {
+			if (channel.read(in) < 0) {
+				return false;
+			}
+			received();
+			return true;
+		}
+		int read = channel.read(netIn);
+		unwrap();
+		return read >= 0 && !ssl.isInboundDone();
+	}
+
+	/**
+	 * Unwraps every whole TLS record read, handling the data in each.
+	 *
+	 * @return False if not a byte could be unwrapped.
+	 */
+	private boolean unwrap() throws IOException {
+		boolean progress = false;
+		while (true) {
+			netIn.flip();
+			SSLEngineResult result;
+			try {
+				result = ssl.unwrap(netIn, in);
+			} finally {
+				netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				in = grow(in, in.remaining()
+						+ ssl.getSession().getApplicationBufferSize());
+				continue;
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					netIn = grow(netIn, ssl.getSession().getPacketBufferSize());
+				}
+				return progress;
+			case CLOSED:
+				return progress;
+			default:
+			}
+			if (result.bytesProduced() > 0) {
+				received();
+			}
+			if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+				runTasks();
+			}
+			if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+				// The engine wants to wrap before it unwraps any more.
+				return progress;
+			}
+			progress = true;
+		}
+	}
+
+	/**
+	 * Decodes the bytes received into frames, and handles them. A partial
+	 * frame is kept until the rest of it arrives.
+	 */
+	private void received() throws IOException {
+		in.flip();
+		if (skipping) {
+			while (in.hasRemaining()) {
+				if (in.get() == '\n') {
+					skipping = false;
+					if (deflate) {
+						inflater = new Inflater();
+						inflated = ByteBuffer.allocate(READ_BUFFER_SIZE);
+					}
+					break;
+				}
+			}
+		}
+		if (!skipping) {
+			if (inflater == null) {
+				decode(in);
+			} else {
+				inflate(in);
+			}
+		}
+		in.compact();
+		if (!in.hasRemaining()) {
+			in = grow(in, READ_BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Inflates all of input, handling every whole frame.
+	 */
+	private void inflate(ByteBuffer input) throws IOException {
+		inflater.setInput(input.array(), input.arrayOffset() +
+				input.position(), input.remaining());
+		input.position(input.limit());
+		try {
+			while (true) {
+				int count = inflater.inflate(inflated.array(),
+						inflated.arrayOffset() + inflated.position(),
+						inflated.remaining());
+				inflated.position(inflated.position() + count);
+				inflated.flip();
+				decode(inflated);
+				inflated.compact();
+				if (!inflated.hasRemaining()) {
+					inflated = grow(inflated, READ_BUFFER_SIZE);
+				} else if (count == 0) {
+					return;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("The server's output could not be " +
+					"inflated.", e);
+		}
+	}
+
+	/**
+	 * Handles every whole frame in buffer.
+	 */
+	private void decode(ByteBuffer buffer) throws IOException {
+		Frame frame;
+		while ((frame = Frame.decode(buffer)) != null) {
+			handle(frame);
+		}
+	}
+
+	/**
+	 * Gives frame to the listener and, unless it is a message or a
+	 * broadcast, to the answer of the oldest line waiting for one.
+	 */
+	private void handle(Frame frame) {
+		byte type = frame.getType();
+		boolean ends = type == Frame.PROMPT || type == Frame.DISCONNECT;
+		Answer answer = null;
+		ArrayList<Answer> unanswered = null;
+		if (!Frame.hasSender(type)) {
+			lock.lock();
+			try {
+				answer = ends ? outstanding.poll() : outstanding.peek();
+				if (type == Frame.DISCONNECT) {
+					// Lines after the one the server disconnected on are
+					// never read.
+					unanswered = new ArrayList<Answer>(outstanding);
+					outstanding.clear();
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (type == Frame.DISCONNECT) {
+			disconnected = true;
+		}
+
+		if (listener != null) {
+			listener.frameReceived(frame, answer != null);
+		}
+		if (answer != null) {
+			answer.frames.add(frame);
+			if (ends) {
+				answer.complete();
+			}
+		}
+		if (unanswered != null) {
+			for (Answer line : unanswered) {
+				line.future.completeExceptionally(
+						new IOException(frame.getText()));
+			}
+		}
+	}
+
+	/**
+	 * Writes lines waiting to be sent, and anything TLS needs to send, until
+	 * there is nothing left or the socket will take no more.
+	 */
+	private void flush() throws IOException {
+		while (true) {
+			if (netOut != null && netOut.position() > 0) {
+				netOut.flip();
+				try {
+					channel.write(netOut);
+				} finally {
+					netOut.compact();
+				}
+				if (netOut.position() > 0) {
+					key.interestOps(
+							SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if (ssl != null) {
+				HandshakeStatus status = ssl.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					continue;
+				} else if (status == HandshakeStatus.NEED_WRAP) {
+					wrap(EMPTY);
+					continue;
+				} else if (status == HandshakeStatus.NEED_UNWRAP
+						|| status == HandshakeStatus.NEED_UNWRAP_AGAIN) {
+					// Records may have been read while the engine was
+					// waiting to wrap. Otherwise nothing more can be sent
+					// until the server answers.
+					if (unwrap()) {
+						continue;
+					}
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+
+			if (out == null || !out.hasRemaining()) {
+				out = takeUnsent();
+				if (out == null) {
+					key.interestOps(SelectionKey.OP_READ);
+					return;
+				}
+			}
+			if (ssl != null) {
+				wrap(out);
+			} else {
+				channel.write(out);
+				if (out.hasRemaining()) {
+					key.interestOps(
+							SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Every line waiting to be written, as one buffer, or null if
+	 * there are none.
+	 */
+	private ByteBuffer takeUnsent() {
+		lock.lock();
+		try {
+			if (unsent.size() == 0) {
+				return null;
+			}
+			ByteBuffer lines = ByteBuffer.wrap(unsent.toByteArray());
+			unsent.reset();
+			return lines;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wraps as much of src as fits in netOut.
+	 */
+	private void wrap(ByteBuffer src) throws IOException {
+		SSLEngineResult result = ssl.wrap(src, netOut);
+		switch (result.getStatus()) {
+		case BUFFER_OVERFLOW:
+			if (netOut.position() == 0) {
+				netOut = grow(netOut, netOut.remaining()
+						+ ssl.getSession().getPacketBufferSize());
+			}
+			// Otherwise there is room once netOut has been written.
+			break;
+		case CLOSED:
+			throw new ClosedChannelException();
+		default:
+		}
+	}
+
+	/**
+	 * Runs the engine's delegated tasks, such as checking the server's
+	 * certificate, on the engine's thread.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = ssl.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Closes the connection, and fails every line still waiting for an
+	 * answer.
+	 */
+	private void finish(IOException cause) {
+		ArrayList<Answer> unanswered;
+		lock.lock();
+		try {
+			if (cause == null && !disconnected && !closing) {
+				cause = new EOFException("The server closed the connection.");
+			}
+			closed = true;
+			unanswered = new ArrayList<Answer>(outstanding);
+			outstanding.clear();
+		} finally {
+			lock.unlock();
+		}
+
+		try {
+			if (ssl != null && cause == null) {
+				// Best effort; the server may already have gone.
+				ssl.closeOutbound();
+				wrap(EMPTY);
+				netOut.flip();
+				channel.write(netOut);
+			}
+		} catch (IOException e) {
+			// Closing anyway.
+		}
+		try {
+			channel.close();
+			selector.close();
+		} catch (IOException e) {
+			// Nothing more can be done with either.
+		}
+		if (inflater != null) {
+			inflater.end();
+		}
+
+		for (Answer answer : unanswered) {
+			answer.future.completeExceptionally(cause != null ? cause
+					: new ClosedChannelException());
+		}
+		if (listener != null) {
+			listener.closed(cause);
+		}
+	}
+
+	/**
+	 * @return A buffer holding buffer's contents, ready to be filled, with
+	 * room for at least size more bytes.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		if (buffer.remaining() >= size) {
+			return buffer;
+		}
+		ByteBuffer larger = ByteBuffer.allocate(
+				buffer.position() + Math.max(size, buffer.capacity()));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	/**
+	 * The frames answering one line, gathered until the answer ends.
+	 */
+	private static class Answer {
+		private final CompletableFuture<List<Frame>> future =
+				new CompletableFuture<List<Frame>>();
+		private final ArrayList<Frame> frames = new ArrayList<Frame>();
+		// True if the line was a password, and the answer says whether the
+		// login succeeded.
+		private final boolean login;
+
+		Answer(boolean login) {
+			this.login = login;
+		}
+
+		void complete() {
+			Frame last = frames.get(frames.size() - 1);
+			if (login && !(last.getType() == Frame.PROMPT
+					&& last.getText().equals(COMMAND_PROMPT))) {
+				future.completeExceptionally(
+						new IOException(frames.get(0).getText()));
+			} else {
+				future.complete(frames);
+			}
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package client;
+
+import java.io.IOException;
+
+import protocol.Frame;
+
+/**
+ *
+ * Receives what the server sends over a ClientEngine's connection. Both
+ * methods are called on the engine's own thread, in the order the server
+ * sent things, and must return promptly; a listener that waits on one of
+ * the engine's futures would wait forever.
+ *
+ */
+public interface ClientListener {
+
+	/**
+	 * Called for every frame from the server, whether it answers a line
+	 * the engine sent or arrived of its own accord, like a message or a
+	 * broadcast. A frame that answers a line is given here before the
+	 * line's future completes.
+	 *
+	 * @param frame Frame received.
+	 *
+	 * @param answer True if frame is part of the answer to a line.
+	 */
+	public void frameReceived(Frame frame, boolean answer);
+
+	/**
+	 * Called once the connection has closed, after every outstanding
+	 * future has completed.
+	 *
+	 * @param cause Error that closed the connection, or null if the server
+	 * closed it after sending a DISCONNECT frame, or the engine was closed.
+	 */
+	public void closed(IOException cause);
+}
@@ -0,0 +1,100 @@
+package client;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import protocol.Frame;
+
+/**
+ * Shows what the server sends over a ClientEngine on the console, each
+ * frame according to its type, and ends the program when the connection
+ * closes. A message, broadcast or notice that arrives while the user sits
+ * at a prompt, and not in answer to anything they entered, is shown on a
+ * line of its own, and the prompt shown again after it.
+ */
+public class ConsoleListener implements ClientListener {
+
+	private String host;
+	private int port;
+	// Set by the engine's thread, cleared by the thread reading System.in.
+	private volatile boolean atPrompt = false;
+	private volatile String prompt = "";
+	private volatile boolean received = false;
+
+	/**
+	 * @param host Host of the server, for error messages.
+	 *
+	 * @param port Port of the server, for error messages.
+	 */
+	public ConsoleListener(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * Called when the user has entered a line, which leaves the cursor at
+	 * the start of a fresh line.
+	 */
+	public void lineEntered() {
+		atPrompt = false;
+	}
+
+	public void frameReceived(Frame frame, boolean answer) {
+		received = true;
+		switch (frame.getType()) {
+		case Frame.PROMPT:
+			prompt = frame.getText();
+			System.out.print(prompt + " ");
+			atPrompt = true;
+			break;
+		case Frame.MESSAGE:
+		case Frame.BROADCAST:
+			print(frame.getSender() + ": " + frame.getText(), answer);
+			break;
+		case Frame.DISCONNECT:
+			System.out.println(atPrompt ? "\n" + frame.getText()
+					: frame.getText());
+			atPrompt = false;
+			break;
+		default:
+			print(frame.getText(), answer);
+		}
+	}
+
+	public void closed(IOException cause) {
+		if (cause != null) {
+			if (!received) {
+				System.err.println("There was an error estabishing the " +
+						"connection with the chat server " + host +
+						" on port " + port + ".");
+				cause.printStackTrace();
+			} else {
+				if (!(cause instanceof EOFException)) {
+					System.err.println("There was an error reading in a " +
+							"message from the server.");
+					cause.printStackTrace();
+				}
+				System.err.println("The server shut down unexpectedly. " +
+						"Closing program.");
+			}
+		}
+		System.exit(1);
+	}
+
+	/**
+	 * Prints text on its own line, starting a new line first if the cursor
+	 * was left at a prompt, and showing that prompt again after text unless
+	 * text answers the user.
+	 */
+	private void print(String text, boolean answer) {
+		if (!atPrompt) {
+			System.out.println(text);
+		} else if (answer) {
+			System.out.println("\n" + text);
+			atPrompt = false;
+		} else {
+			System.out.println("\n" + text);
+			System.out.print(prompt + " ");
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ *
+ * One message from the server to a client in binary framing mode. Every
+ * frame is a type byte, the length of its payload as a four byte big-endian
+ * integer, and the payload itself. A client recognises a message by its
+ * type alone, and a payload may contain any text, newlines included.
+ *
+ * MESSAGE and BROADCAST payloads start with the sender's username, preceded
+ * by its length as a two byte big-endian integer; the rest of the payload,
+ * and the whole of every other payload, is UTF-8 text.
+ *
+ * A client asks for framing by giving PREFACE in place of its first
+ * username. Everything the server sends after that is framed; the username
+ * prompt sent before it is the one line of text the client must skip.
+ * Clients that never send PREFACE are spoken to in text, as before.
+ *
+ * Every line a framed client sends, PREFACE included, is answered in order
+ * by any number of NOTICE frames followed by exactly one PROMPT, or by a
+ * DISCONNECT. PROMPT is never sent otherwise, so a client may send many
+ * lines without waiting, and still tell which output answered which line.
+ * MESSAGE and BROADCAST frames, and NOTICE frames the server sends of its
+ * own accord, may arrive at any time in between.
+ *
+ * A client that sends PREFACE_DEFLATE instead is also framed, and
+ * everything after the username prompt is sent through one zlib deflate
+ * stream, sync flushed after each batch of frames, which the client reads
+ * through an Inflater. What the client sends is never compressed.
+ *
+ */
+public final class Frame {
+	/** Prompt for the client's next input, such as ">Command:". */
+	public static final byte PROMPT = 1;
+	/** Message sent directly to the client by another user. */
+	public static final byte MESSAGE = 2;
+	/** Message broadcast to every connected user. */
+	public static final byte BROADCAST = 3;
+	/** Any other output from the server, such as a command's result. */
+	public static final byte NOTICE = 4;
+	/** Reason the server is about to close the connection. */
+	public static final byte DISCONNECT = 5;
+
+	/**
+	 * Line a client sends in place of its first username to switch the
+	 * connection to framing. It starts with a NUL, which no console client
+	 * can send as a username.
+	 */
+	public static final String PREFACE = "\u0000SEB1";
+
+	/**
+	 * Line a client sends in place of PREFACE to ask for framing and for
+	 * everything framed to be compressed.
+	 */
+	public static final String PREFACE_DEFLATE = PREFACE + "Z";
+
+	public static final int HEADER_LENGTH = 5;
+	public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final byte type;
+	private final String sender;
+	private final String text;
+
+	/**
+	 * @param type One of PROMPT, NOTICE or DISCONNECT.
+	 *
+	 * @param text Text of the frame.
+	 */
+	public Frame(byte type, String text) {
+		this(type, null, text);
+	}
+
+	/**
+	 * @param type Frame type.
+	 *
+	 * @param sender Username of the sender of a MESSAGE or BROADCAST, or
+	 * null for other types.
+	 *
+	 * @param text Text of the frame.
+	 */
+	public Frame(byte type, String sender, String text) {
+		this.type = type;
+		this.sender = sender;
+		this.text = text;
+	}
+
+	public byte getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return Username of the sender, or null if the frame has none.
+	 */
+	public String getSender() {
+		return this.sender;
+	}
+
+	public String getText() {
+		return this.text;
+	}
+
+	/**
+	 * @return True if the payload starts with a sender's username.
+	 */
+	public static boolean hasSender(byte type) {
+		return type == MESSAGE || type == BROADCAST;
+	}
+
+	/**
+	 * @return New buffer holding the encoded frame, ready to be read.
+	 */
+	public ByteBuffer encode() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				HEADER_LENGTH + text.length() + 16);
+		writeTo(bytes);
+		return ByteBuffer.wrap(bytes.toByteArray());
+	}
+
+	/**
+	 * Appends the encoded frame to bytes.
+	 *
+	 * @param bytes Stream to append to.
+	 */
+	public void writeTo(ByteArrayOutputStream bytes) {
+		byte[] senderBytes = hasSender(type)
+				? (sender == null ? "" : sender).getBytes(UTF_8)
+				: null;
+		byte[] textBytes = text.getBytes(UTF_8);
+		int length = textBytes.length;
+		if (senderBytes != null) {
+			length += 2 + senderBytes.length;
+		}
+
+		bytes.write(type);
+		bytes.write(length >>> 24);
+		bytes.write(length >>> 16);
+		bytes.write(length >>> 8);
+		bytes.write(length);
+		if (senderBytes != null) {
+			bytes.write(senderBytes.length >>> 8);
+			bytes.write(senderBytes.length);
+			bytes.write(senderBytes, 0, senderBytes.length);
+		}
+		bytes.write(textBytes, 0, textBytes.length);
+	}
+
+	/**
+	 * Reads the next frame from in, waiting for it to arrive.
+	 *
+	 * @param in Stream of frames from the server.
+	 *
+	 * @return Frame read, or null if the stream ended between frames.
+	 *
+	 * @throws IOException If the stream could not be read, ended part way
+	 * through a frame, or held a frame that is not valid.
+	 */
+	public static Frame read(DataInputStream in) throws IOException {
+		int type = in.read();
+		if (type == -1) {
+			return null;
+		}
+		int length = in.readInt();
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Frame of " + length + " bytes is too "
+					+ "long.");
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return fromPayload((byte) type, payload);
+	}
+
+	/**
+	 * Decodes the next frame from buffer, if the buffer holds all of it.
+	 *
+	 * @param buffer Bytes from the server, ready to be read.
+	 *
+	 * @return Frame decoded, with the buffer's position moved past it, or
+	 * null if the buffer does not yet hold the whole frame, with its
+	 * position unchanged.
+	 *
+	 * @throws IOException If the buffer holds a frame that is not valid.
+	 */
+	public static Frame decode(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_LENGTH) {
+			return null;
+		}
+		int start = buffer.position();
+		byte type = buffer.get(start);
+		int length = buffer.getInt(start + 1);
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new IOException("Frame of " + length + " bytes is too "
+					+ "long.");
+		}
+		if (buffer.remaining() < HEADER_LENGTH + length) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		buffer.position(start + HEADER_LENGTH);
+		buffer.get(payload);
+		return fromPayload(type, payload);
+	}
+
+	/**
+	 * @return Frame of type with the given payload.
+	 *
+	 * @throws EOFException If the payload ends before its sender.
+	 */
+	private static Frame fromPayload(byte type, byte[] payload)
+			throws IOException {
+		int length = payload.length;
+		if (!hasSender(type)) {
+			return new Frame(type, new String(payload, UTF_8));
+		}
+		if (length < 2) {
+			throw new EOFException("Frame ended before its sender.");
+		}
+		int senderLength = ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+		if (2 + senderLength > length) {
+			throw new EOFException("Frame ended before its sender.");
+		}
+		return new Frame(
+				type,
+				new String(payload, 2, senderLength, UTF_8),
+				new String(payload, 2 + senderLength,
+						length - 2 - senderLength, UTF_8));
+	}
+}
@@ -0,0 +1,143 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ *
+ * BufferedReader whose readLine() refuses a line longer than a limit
+ * instead of buffering all of it, so that a client that never ends a line
+ * cannot make its ServerThread build an ever larger string. Lines end in
+ * "\n", "\r" or "\r\n", as with BufferedReader.
+ *
+ */
+public class BoundedLineReader extends BufferedReader {
+	private final int maxLength;
+	private final char[] buffer;
+	private int position = 0;
+	private int limit = 0;
+	// Set after a "\r", so that a "\n" straight after it is skipped.
+	private boolean skipLf = false;
+
+	/**
+	 * @param in Reader to read from.
+	 *
+	 * @param bufferSize Size, in characters, of the buffer.
+	 *
+	 * @param maxLength Longest line, in characters, that readLine()
+	 * returns.
+	 */
+	public BoundedLineReader(Reader in, int bufferSize, int maxLength) {
+		// Reads go straight to in once this class's own buffer is empty.
+		super(in, 1);
+		this.buffer = new char[Math.max(1, bufferSize)];
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @return Next line, without its terminator, or null at the end of the
+	 * stream.
+	 *
+	 * @throws LineTooLongException If the line is longer than maxLength.
+	 * The rest of the line is left unread.
+	 *
+	 * @throws IOException If the underlying reader could not be read.
+	 */
+	@Override
+	public String readLine() throws IOException {
+		StringBuilder line = null;
+		while (true) {
+			if (!fill()) {
+				return line == null ? null : line.toString();
+			}
+			if (skipLf) {
+				skipLf = false;
+				if (buffer[position] == '\n') {
+					position++;
+					continue;
+				}
+			}
+			int start = position;
+			while (position < limit && buffer[position] != '\n'
+					&& buffer[position] != '\r') {
+				position++;
+			}
+			if (line == null) {
+				line = new StringBuilder(position - start);
+			}
+			if (line.length() + position - start > maxLength) {
+				throw new LineTooLongException(maxLength);
+			}
+			line.append(buffer, start, position - start);
+			if (position < limit) {
+				skipLf = buffer[position] == '\r';
+				position++;
+				return line.toString();
+			}
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		skipLf = false;
+		return buffer[position++];
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		skipLf = false;
+		int count = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, cbuf, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return position < limit || super.ready();
+	}
+
+	/**
+	 * Refills the buffer if everything in it has been read.
+	 *
+	 * @return False at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		if (position < limit) {
+			return true;
+		}
+		int read = super.read(buffer, 0, buffer.length);
+		if (read <= 0) {
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+
+	/**
+	 *
+	 * Thrown by readLine() for a line longer than the reader allows.
+	 *
+	 */
+	public static class LineTooLongException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * @param maxLength Longest line the reader allows.
+		 */
+		public LineTooLongException(int maxLength) {
+			super("Line longer than " + maxLength + " characters.");
+		}
+	}
+}
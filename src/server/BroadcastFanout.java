@@ -0,0 +1,247 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.Frame;
+
+/**
+ *
+ * Delivers a broadcast to every connected client but its sender. The
+ * broadcast is encoded into bytes once per protocol, as a read-only buffer,
+ * and every recipient is given its own view of that same buffer, so a
+ * broadcast to N clients costs at most two encodings and N queue
+ * insertions, rather than N string concatenations, N encodings and 2N
+ * flushes. Each recipient's writer then sends the broadcast along with
+ * anything else it has queued in one gathering write.
+ *
+ * The time taken to fan each broadcast out is returned to the caller, and
+ * totals and a histogram of the times are kept for reporting.
+ *
+ * Posts to a channel are fanned out the same way, to the channel's members
+ * alone, and are counted and timed along with broadcasts.
+ *
+ */
+public class BroadcastFanout {
+	private SessionRegistry connected;
+	private AtomicLong broadcasts = new AtomicLong();
+	private AtomicLong deliveries = new AtomicLong();
+	private AtomicLong totalNanos = new AtomicLong();
+	private AtomicLong maxNanos = new AtomicLong();
+	private LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * @param connected Registry of the clients to broadcast to.
+	 */
+	public BroadcastFanout(SessionRegistry connected) {
+		this.connected = connected;
+	}
+
+	/**
+	 * Queues message for every connected client other than sender.
+	 *
+	 * @param sender Username of the broadcasting client.
+	 *
+	 * @param message Message to broadcast.
+	 *
+	 * @return Outcome of the broadcast, including how long it took.
+	 */
+	public Result broadcast(String sender, String message) {
+		long start = System.nanoTime();
+		SessionRegistry.Snapshot recipients = connected.snapshot();
+		Encoding encoding = new Encoding(sender, message);
+		int delivered = 0;
+		int undelivered = 0;
+
+		for (int i = 0; i < recipients.size(); i++) {
+			if (recipients.username(i).equals(sender)) {
+				continue;
+			}
+			ServerThread recipient = recipients.session(i);
+			if (recipient.sendFrameToClient(encoding.forClient(recipient))) {
+				delivered++;
+			} else {
+				undelivered++;
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+		record(delivered, elapsed);
+		return new Result(delivered, undelivered, elapsed);
+	}
+
+	/**
+	 * Queues message for every member of channel who is connected, other
+	 * than sender. Members see it as coming from "sender #channel". Only
+	 * the members are visited, not every connected client.
+	 *
+	 * @param sender Username of the posting client.
+	 *
+	 * @param channel Name of the channel.
+	 *
+	 * @param members Usernames of the channel's members.
+	 *
+	 * @param message Message to post.
+	 *
+	 * @return Outcome of the post, including how long it took.
+	 */
+	public Result post(
+			String sender,
+			String channel,
+			Iterable<String> members,
+			String message) {
+		long start = System.nanoTime();
+		Encoding encoding = new Encoding(sender + " #" + channel, message);
+		int delivered = 0;
+		int undelivered = 0;
+
+		for (String member : members) {
+			if (member.equals(sender)) {
+				continue;
+			}
+			// Members who are logged out miss the post.
+			ServerThread recipient = connected.get(member);
+			if (recipient == null) {
+				continue;
+			}
+			if (recipient.sendFrameToClient(encoding.forClient(recipient))) {
+				delivered++;
+			} else {
+				undelivered++;
+			}
+		}
+
+		long elapsed = System.nanoTime() - start;
+		record(delivered, elapsed);
+		return new Result(delivered, undelivered, elapsed);
+	}
+
+	private void record(int delivered, long elapsed) {
+		broadcasts.incrementAndGet();
+		deliveries.addAndGet(delivered);
+		totalNanos.addAndGet(elapsed);
+		latency.record(elapsed);
+		long max;
+		while (elapsed > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, elapsed)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of broadcasts and channel posts fanned out since the
+	 * server started.
+	 */
+	public long getBroadcasts() {
+		return broadcasts.get();
+	}
+
+	/**
+	 * @return Number of recipients broadcasts and channel posts have been
+	 * queued for.
+	 */
+	public long getDeliveries() {
+		return deliveries.get();
+	}
+
+	/**
+	 * @return Total time, in nanoseconds, spent fanning out broadcasts and
+	 * channel posts.
+	 */
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	/**
+	 * @return Longest time, in nanoseconds, taken to fan out a broadcast or
+	 * channel post.
+	 */
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	/**
+	 * @return Histogram of the times taken to fan out broadcasts and
+	 * channel posts.
+	 */
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	/**
+	 * One message, encoded at most once for each protocol, as recipients
+	 * first need it.
+	 */
+	private static final class Encoding {
+		private final String sender;
+		private final String message;
+		private ByteBuffer text;
+		private ByteBuffer frames;
+
+		Encoding(String sender, String message) {
+			this.sender = sender;
+			this.message = message;
+		}
+
+		/**
+		 * @return A view of the message, encoded as recipient expects it.
+		 */
+		ByteBuffer forClient(ServerThread recipient) {
+			ByteBuffer encoded;
+			if (recipient.isFramed()) {
+				if (frames == null) {
+					frames = FrameResponseWriter.encode(
+							Frame.BROADCAST, sender, message)
+							.asReadOnlyBuffer();
+				}
+				encoded = frames;
+			} else {
+				if (text == null) {
+					text = TextResponseWriter.encode(sender, message)
+							.asReadOnlyBuffer();
+				}
+				encoded = text;
+			}
+			return encoded.duplicate();
+		}
+	}
+
+	/**
+	 *
+	 * Outcome of one broadcast.
+	 *
+	 */
+	public static final class Result {
+		private final int delivered;
+		private final int undelivered;
+		private final long nanos;
+
+		private Result(int delivered, int undelivered, long nanos) {
+			this.delivered = delivered;
+			this.undelivered = undelivered;
+			this.nanos = nanos;
+		}
+
+		/**
+		 * @return Number of recipients the broadcast was queued for.
+		 */
+		public int getDelivered() {
+			return delivered;
+		}
+
+		/**
+		 * @return Number of recipients whose queues refused the broadcast.
+		 */
+		public int getUndelivered() {
+			return undelivered;
+		}
+
+		/**
+		 * @return Time, in nanoseconds, taken to fan the broadcast out.
+		 */
+		public long getNanos() {
+			return nanos;
+		}
+	}
+}
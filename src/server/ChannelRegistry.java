@@ -0,0 +1,137 @@
+package server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ *
+ * Named channels and the users subscribed to each. Members are kept by
+ * username rather than by session, so a user stays in their channels when
+ * they log out, and receives posts to them again when they log back in.
+ * A post to a channel visits only its members, however many users are
+ * connected.
+ *
+ * Each channel's members are a concurrent set, so posting never takes a
+ * lock. Members are added and removed inside the map's compute() for their
+ * channel, so a channel is removed when its last member leaves, atomically
+ * with respect to anyone joining it.
+ *
+ */
+public class ChannelRegistry {
+	private final ConcurrentHashMap<String, Set<String>> channels =
+			new ConcurrentHashMap<String, Set<String>>();
+	// Channels each user is a member of, so that they can be listed
+	// without visiting every channel.
+	private final ConcurrentHashMap<String, Set<String>> memberships =
+			new ConcurrentHashMap<String, Set<String>>();
+
+	/**
+	 * Adds username to channel, creating the channel if it does not exist.
+	 *
+	 * @param channel Name of the channel.
+	 *
+	 * @param username Username of the joining user.
+	 *
+	 * @return False if username was already a member of channel.
+	 */
+	public boolean join(String channel, final String username) {
+		final boolean[] added = new boolean[1];
+		channels.compute(channel,
+				new BiFunction<String, Set<String>, Set<String>>() {
+			public Set<String> apply(String name, Set<String> members) {
+				if (members == null) {
+					members = ConcurrentHashMap.<String>newKeySet();
+				}
+				added[0] = members.add(username);
+				return members;
+			}
+		});
+		Set<String> joined = memberships.get(username);
+		if (joined == null) {
+			Set<String> created = ConcurrentHashMap.<String>newKeySet();
+			joined = memberships.putIfAbsent(username, created);
+			if (joined == null) {
+				joined = created;
+			}
+		}
+		joined.add(channel);
+		return added[0];
+	}
+
+	/**
+	 * Removes username from channel, and removes channel if it is left
+	 * without members.
+	 *
+	 * @param channel Name of the channel.
+	 *
+	 * @param username Username of the leaving user.
+	 *
+	 * @return False if username was not a member of channel.
+	 */
+	public boolean leave(String channel, final String username) {
+		Set<String> joined = memberships.get(username);
+		if (joined != null) {
+			joined.remove(channel);
+		}
+		final boolean[] removed = new boolean[1];
+		channels.computeIfPresent(channel,
+				new BiFunction<String, Set<String>, Set<String>>() {
+			public Set<String> apply(String name, Set<String> members) {
+				removed[0] = members.remove(username);
+				// No one can join while this runs, so no one is removed
+				// with the channel.
+				return members.isEmpty() ? null : members;
+			}
+		});
+		return removed[0];
+	}
+
+	/**
+	 * @param channel Name of the channel.
+	 *
+	 * @param username Username to look for.
+	 *
+	 * @return True if username is a member of channel.
+	 */
+	public boolean isMember(String channel, String username) {
+		Set<String> members = channels.get(channel);
+		return members != null && members.contains(username);
+	}
+
+	/**
+	 * @param channel Name of the channel.
+	 *
+	 * @return Live view of the usernames of channel's members, which is
+	 * empty if the channel does not exist.
+	 */
+	public Set<String> getMembers(String channel) {
+		Set<String> members = channels.get(channel);
+		if (members == null) {
+			return Collections.<String>emptySet();
+		}
+		return Collections.unmodifiableSet(members);
+	}
+
+	/**
+	 * @param username Username of a user.
+	 *
+	 * @return Names of the channels username is a member of, in order.
+	 */
+	public TreeSet<String> getChannels(String username) {
+		Set<String> joined = memberships.get(username);
+		if (joined == null) {
+			return new TreeSet<String>();
+		}
+		return new TreeSet<String>(joined);
+	}
+
+	/**
+	 * @return Number of channels with at least one member.
+	 */
+	public int size() {
+		return channels.size();
+	}
+}
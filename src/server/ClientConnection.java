@@ -0,0 +1,62 @@
+package server;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Outbound side of a connection to a client. Messages are queued on the
+ * connection's OutboundQueue and written by the connection's own writer,
+ * so a client that reads slowly never blocks the thread sending to it for
+ * longer than its OverflowPolicy allows.
+ *
+ */
+public interface ClientConnection {
+
+	/**
+	 * Queues message to be written to the client. Safe to call from any
+	 * thread.
+	 *
+	 * @param message Bytes to send. The buffer must not be modified after
+	 * it is sent.
+	 *
+	 * @param mayWait Whether the calling thread may be made to wait for
+	 * room under the BACKPRESSURE policy. Only a sender's own ServerThread,
+	 * sending it a single message, should wait; a thread delivering to many
+	 * clients, or on behalf of another node, would hold up every other
+	 * delivery behind one slow client.
+	 *
+	 * @return True if the message was queued, false if it was refused
+	 * because the connection is closed or its queue is full.
+	 */
+	public boolean send(ByteBuffer message, boolean mayWait);
+
+	/**
+	 * Queues the client's response to its own command. Responses are never
+	 * refused: if the queue is full, the calling ServerThread waits, or an
+	 * EventLoop stops reading the client's input, until there is room.
+	 *
+	 * @param message Bytes to send. The buffer must not be modified after
+	 * it is sent.
+	 *
+	 * @return True if the message was queued, false if the connection is
+	 * closed.
+	 */
+	public boolean reply(ByteBuffer message);
+
+	/**
+	 * Closes the connection once everything queued so far has been
+	 * written.
+	 */
+	public void close();
+
+	/**
+	 * @return Socket connected to the client.
+	 */
+	public Socket getSocket();
+
+	/**
+	 * @return Number of messages waiting to be written to the client.
+	 */
+	public int getQueuedMessages();
+}
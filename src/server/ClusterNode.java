@@ -0,0 +1,618 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ *
+ * One Server's membership of a cluster of Servers, each serving its own
+ * clients, that together act as one chat server. Every node knows which
+ * users are logged in to every other node, so a message to a user on
+ * another node is passed to that node, and a broadcast is passed once to
+ * each node, which fans it out to its own users.
+ *
+ * A message for a user who is not logged in anywhere is stored by the
+ * user's home node, which every node works out the same way from the
+ * username and the list of nodes, or by the sending node if the home node
+ * is down. When the user logs in, to whichever node, every other node
+ * hands over the messages it is holding for them, and they are paged out
+ * from there as usual.
+ *
+ * Nodes are linked by TCP. Each node connects to every other, and sends
+ * only over the connections it opened, so every link carries messages one
+ * way. A node announces its users when it connects, and each login and
+ * logout as it happens; the users of a node whose link drops are
+ * forgotten until it connects again. Messages for other nodes are queued
+ * and written by a thread per node, so a client never waits on another
+ * node's socket. The links are not authenticated, and should only be
+ * opened on a trusted network.
+ *
+ */
+public class ClusterNode {
+	private static final byte HELLO = 1;
+	private static final byte JOIN = 2;
+	private static final byte LEAVE = 3;
+	private static final byte MESSAGE = 4;
+	private static final byte BROADCAST = 5;
+	private static final byte STORE = 6;
+	private static final byte TAKE = 7;
+	private static final byte HANDOVER = 8;
+
+	private static final int PEER_QUEUE = 65536;
+	private static final long RECONNECT_MILLIS = 1000L;
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	// Offline messages handed over in one message to another node.
+	private static final int HANDOVER_BATCH = 256;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Server server;
+	private final String id;
+	private final ServerSocket serverSocket;
+	private final Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+	// Username of each user logged in to another node, to the link from
+	// that node.
+	private final ConcurrentHashMap<String, Link> remoteUsers =
+			new ConcurrentHashMap<String, Link>();
+	private final boolean verbose;
+
+	/**
+	 * Binds the port other nodes connect to.
+	 *
+	 * @param server Server this node serves clients for.
+	 *
+	 * @param id This node's address, as host:port, as other nodes list it.
+	 *
+	 * @param port Port to listen for other nodes on.
+	 *
+	 * @param nodes Address of every node, as host:port. This node's own
+	 * address may be included, and is skipped.
+	 *
+	 * @param verbose True if links and handovers should be logged.
+	 *
+	 * @throws IOException If the port could not be bound.
+	 */
+	public ClusterNode(
+			Server server,
+			String id,
+			int port,
+			List<String> nodes,
+			boolean verbose) throws IOException {
+		this.server = server;
+		this.id = id;
+		this.verbose = verbose;
+		for (String node : nodes) {
+			if (!node.equals(id) && !peers.containsKey(node)) {
+				peers.put(node, new Peer(node));
+			}
+		}
+		this.serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(port));
+	}
+
+	/**
+	 * Starts accepting links from other nodes, and connecting to them.
+	 */
+	public void start() {
+		daemon(new Runnable() {
+			public void run() {
+				accept();
+			}
+		}, "ClusterNode-accept");
+		for (Peer peer : peers.values()) {
+			daemon(peer, "ClusterNode-" + peer.id);
+		}
+	}
+
+	/**
+	 * @return This node's address.
+	 */
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @param username Username to look for.
+	 *
+	 * @return True if username is logged in to another node.
+	 */
+	public boolean isRemote(String username) {
+		return remoteUsers.containsKey(username);
+	}
+
+	/**
+	 * @return Usernames of the users logged in to other nodes.
+	 */
+	public Collection<String> getRemoteUsers() {
+		return remoteUsers.keySet();
+	}
+
+	/**
+	 * Tells every other node that username has logged in here, and asks
+	 * them to hand over any offline messages they hold for username.
+	 *
+	 * @param username Username of the user who logged in.
+	 */
+	public void joined(String username) {
+		byte[] join = encode(JOIN, username);
+		byte[] take = encode(TAKE, username);
+		for (Peer peer : peers.values()) {
+			peer.send(join);
+			peer.send(take);
+		}
+	}
+
+	/**
+	 * Tells every other node that username has logged out of this one.
+	 *
+	 * @param username Username of the user who logged out.
+	 */
+	public void left(String username) {
+		sendAll(encode(LEAVE, username));
+	}
+
+	/**
+	 * Passes a message to the node username is logged in to.
+	 *
+	 * @param from Username of the sender.
+	 *
+	 * @param to Username of the recipient.
+	 *
+	 * @param message Message sent.
+	 *
+	 * @return False if username is not logged in to another node that can
+	 * be reached.
+	 */
+	public boolean route(String from, String to, String message) {
+		Link link = remoteUsers.get(to);
+		if (link == null) {
+			return false;
+		}
+		Peer peer = peers.get(link.node);
+		return peer != null && peer.send(encode(MESSAGE, from, to, message));
+	}
+
+	/**
+	 * Passes a broadcast to every other node, once each.
+	 *
+	 * @param from Username of the sender.
+	 *
+	 * @param message Message broadcast.
+	 */
+	public void broadcast(String from, String message) {
+		sendAll(encode(BROADCAST, from, message));
+	}
+
+	/**
+	 * Passes an offline message to username's home node, unless that is
+	 * this node.
+	 *
+	 * @param username Username of the recipient.
+	 *
+	 * @param message Message to store, with its sender.
+	 *
+	 * @return False if the message should be stored here, because this is
+	 * username's home node or the home node cannot be reached.
+	 */
+	public boolean storeAtHome(String username, String message) {
+		Peer home = peers.get(home(username));
+		return home != null && home.send(encode(STORE, username, message));
+	}
+
+	/**
+	 * @return Address of username's home node: the node whose address,
+	 * hashed with username, scores highest, so that each node has an equal
+	 * share of users and every node agrees on them.
+	 */
+	private String home(String username) {
+		String best = id;
+		long bestScore = score(id, username);
+		for (String node : peers.keySet()) {
+			long score = score(node, username);
+			if (score > bestScore || (score == bestScore
+					&& node.compareTo(best) < 0)) {
+				best = node;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	private static long score(String node, String username) {
+		long h = node.hashCode() * 0x9E3779B97F4A7C15L + username.hashCode();
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	private void sendAll(byte[] message) {
+		for (Peer peer : peers.values()) {
+			peer.send(message);
+		}
+	}
+
+	private void accept() {
+		while (true) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				daemon(new Link(socket), "ClusterNode-link");
+			} catch (IOException e) {
+				System.err.println("The server had an error accepting a " +
+						"link from another node.");
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Acts on one message from the node at the other end of link.
+	 */
+	private void receive(Link link, byte type, DataInputStream in)
+			throws IOException {
+		switch (type) {
+		case JOIN: {
+			String username = readField(in);
+			remoteUsers.put(username, link);
+			server.addConnectedLastHr(username);
+			break;
+		}
+		case LEAVE: {
+			String username = readField(in);
+			remoteUsers.remove(username, link);
+			server.addConnectedLastHr(username);
+			break;
+		}
+		case MESSAGE: {
+			String from = readField(in);
+			String to = readField(in);
+			server.deliverFromNode(from, to, readField(in));
+			break;
+		}
+		case BROADCAST: {
+			String from = readField(in);
+			server.getFanout().broadcast(from, readField(in));
+			break;
+		}
+		case STORE: {
+			String username = readField(in);
+			server.storeOfflineMessage(username, readField(in));
+			break;
+		}
+		case TAKE:
+			handOver(link.node, readField(in));
+			break;
+		case HANDOVER: {
+			String username = readField(in);
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				server.storeOfflineMessage(username, readField(in));
+			}
+			if (verbose)
+				System.out.println("ClusterNode: " + link.node + " handed " +
+						"over " + count + " offline message(s) for " +
+						username + ".");
+			server.noticeOfflineMessages(username);
+			break;
+		}
+		default:
+			throw new IOException("Unknown message type " + type +
+					" from " + link.node + ".");
+		}
+	}
+
+	/**
+	 * Sends node every offline message held here for username.
+	 */
+	private void handOver(String node, String username) {
+		Peer peer = peers.get(node);
+		if (peer == null) {
+			return;
+		}
+		List<String> batch;
+		while (!(batch = server.takeOfflineMessages(username, HANDOVER_BATCH))
+				.isEmpty()) {
+			if (!peer.send(encode(HANDOVER, username, batch))) {
+				// Keep them for the next time username logs in.
+				for (String message : batch) {
+					server.storeOfflineMessage(username, message);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Keeps a message that was queued for another node but could not be
+	 * sent, if it would otherwise be lost: offline messages, and messages
+	 * for the node's users, are stored here, and handed over to their
+	 * recipients' nodes when they next log in. The rest only matter while
+	 * the link is up, and a node is sent this node's users again when it
+	 * reconnects.
+	 *
+	 * @return Number of messages stored.
+	 */
+	private int keep(byte[] message) {
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(message));
+		try {
+			switch (in.readByte()) {
+			case MESSAGE: {
+				String from = readField(in);
+				String to = readField(in);
+				return server.storeOfflineMessage(to,
+						from + ": " + readField(in)) ? 1 : 0;
+			}
+			case STORE: {
+				String username = readField(in);
+				return server.storeOfflineMessage(username, readField(in))
+						? 1 : 0;
+			}
+			case HANDOVER: {
+				String username = readField(in);
+				int count = in.readInt();
+				int stored = 0;
+				for (int i = 0; i < count; i++) {
+					if (server.storeOfflineMessage(username, readField(in))) {
+						stored++;
+					}
+				}
+				return stored;
+			}
+			default:
+				return 0;
+			}
+		} catch (IOException e) {
+			// Only thrown for a message this node did not encode.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] encode(byte type, String... fields) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			for (String field : fields) {
+				writeField(out, field);
+			}
+		} catch (IOException e) {
+			// A ByteArrayOutputStream never throws.
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] encode(
+			byte type,
+			String username,
+			List<String> messages) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(type);
+			writeField(out, username);
+			out.writeInt(messages.size());
+			for (String message : messages) {
+				writeField(out, message);
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes field as its length in bytes, then the bytes, in UTF-8. Unlike
+	 * writeUTF(), which is limited to 65535 bytes, this takes a line of any
+	 * length a client can send.
+	 */
+	private static void writeField(DataOutputStream out, String field)
+			throws IOException {
+		byte[] bytes = field.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a field written by writeField().
+	 */
+	private static String readField(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Field of length " + length + ".");
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static void daemon(Runnable task, String name) {
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Connection to another node, over which messages are sent to it. Its
+	 * thread connects, reconnecting whenever the link drops, and writes
+	 * queued messages out, flushing whenever the queue empties.
+	 */
+	private final class Peer implements Runnable {
+		private final String id;
+		private final String host;
+		private final int port;
+		private final LinkedBlockingQueue<byte[]> queue =
+				new LinkedBlockingQueue<byte[]>(PEER_QUEUE);
+		private volatile boolean connected = false;
+
+		Peer(String id) {
+			this.id = id;
+			int colon = id.lastIndexOf(':');
+			this.host = id.substring(0, colon);
+			this.port = Integer.parseInt(id.substring(colon + 1));
+		}
+
+		/**
+		 * Queues message for the node.
+		 *
+		 * @return False if the node is not connected, or is so far behind
+		 * that its queue is full.
+		 */
+		boolean send(byte[] message) {
+			return connected && queue.offer(message);
+		}
+
+		/**
+		 * Takes the messages in unflushed, then those still queued, off the
+		 * node's hands, as the link to it has dropped.
+		 */
+		private void keep(List<byte[]> unflushed) {
+			queue.drainTo(unflushed);
+			int kept = 0;
+			for (byte[] message : unflushed) {
+				kept += ClusterNode.this.keep(message);
+			}
+			if (verbose && kept > 0)
+				System.out.println("ClusterNode: Stored " + kept +
+						" message(s) that could not be sent to " + id + ".");
+			unflushed.clear();
+		}
+
+		public void run() {
+			// Messages written since the last flush, which the node may not
+			// have been sent if the link drops.
+			ArrayList<byte[]> unflushed = new ArrayList<byte[]>();
+			while (true) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host, port),
+							CONNECT_TIMEOUT_MILLIS);
+					socket.setTcpNoDelay(true);
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(socket.getOutputStream()));
+					// Anything queued since the link dropped is kept here.
+					keep(unflushed);
+					connected = true;
+					if (verbose)
+						System.out.println("ClusterNode: Linked to " + id + ".");
+					out.write(encode(HELLO, ClusterNode.this.id));
+					SessionRegistry.Snapshot users =
+							server.getConnected().snapshot();
+					for (int i = 0; i < users.size(); i++) {
+						out.write(encode(JOIN, users.username(i)));
+					}
+					out.flush();
+					while (true) {
+						byte[] message = queue.take();
+						do {
+							unflushed.add(message);
+							out.write(message);
+						} while ((message = queue.poll()) != null);
+						out.flush();
+						unflushed.clear();
+					}
+				} catch (IOException e) {
+					if (verbose && connected)
+						System.out.println("ClusterNode: Lost the link to " +
+								id + ".");
+				} catch (InterruptedException e) {
+					return;
+				} finally {
+					connected = false;
+					try {
+						socket.close();
+					} catch (IOException e) {
+					}
+				}
+				keep(unflushed);
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Connection from another node, over which messages are received from
+	 * it. When it closes, the node's users are forgotten.
+	 */
+	private final class Link implements Runnable {
+		private final Socket socket;
+		private String node;
+
+		Link(Socket socket) {
+			this.socket = socket;
+		}
+
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream()));
+				if (in.readByte() != HELLO) {
+					throw new IOException("Expected a node's address.");
+				}
+				this.node = readField(in);
+				while (true) {
+					receive(this, in.readByte(), in);
+				}
+			} catch (EOFException e) {
+				// The node went away.
+			} catch (SocketException e) {
+				if (verbose)
+					System.out.println("ClusterNode: The link from " + node +
+							" was reset.");
+			} catch (IOException e) {
+				System.err.println("There was an error on the link from " +
+						(node == null ? "another node" : node) + ".");
+				e.printStackTrace();
+			} finally {
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+				forget();
+			}
+		}
+
+		/**
+		 * Forgets the users announced over this link, unless they have
+		 * since been announced over another.
+		 */
+		private void forget() {
+			List<String> gone = new ArrayList<String>();
+			for (Map.Entry<String, Link> user : remoteUsers.entrySet()) {
+				if (user.getValue() == this) {
+					gone.add(user.getKey());
+				}
+			}
+			for (String username : gone) {
+				if (remoteUsers.remove(username, this)) {
+					server.addConnectedLastHr(username);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package server;
+
+/**
+ *
+ * Splits a command from a client into its command word, its argument (the
+ * second word), and the text that follows either of them, in one pass over
+ * the input and without copying anything until a part is asked for.
+ *
+ * Words are separated by single spaces, exactly as input.split(" ") would
+ * separate them: two spaces in a row separate an empty word, and spaces at
+ * the end of the input are ignored. Text after a word is therefore the
+ * rest of the input, from just past the space that ends the word, without
+ * trailing spaces, which is what joining the remaining words with spaces
+ * used to produce.
+ *
+ * A parser holds the last input given to parse(), so each ServerThread
+ * keeps one and reuses it for every command.
+ *
+ */
+public final class CommandParser {
+	private String input = "";
+	// End of the input, not counting trailing spaces.
+	private int end = 0;
+	private int wordCount = 0;
+	// Index of the space after the command word, and after the argument, or
+	// end if there is none.
+	private int firstSpace = 0;
+	private int secondSpace = 0;
+
+	/**
+	 * Parses input, replacing whatever was parsed before.
+	 *
+	 * @param input Command given by the client. Must not be null.
+	 */
+	public void parse(String input) {
+		this.input = input;
+
+		int end = input.length();
+		while (end > 0 && input.charAt(end - 1) == ' ') {
+			end--;
+		}
+		this.end = end;
+
+		// An empty command is one empty word; a command of only spaces has
+		// no words at all.
+		int words = end > 0 || input.length() == 0 ? 1 : 0;
+		int first = end;
+		int second = end;
+		for (int i = 0; i < end; i++) {
+			if (input.charAt(i) == ' ') {
+				if (words == 1) {
+					first = i;
+				} else if (words == 2) {
+					second = i;
+				}
+				words++;
+			}
+		}
+		this.wordCount = words;
+		this.firstSpace = first;
+		this.secondSpace = second;
+	}
+
+	/**
+	 * @return Number of words in the command, as input.split(" ").length
+	 * would count them.
+	 */
+	public int getWordCount() {
+		return this.wordCount;
+	}
+
+	/**
+	 * @param command Command word to compare against.
+	 *
+	 * @return True if the first word of the command is command.
+	 */
+	public boolean commandIs(String command) {
+		return wordCount > 0
+				&& firstSpace == command.length()
+				&& input.regionMatches(0, command, 0, firstSpace);
+	}
+
+	/**
+	 * @return Second word of the command, such as the username given to
+	 * message or block, or an empty string if there is none.
+	 */
+	public String getArgument() {
+		if (wordCount < 2) {
+			return "";
+		}
+		return input.substring(firstSpace + 1, secondSpace);
+	}
+
+	/**
+	 * @return Everything after the command word, such as the text given to
+	 * broadcast, or an empty string if there is nothing.
+	 */
+	public String getTextAfterCommand() {
+		if (wordCount < 2) {
+			return "";
+		}
+		return input.substring(firstSpace + 1, end);
+	}
+
+	/**
+	 * @return Everything after the argument, such as the text given to
+	 * message, or an empty string if there is nothing.
+	 */
+	public String getTextAfterArgument() {
+		if (wordCount < 3) {
+			return "";
+		}
+		return input.substring(secondSpace + 1, end);
+	}
+}
@@ -0,0 +1,127 @@
+package server;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Counts of the commands run by every client, for the analysis command.
+ * Each command has its own LongAdder, which spreads increments from many
+ * threads over several cells, so recording a command never takes a lock
+ * and rarely contends with another thread recording the same one.
+ *
+ * The analysis text is built from a snapshot of the counts, outside any
+ * lock, and is kept until a count changes; asking for it while nothing has
+ * been run since returns the same string without formatting it again.
+ *
+ */
+public class CommandStatistics {
+	private final ConcurrentHashMap<String, LongAdder> counters =
+			new ConcurrentHashMap<String, LongAdder>();
+	private volatile Snapshot snapshot = new Snapshot(
+			new String[0], new long[0]);
+
+	/**
+	 * Counts one more run of command.
+	 *
+	 * @param command Command that was run.
+	 */
+	public void record(String command) {
+		LongAdder counter = counters.get(command);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = counters.putIfAbsent(command, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.increment();
+	}
+
+	/**
+	 * @return Each command run so far, with the number of times it was run
+	 * and its share of all commands, in alphabetical order.
+	 */
+	public String getAnalysis() {
+		ArrayList<String> commands = new ArrayList<String>(counters.keySet());
+		Collections.sort(commands);
+		long[] counts = new long[commands.size()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = counters.get(commands.get(i)).sum();
+		}
+
+		Snapshot current = this.snapshot;
+		if (!current.matches(commands, counts)) {
+			current = new Snapshot(
+					commands.toArray(new String[commands.size()]), counts);
+			this.snapshot = current;
+		}
+		return current.getAnalysis();
+	}
+
+	/**
+	 * Counts of every command at one moment, and the analysis text made
+	 * from them, which is formatted the first time it is asked for.
+	 */
+	private static final class Snapshot {
+		private final String[] commands;
+		private final long[] counts;
+		private volatile String analysis;
+
+		Snapshot(String[] commands, long[] counts) {
+			this.commands = commands;
+			this.counts = counts;
+		}
+
+		boolean matches(ArrayList<String> commands, long[] counts) {
+			if (commands.size() != this.commands.length) {
+				return false;
+			}
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] != this.counts[i]
+						|| !commands.get(i).equals(this.commands[i])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		String getAnalysis() {
+			String analysis = this.analysis;
+			if (analysis == null) {
+				analysis = format();
+				this.analysis = analysis;
+			}
+			return analysis;
+		}
+
+		private String format() {
+			NumberFormat format = NumberFormat.getInstance();
+			format.setMinimumFractionDigits(2);
+			format.setMaximumFractionDigits(2);
+
+			long totalCommands = 0;
+			for (long count : counts) {
+				totalCommands += count;
+			}
+
+			StringBuilder builder = new StringBuilder();
+			builder.append("Statistics for commands run in chat program:\n\n");
+			for (int i = 0; i < commands.length; i++) {
+				builder.append(commands[i])
+						.append(": ")
+						.append(counts[i])
+						.append("/")
+						.append(totalCommands)
+						.append(" --- ")
+						.append(format.format(
+								(100 * (double) counts[i]) / totalCommands))
+						.append("%\n");
+			}
+			return builder.substring(0, builder.length() - 1);
+		}
+	}
+}
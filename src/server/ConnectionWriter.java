@@ -0,0 +1,62 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ *
+ * Writer that collects a ServerThread's output in memory and, on every
+ * flush, hands it to its ClientConnection as one message. Wrapped in a
+ * PrintWriter it behaves like a PrintWriter opened on the
+ * client's socket, without ever writing to the socket on the caller's
+ * thread or holding an encoder buffer for the life of the connection.
+ *
+ */
+public class ConnectionWriter extends java.io.Writer {
+	private static final int MAX_RETAINED_CAPACITY = 1024;
+
+	private ClientConnection connection;
+	private Charset charset = Charset.defaultCharset();
+	private StringBuilder pending = new StringBuilder();
+
+	public ConnectionWriter(ClientConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		pending.append(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		pending.append(str, off, off + len);
+	}
+
+	/**
+	 * Sends everything written since the last flush to the client.
+	 */
+	@Override
+	public void flush() {
+		if (pending.length() == 0) {
+			return;
+		}
+		byte[] bytes = pending.toString().getBytes(charset);
+		if (pending.capacity() > MAX_RETAINED_CAPACITY) {
+			pending = new StringBuilder();
+		} else {
+			pending.setLength(0);
+		}
+		connection.reply(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Flushes remaining output, then closes the connection once it has been
+	 * written.
+	 */
+	@Override
+	public void close() {
+		flush();
+		connection.close();
+	}
+}
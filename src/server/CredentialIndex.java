@@ -0,0 +1,249 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/**
+ *
+ * Open-addressing hash table, kept off the heap in direct buffers, from
+ * each username to a salt and the SHA-256 digest of the salt followed by
+ * the user's password. Each username is stored once, UTF-8 encoded, in a
+ * record beside its salt and digest; a slot holds the username's hash and
+ * the record's offset. A million users cost under 100 megabytes of native
+ * memory, and no heap at all.
+ *
+ * An index is filled by one thread and then only read. Once it has been
+ * handed to other threads it must not be changed; CredentialStore copies
+ * it to add users, and replaces it with the copy.
+ *
+ */
+public class CredentialIndex {
+	public static final int SALT_SIZE = 16;
+	public static final int DIGEST_SIZE = 32;
+
+	private static final int SLOT_SIZE = 8;
+	private static final int HASH = 0;
+	private static final int RECORD = 4;
+	private static final int EMPTY = 0;
+	private static final int USER_LENGTH = 0;
+	private static final int USER = 2;
+	private static final int MIN_CAPACITY = 1024;
+	private static final int MIN_RECORD_BYTES = 64 * 1024;
+
+	private ByteBuffer slots;
+	private int capacity;
+	private int size = 0;
+	private ByteBuffer records;
+	private int end = 0;
+
+	public CredentialIndex() {
+		allocate(MIN_CAPACITY);
+		this.records = ByteBuffer.allocateDirect(MIN_RECORD_BYTES);
+	}
+
+	/**
+	 * Constructs a copy of index, which may then be changed without
+	 * changing index.
+	 *
+	 * @param index Index to copy.
+	 */
+	public CredentialIndex(CredentialIndex index) {
+		this.capacity = index.capacity;
+		this.size = index.size;
+		this.slots = copyBuffer(index.slots, index.slots.capacity());
+		this.end = index.end;
+		this.records = copyBuffer(index.records, index.records.capacity());
+	}
+
+	/**
+	 * @param user Username, UTF-8 encoded.
+	 *
+	 * @param hash Hash of the username, as String.hashCode() gives it.
+	 *
+	 * @return Offset of user's record, or -1 if user is not in the index.
+	 */
+	public int find(byte[] user, int hash) {
+		return find(user, 0, user.length, hash);
+	}
+
+	/**
+	 * Adds a user, or replaces their salt and digest if they are already in
+	 * the index.
+	 *
+	 * @param user Array holding the username, UTF-8 encoded.
+	 *
+	 * @param offset Offset of the username in user.
+	 *
+	 * @param length Length of the username, at most 65535 bytes.
+	 *
+	 * @param hash Hash of the username, as String.hashCode() gives it.
+	 *
+	 * @param salt Salt, SALT_SIZE bytes long.
+	 *
+	 * @param digest Digest of the salt and password, DIGEST_SIZE bytes long.
+	 */
+	public void put(
+			byte[] user,
+			int offset,
+			int length,
+			int hash,
+			byte[] salt,
+			byte[] digest) {
+		int record = find(user, offset, length, hash);
+		if (record >= 0) {
+			write(record + USER + length, salt, digest);
+			return;
+		}
+		if ((size + 1) * 4L >= capacity * 3L) {
+			rehash(capacity * 2);
+		}
+		int recordSize = USER + length + SALT_SIZE + DIGEST_SIZE;
+		if (end + recordSize > records.capacity()) {
+			records = copyBuffer(records,
+					Math.max(records.capacity() * 2, end + recordSize));
+		}
+		record = end;
+		records.putShort(record + USER_LENGTH, (short) length);
+		for (int i = 0; i < length; i++) {
+			records.put(record + USER + i, user[offset + i]);
+		}
+		write(record + USER + length, salt, digest);
+		end += recordSize;
+
+		int mask = capacity - 1;
+		int slot = start(hash);
+		while (slots.getInt(slot * SLOT_SIZE + RECORD) != EMPTY) {
+			slot = (slot + 1) & mask;
+		}
+		slots.putInt(slot * SLOT_SIZE + HASH, hash);
+		slots.putInt(slot * SLOT_SIZE + RECORD, record + 1);
+		size++;
+	}
+
+	/**
+	 * Feeds the salt in record to digest.
+	 *
+	 * @param record Offset of a record, as find() returns it.
+	 *
+	 * @param digest Digest to update.
+	 */
+	public void salt(int record, MessageDigest digest) {
+		int salt = record + USER + userLength(record);
+		for (int i = 0; i < SALT_SIZE; i++) {
+			digest.update(records.get(salt + i));
+		}
+	}
+
+	/**
+	 * Compares digest with the digest in record, taking the same time
+	 * whether or not, and wherever, they differ.
+	 *
+	 * @param record Offset of a record, as find() returns it.
+	 *
+	 * @param digest Digest of the salt and a password given by a client.
+	 *
+	 * @return True if digest is the digest in record.
+	 */
+	public boolean digestEquals(int record, byte[] digest) {
+		if (digest.length != DIGEST_SIZE) {
+			return false;
+		}
+		int stored = record + USER + userLength(record) + SALT_SIZE;
+		int difference = 0;
+		for (int i = 0; i < DIGEST_SIZE; i++) {
+			difference |= records.get(stored + i) ^ digest[i];
+		}
+		return difference == 0;
+	}
+
+	/**
+	 * @return Number of users in the index.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private int find(byte[] user, int offset, int length, int hash) {
+		int mask = capacity - 1;
+		for (int slot = start(hash); ; slot = (slot + 1) & mask) {
+			int record = slots.getInt(slot * SLOT_SIZE + RECORD);
+			if (record == EMPTY) {
+				return -1;
+			}
+			record--;
+			if (slots.getInt(slot * SLOT_SIZE + HASH) == hash
+					&& userEquals(record, user, offset, length)) {
+				return record;
+			}
+		}
+	}
+
+	private boolean userEquals(int record, byte[] user, int offset, int length) {
+		if (userLength(record) != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (records.get(record + USER + i) != user[offset + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int userLength(int record) {
+		return records.getShort(record + USER_LENGTH) & 0xffff;
+	}
+
+	private void write(int at, byte[] salt, byte[] digest) {
+		for (int i = 0; i < SALT_SIZE; i++) {
+			records.put(at + i, salt[i]);
+		}
+		for (int i = 0; i < DIGEST_SIZE; i++) {
+			records.put(at + SALT_SIZE + i, digest[i]);
+		}
+	}
+
+	private int start(int hash) {
+		// Fibonacci hashing, so that similar usernames spread out.
+		return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(
+				capacity));
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+	}
+
+	private void rehash(int newCapacity) {
+		ByteBuffer old = this.slots;
+		int oldCapacity = this.capacity;
+		allocate(newCapacity);
+		int mask = capacity - 1;
+		for (int i = 0; i < oldCapacity; i++) {
+			int record = old.getInt(i * SLOT_SIZE + RECORD);
+			if (record == EMPTY) {
+				continue;
+			}
+			int hash = old.getInt(i * SLOT_SIZE + HASH);
+			int slot = start(hash);
+			while (slots.getInt(slot * SLOT_SIZE + RECORD) != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots.putInt(slot * SLOT_SIZE + HASH, hash);
+			slots.putInt(slot * SLOT_SIZE + RECORD, record);
+		}
+	}
+
+	/**
+	 * @return Direct buffer of capacity bytes, starting with a copy of all
+	 * of source.
+	 */
+	private static ByteBuffer copyBuffer(ByteBuffer source, int capacity) {
+		ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+		ByteBuffer from = source.duplicate();
+		from.clear();
+		copy.put(from);
+		copy.clear();
+		return copy;
+	}
+}
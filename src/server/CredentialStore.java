@@ -0,0 +1,425 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ *
+ * Usernames and passwords of every user, loaded from a file of
+ * "username password" lines such as user_pass.txt. Passwords are not kept:
+ * each is replaced, as it is loaded, by a random salt and the SHA-256
+ * digest of the salt and password, held with the username in a
+ * CredentialIndex off the heap. A password given by a client is checked
+ * by digesting it with the same salt and comparing the digests in constant
+ * time. Checking a username that does not exist takes the same work.
+ *
+ * The file can be watched, and is reloaded when it changes. Lines appended
+ * to it are the common change, and only they are read and digested; any
+ * other change reloads the whole file. Either way the new users are added
+ * to a copy of the index, which then replaces the old one at once, so
+ * logins checked during a reload are never held up, and see either the
+ * old users or the new ones.
+ *
+ */
+public class CredentialStore {
+	// Quiet time after a change to the file before it is reloaded, so that
+	// a file being written is read once it has been written.
+	private static final long SETTLE_MILLIS = 100L;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_USER_LENGTH = 0xffff;
+
+	private final File file;
+	private final SecureRandom random = new SecureRandom();
+	// Salt checked against when a username does not exist, so that a
+	// missing user cannot be told apart by how quickly they are refused.
+	private final byte[] absentSalt = new byte[CredentialIndex.SALT_SIZE];
+	private final ThreadLocal<MessageDigest> digests =
+			new ThreadLocal<MessageDigest>() {
+				protected MessageDigest initialValue() {
+					return newDigest();
+				}
+			};
+	private volatile CredentialIndex index = new CredentialIndex();
+	// Bytes of the file up to the end of its last complete line when it
+	// was last loaded, and their checksum. Guarded by reloadLock.
+	private long loadedLength = 0L;
+	private long loadedChecksum = 0L;
+	private final ReentrantLock reloadLock = new ReentrantLock();
+
+	/**
+	 * Loads every user in file.
+	 *
+	 * @param file File of "username password" lines.
+	 *
+	 * @throws IOException If the file could not be read.
+	 */
+	public CredentialStore(File file) throws IOException {
+		this.file = file;
+		random.nextBytes(absentSalt);
+		reload();
+	}
+
+	/**
+	 * Checks a username and password. Never blocks, even while the file is
+	 * being reloaded.
+	 *
+	 * @param username Username given by a client.
+	 *
+	 * @param password Password given by a client.
+	 *
+	 * @return True if username is a user, and password is their password.
+	 */
+	public boolean check(String username, String password) {
+		CredentialIndex current = this.index;
+		int record = current.find(username.getBytes(UTF_8),
+				username.hashCode());
+		MessageDigest digest = digests.get();
+		if (record < 0) {
+			digest.update(absentSalt);
+		} else {
+			current.salt(record, digest);
+		}
+		byte[] given = digest.digest(password.getBytes(UTF_8));
+		return record >= 0 && current.digestEquals(record, given);
+	}
+
+	/**
+	 * @param username Username to look for.
+	 *
+	 * @return True if username is a user.
+	 */
+	public boolean contains(String username) {
+		return this.index.find(username.getBytes(UTF_8),
+				username.hashCode()) >= 0;
+	}
+
+	/**
+	 * @return Number of users.
+	 */
+	public int size() {
+		return this.index.size();
+	}
+
+	/**
+	 * Adds users that are not in the file, or changes their passwords.
+	 * They are kept until the file changes other than by having lines
+	 * appended to it.
+	 *
+	 * @param users Usernames and their passwords.
+	 */
+	public void add(Map<String, String> users) {
+		this.reloadLock.lock();
+		try {
+			CredentialIndex copy = new CredentialIndex(this.index);
+			MessageDigest digest = newDigest();
+			for (Map.Entry<String, String> user : users.entrySet()) {
+				byte[] username = user.getKey().getBytes(UTF_8);
+				byte[] password = user.getValue().getBytes(UTF_8);
+				put(copy, digest, username, 0, username.length,
+						password, 0, password.length);
+			}
+			this.index = copy;
+		} finally {
+			this.reloadLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the file again. If it has only had lines appended since it was
+	 * last read, only those lines are read.
+	 *
+	 * @return Number of lines read.
+	 *
+	 * @throws IOException If the file could not be read, in which case the
+	 * users are left as they were.
+	 */
+	public int reload() throws IOException {
+		this.reloadLock.lock();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				CRC32 checksum = new CRC32();
+				CredentialIndex updated;
+				long offset;
+				if (this.loadedLength > 0L
+						&& file.length() >= this.loadedLength
+						&& prefixUnchanged(in, checksum)) {
+					updated = new CredentialIndex(this.index);
+					offset = this.loadedLength;
+				} else {
+					in.close();
+					in = new FileInputStream(file);
+					checksum.reset();
+					updated = new CredentialIndex();
+					offset = 0L;
+				}
+				int lines = load(in, updated, checksum, offset);
+				this.index = updated;
+				return lines;
+			} finally {
+				in.close();
+			}
+		} finally {
+			this.reloadLock.unlock();
+		}
+	}
+
+	/**
+	 * Starts a daemon thread that reloads the file whenever it changes.
+	 *
+	 * @param verbose True if reloads should be logged.
+	 *
+	 * @throws IOException If the file's directory cannot be watched.
+	 */
+	public void watch(boolean verbose) throws IOException {
+		Path path = file.getAbsoluteFile().toPath();
+		WatchService watcher = FileSystems.getDefault().newWatchService();
+		path.getParent().register(watcher,
+				StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		Thread thread = new Thread(
+				new Watcher(watcher, path.getFileName(), verbose),
+				"CredentialWatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Reads lines from in, which is positioned offset bytes into the file,
+	 * and adds their users to index. Each complete line is added to
+	 * checksum, and loadedLength and loadedChecksum are updated to match.
+	 *
+	 * @return Number of lines read.
+	 */
+	private int load(
+			InputStream in,
+			CredentialIndex index,
+			CRC32 checksum,
+			long offset) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		// Start of a line that did not end in the last buffer read.
+		byte[] line = new byte[256];
+		int pending = 0;
+		int lines = 0;
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			int start = 0;
+			for (int i = 0; i < read; i++) {
+				if (buffer[i] != '\n') {
+					continue;
+				}
+				int length = i + 1 - start;
+				if (pending == 0) {
+					addLine(index, digest, buffer, start, i);
+					checksum.update(buffer, start, length);
+				} else {
+					line = append(line, pending, buffer, start, i + 1);
+					length += pending;
+					addLine(index, digest, line, 0, length - 1);
+					checksum.update(line, 0, length);
+					pending = 0;
+				}
+				offset += length;
+				lines++;
+				start = i + 1;
+			}
+			line = append(line, pending, buffer, start, read);
+			pending += read - start;
+		}
+		// The last line need not end in a newline. It is read, but is read
+		// again next time, in case it was still being written.
+		if (pending > 0) {
+			addLine(index, digest, line, 0, pending);
+			lines++;
+		}
+		this.loadedLength = offset;
+		this.loadedChecksum = checksum.getValue();
+		return lines;
+	}
+
+	/**
+	 * Reads the first loadedLength bytes of in into checksum.
+	 *
+	 * @return True if they are the bytes last loaded.
+	 */
+	private boolean prefixUnchanged(
+			InputStream in,
+			CRC32 checksum) throws IOException {
+		byte[] buffer = new byte[READ_BUFFER_SIZE];
+		long remaining = this.loadedLength;
+		while (remaining > 0L) {
+			int read = in.read(buffer, 0,
+					(int) Math.min(buffer.length, remaining));
+			if (read <= 0) {
+				return false;
+			}
+			checksum.update(buffer, 0, read);
+			remaining -= read;
+		}
+		return checksum.getValue() == this.loadedChecksum;
+	}
+
+	/**
+	 * Adds the user on the line between from and to, which holds a
+	 * username and password separated by a space. Malformed lines are
+	 * skipped.
+	 */
+	private void addLine(
+			CredentialIndex index,
+			MessageDigest digest,
+			byte[] line,
+			int from,
+			int to) {
+		if (to > from && line[to - 1] == '\r') {
+			to--;
+		}
+		int space = indexOf(line, from, to, (byte) ' ');
+		if (space <= from || space - from > MAX_USER_LENGTH) {
+			return;
+		}
+		int passwordEnd = indexOf(line, space + 1, to, (byte) ' ');
+		if (passwordEnd < 0) {
+			passwordEnd = to;
+		}
+		put(index, digest, line, from, space - from,
+				line, space + 1, passwordEnd - space - 1);
+	}
+
+	/**
+	 * Salts and digests a password, and puts it in index with its user.
+	 */
+	private void put(
+			CredentialIndex index,
+			MessageDigest digest,
+			byte[] user,
+			int userOffset,
+			int userLength,
+			byte[] password,
+			int passwordOffset,
+			int passwordLength) {
+		byte[] salt = new byte[CredentialIndex.SALT_SIZE];
+		random.nextBytes(salt);
+		digest.update(salt);
+		digest.update(password, passwordOffset, passwordLength);
+		int hash = new String(user, userOffset, userLength, UTF_8).hashCode();
+		index.put(user, userOffset, userLength, hash, salt, digest.digest());
+	}
+
+	private static int indexOf(byte[] bytes, int from, int to, byte value) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return line, or a larger copy of it, with the bytes of buffer from
+	 * from to to appended after its first length bytes.
+	 */
+	private static byte[] append(
+			byte[] line,
+			int length,
+			byte[] buffer,
+			int from,
+			int to) {
+		int needed = length + to - from;
+		if (needed > line.length) {
+			byte[] larger = new byte[Math.max(needed, line.length * 2)];
+			System.arraycopy(line, 0, larger, 0, length);
+			line = larger;
+		}
+		System.arraycopy(buffer, from, line, length, to - from);
+		return line;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Waits for changes to the file, and reloads it after each.
+	 */
+	private final class Watcher implements Runnable {
+		private final WatchService watcher;
+		private final Path name;
+		private final boolean verbose;
+
+		Watcher(WatchService watcher, Path name, boolean verbose) {
+			this.watcher = watcher;
+			this.name = name;
+			this.verbose = verbose;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					if (!changed(watcher.take())) {
+						continue;
+					}
+					// Let the writer finish, and take the rest of its
+					// changes with this one.
+					Thread.sleep(SETTLE_MILLIS);
+					WatchKey more;
+					while ((more = watcher.poll()) != null) {
+						changed(more);
+					}
+					try {
+						int lines = reload();
+						if (verbose)
+							System.out.println("CredentialStore: Reloaded " +
+									lines + " line(s) of " + file + "; " +
+									size() + " user(s).");
+					} catch (IOException e) {
+						System.err.println("The server could not reload " +
+								"the users in " + file + ". The users " +
+								"already loaded are kept.");
+						e.printStackTrace();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+		}
+
+		/**
+		 * @return True if any of key's events are for the file.
+		 */
+		private boolean changed(WatchKey key) {
+			boolean changed = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (name.equals(event.context())) {
+					changed = true;
+				}
+			}
+			key.reset();
+			return changed;
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * A single thread that multiplexes many client connections over one Selector.
+ * Each connection is represented by a NioConnection, whose ServerThread runs
+ * the same authenticate and process logic as in thread-per-connection mode,
+ * but is driven one line at a time from this loop instead of from a blocking
+ * readLine().
+ *
+ * Other threads never touch the Selector directly: new channels and requests
+ * to write are queued and picked up the next time the loop wakes up.
+ * Writes of messages from other clients may instead be delayed by the
+ * outbound queues' coalescing window, and are made once it has passed.
+ *
+ */
+public class EventLoop implements Runnable {
+	private static final int READ_BUFFER_SIZE = 16384;
+	private static final int WRITE_BATCH_SIZE = 64;
+	private static final ThreadLocal<EventLoop> CURRENT =
+			new ThreadLocal<EventLoop>();
+
+	private Selector selector;
+	private Server rootServer;
+	private boolean verbose;
+	private ConcurrentLinkedQueue<SocketChannel> pendingChannels =
+			new ConcurrentLinkedQueue<SocketChannel>();
+	private ConcurrentLinkedQueue<NioConnection> pendingWrites =
+			new ConcurrentLinkedQueue<NioConnection>();
+	// Every connection's window is the same length, so these are in order
+	// of deadline.
+	private ConcurrentLinkedQueue<DelayedWrite> delayedWrites =
+			new ConcurrentLinkedQueue<DelayedWrite>();
+
+	// Shared by every connection on this loop; only partial lines are kept
+	// per connection.
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+	// Also shared: messages gathered into one write by NioConnection.write().
+	private ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+
+	public EventLoop(Server rootServer, boolean verbose) throws IOException {
+		this.selector = Selector.open();
+		this.rootServer = rootServer;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Hands a newly accepted channel to this loop. Safe to call from any
+	 * thread.
+	 *
+	 * @param channel Channel returned by ServerSocketChannel.accept()
+	 */
+	public void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the loop to flush connection's queued output. Safe to call from
+	 * any thread.
+	 *
+	 * @param connection Connection with output waiting to be written.
+	 */
+	public void requestWrite(NioConnection connection) {
+		pendingWrites.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Asks the loop to flush connection's queued output once delayNanos
+	 * have passed, so that messages queued in the meantime are written with
+	 * it. Safe to call from any thread.
+	 *
+	 * @param connection Connection with output waiting to be written.
+	 *
+	 * @param delayNanos How long to wait before writing.
+	 */
+	public void requestDelayedWrite(NioConnection connection, long delayNanos) {
+		delayedWrites.add(new DelayedWrite(
+				connection, System.nanoTime() + delayNanos));
+		if (CURRENT.get() != this) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * @return Array that a NioConnection may fill with queued messages to
+	 * write them in one gathering write. Only for use on this loop's thread.
+	 */
+	public ByteBuffer[] getWriteBatch() {
+		return this.writeBatch;
+	}
+
+	/**
+	 * @return True if the calling thread is running an EventLoop, and so
+	 * must never block.
+	 */
+	public static boolean inEventLoop() {
+		return CURRENT.get() != null;
+	}
+
+	public void run() {
+		CURRENT.set(this);
+		while (true) {
+			try {
+				long timeout = flushDelayedWrites();
+				if (timeout > 0L) {
+					selector.select(timeout);
+				} else {
+					selector.select();
+				}
+				registerPendingChannels();
+				flushPendingWrites();
+
+				Iterator<SelectionKey> keys =
+						selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection =
+							(NioConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							readBuffer.clear();
+							connection.read(readBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (CancelledKeyException e) {
+						connection.closeNow();
+					} catch (IOException e) {
+						if (verbose)
+							System.out.println("EventLoop: Lost connection " +
+									"to client: " + e.getMessage());
+						connection.closeNow();
+					} catch (RuntimeException e) {
+						// Only this client is lost, not the whole loop.
+						System.err.println("There was an error handling " +
+								"a client's input.");
+						e.printStackTrace();
+						connection.closeNow();
+					}
+				}
+			} catch (IOException e) {
+				System.err.println("There was an error in the event loop's " +
+						"selector.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Registers channels accepted since the last iteration, and starts
+	 * authenticating each of their clients.
+	 */
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector,
+						SelectionKey.OP_READ);
+				NioConnection connection = new NioConnection(
+						channel,
+						key,
+						this,
+						rootServer.newOutboundQueue(),
+						new OutboundCompressor(rootServer.getMetrics()));
+				key.attach(connection);
+
+				if (verbose)
+					System.out.println("EventLoop: Creating new session to " +
+							"serve client.");
+				ServerThread session = new ServerThread(
+						connection,
+						null,
+						rootServer,
+						rootServer.getTimeOut(),
+						verbose);
+				connection.setSession(session);
+				session.start();
+			} catch (IOException e) {
+				System.err.println("There was an error registering a new " +
+						"client with the event loop.");
+				e.printStackTrace();
+				try {
+					channel.close();
+				} catch (IOException e1) {
+					e1.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes as much queued output as each requesting connection's socket
+	 * will accept without blocking.
+	 */
+	private void flushPendingWrites() {
+		NioConnection connection;
+		while ((connection = pendingWrites.poll()) != null) {
+			write(connection);
+		}
+	}
+
+	/**
+	 * Writes the output of every connection whose coalescing window has
+	 * passed.
+	 *
+	 * @return Milliseconds until the next window passes, or 0 if no writes
+	 * are delayed.
+	 */
+	private long flushDelayedWrites() {
+		DelayedWrite delayed;
+		while ((delayed = delayedWrites.peek()) != null) {
+			long remaining = delayed.deadline - System.nanoTime();
+			if (remaining > 0L) {
+				// The selector only times out in whole milliseconds.
+				return Math.max(1L, TimeUnit.NANOSECONDS.toMillis(
+						remaining + TimeUnit.MILLISECONDS.toNanos(1L) - 1L));
+			}
+			delayedWrites.poll();
+			write(delayed.connection);
+		}
+		return 0L;
+	}
+
+	private void write(NioConnection connection) {
+		try {
+			connection.write();
+		} catch (CancelledKeyException e) {
+			connection.closeNow();
+		} catch (IOException e) {
+			if (verbose)
+				System.out.println("EventLoop: Lost connection to " +
+						"client: " + e.getMessage());
+			connection.closeNow();
+		}
+	}
+
+	/**
+	 *
+	 * A connection whose output is to be written once deadline, in
+	 * System.nanoTime() terms, has passed.
+	 *
+	 */
+	private static final class DelayedWrite {
+		private final NioConnection connection;
+		private final long deadline;
+
+		private DelayedWrite(NioConnection connection, long deadline) {
+			this.connection = connection;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * Alternative to the thread-per-connection accept loop in Server.main. The
+ * EventLoopServer accepts connections on the root server's channel and hands
+ * each one to one of a small, fixed set of EventLoops, which multiplex all of
+ * their connections over a single Selector. An idle client therefore costs a
+ * few buffers rather than a blocked thread and its stack.
+ *
+ */
+public class EventLoopServer implements Runnable {
+	private ServerSocketChannel serverChannel;
+	private EventLoop[] eventLoops;
+	private boolean verbose;
+
+	/**
+	 * Opens numLoops event loops for the connections accepted on rootServer.
+	 *
+	 * @param rootServer Server whose channel is accepted from, and whose
+	 * shared state every connection's ServerThread uses.
+	 *
+	 * @param numLoops Number of event loop threads. Values less than one
+	 * are treated as one.
+	 *
+	 * @param verbose Whether to print connection events to stdout.
+	 *
+	 * @throws IOException If a Selector could not be opened.
+	 */
+	public EventLoopServer(Server rootServer, int numLoops, boolean verbose)
+			throws IOException {
+		this.serverChannel = rootServer.getServerChannel();
+		this.verbose = verbose;
+		this.eventLoops = new EventLoop[Math.max(1, numLoops)];
+		for (int i = 0; i < this.eventLoops.length; i++) {
+			this.eventLoops[i] = new EventLoop(rootServer, verbose);
+		}
+	}
+
+	/**
+	 * Starts every event loop, then accepts connections forever, assigning
+	 * them to the event loops in round-robin order.
+	 */
+	public void run() {
+		for (int i = 0; i < eventLoops.length; i++) {
+			Thread loopThread = new Thread(eventLoops[i], "EventLoop-" + i);
+			loopThread.start();
+		}
+		if (verbose)
+			System.out.println("EventLoopServer: Started " +
+					eventLoops.length + " event loop(s).");
+
+		int next = 0;
+		while (true) {
+			try {
+				if (verbose)
+					System.out.println("EventLoopServer: Waiting for client " +
+							"to connect.");
+
+				// The acceptor is the only thread that blocks.
+				SocketChannel clientChannel = serverChannel.accept();
+
+				if (verbose)
+					System.out.println("EventLoopServer: Received request " +
+							"to connect.");
+
+				eventLoops[next].register(clientChannel);
+				next = (next + 1) % eventLoops.length;
+			} catch (IOException e) {
+				System.err.println("There was an error in the client/server "
+						+ "communication.");
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import protocol.Frame;
+
+/**
+ *
+ * ResponseWriter for clients that asked for binary framing. Every message
+ * is written as a protocol.Frame of the matching type, so the client can
+ * dispatch on the type byte rather than on the text.
+ *
+ */
+public class FrameResponseWriter extends ResponseWriter {
+	private static final int MAX_RETAINED_CAPACITY = 1024;
+
+	private ClientConnection connection;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/**
+	 * @param connection Connection to the client.
+	 */
+	public FrameResponseWriter(ClientConnection connection) {
+		this.connection = connection;
+	}
+
+	public void prompt(String prompt) {
+		new Frame(Frame.PROMPT, prompt.trim()).writeTo(pending);
+	}
+
+	public void notice(String text) {
+		new Frame(Frame.NOTICE, text).writeTo(pending);
+	}
+
+	public void broadcast(String sender, String message) {
+		new Frame(Frame.BROADCAST, sender, message).writeTo(pending);
+	}
+
+	public void disconnect(String reason) {
+		new Frame(Frame.DISCONNECT, reason).writeTo(pending);
+	}
+
+	public ByteBuffer encodeDelivery(
+			byte type,
+			String sender,
+			String message) {
+		return encode(type, sender, message);
+	}
+
+	public ByteBuffer encodeDisconnect(String reason) {
+		return new Frame(Frame.DISCONNECT, reason).encode();
+	}
+
+	public ByteBuffer encodeNotice(String text) {
+		return new Frame(Frame.NOTICE, text).encode();
+	}
+
+	/**
+	 * Encodes a message from another client as one frame. Unlike a text
+	 * client, a framed client is not prompted again after it: a PROMPT only
+	 * ever answers the client's own input.
+	 *
+	 * @param type Frame.MESSAGE or Frame.BROADCAST.
+	 *
+	 * @param sender Username of the sending client.
+	 *
+	 * @param message Message sent.
+	 *
+	 * @return Buffer holding the encoded frame, ready to be read.
+	 */
+	public static ByteBuffer encode(byte type, String sender, String message) {
+		return new Frame(type, sender, message).encode();
+	}
+
+	public void flush() {
+		if (pending.size() == 0) {
+			return;
+		}
+		connection.reply(ByteBuffer.wrap(pending.toByteArray()));
+		if (pending.size() > MAX_RETAINED_CAPACITY) {
+			pending = new ByteArrayOutputStream();
+		} else {
+			pending.reset();
+		}
+	}
+
+	public void close() {
+		flush();
+		connection.close();
+	}
+}
@@ -0,0 +1,206 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Hostnames of client addresses, resolved by reverse DNS in the
+ * background. A lookup never waits on DNS: it returns the cached name, or
+ * null if there is none yet, and schedules a resolution if the name is
+ * missing or older than its time to live. Resolutions run on a small pool
+ * of daemon threads with a bounded queue; when the queue is full they are
+ * dropped and retried on a later lookup.
+ *
+ * The cache holds a bounded number of addresses. When it is full, an
+ * expired entry, or failing that any resolved one, from a small sample
+ * makes way for a new address.
+ *
+ */
+public class HostnameCache {
+	private static final int RESOLVER_THREADS = 2;
+	private static final int RESOLVER_QUEUE = 256;
+	// Entries looked at for one to evict, so that making room costs the
+	// same however large the cache is.
+	private static final int EVICTION_SAMPLE = 8;
+
+	/**
+	 * Resolves an address to a hostname. Implemented by reverse DNS, or by
+	 * a stub for testing.
+	 */
+	public interface Resolver {
+
+		/**
+		 * @param address Address to resolve.
+		 *
+		 * @return Hostname of address, or its numeric form if it has none.
+		 */
+		String resolve(InetAddress address);
+	}
+
+	/**
+	 * Resolves addresses with InetAddress.getCanonicalHostName().
+	 */
+	public static final Resolver DNS = new Resolver() {
+		public String resolve(InetAddress address) {
+			return address.getCanonicalHostName();
+		}
+	};
+
+	private final ConcurrentHashMap<String, Entry> entries =
+			new ConcurrentHashMap<String, Entry>();
+	private final Resolver resolver;
+	private final long ttlNanos;
+	private final int capacity;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param resolver Resolver to look addresses up with.
+	 *
+	 * @param ttlMillis Time for which a resolved hostname is used before it
+	 * is resolved again.
+	 *
+	 * @param capacity Largest number of addresses to hold.
+	 */
+	public HostnameCache(Resolver resolver, long ttlMillis, int capacity) {
+		this.resolver = resolver;
+		this.ttlNanos = Math.max(1L, ttlMillis) * 1000000L;
+		this.capacity = Math.max(1, capacity);
+		this.executor = new ThreadPoolExecutor(
+				RESOLVER_THREADS, RESOLVER_THREADS,
+				0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(RESOLVER_QUEUE),
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "HostnameResolver");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Returns the hostname of address if it has been resolved, and
+	 * resolves it in the background if it has not, or has expired. Never
+	 * blocks.
+	 *
+	 * @param address Client address.
+	 *
+	 * @return Hostname of address, possibly expired, or null if it has not
+	 * been resolved yet.
+	 */
+	public String lookup(InetAddress address) {
+		String key = address.getHostAddress();
+		Entry entry = entries.get(key);
+		long now = System.nanoTime();
+		if (entry == null) {
+			makeRoom(now);
+			Entry created = new Entry(null, now);
+			entry = entries.putIfAbsent(key, created);
+			if (entry == null) {
+				schedule(key, address, created);
+				return null;
+			}
+		}
+		if (now - entry.expires >= 0L && !entry.pending) {
+			Entry refreshing = new Entry(entry.hostname, entry.expires);
+			if (entries.replace(key, entry, refreshing)) {
+				schedule(key, address, refreshing);
+			}
+		}
+		return entry.hostname;
+	}
+
+	/**
+	 * @return Number of addresses held.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Resolves address on a resolver thread, replacing pending with the
+	 * result.
+	 */
+	private void schedule(
+			final String key,
+			final InetAddress address,
+			final Entry pending) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					String hostname;
+					try {
+						hostname = resolver.resolve(address);
+					} catch (RuntimeException e) {
+						hostname = null;
+					}
+					if (hostname == null) {
+						hostname = pending.hostname;
+					}
+					entries.replace(key, pending, new Entry(hostname,
+							System.nanoTime() + ttlNanos, false));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Too many waiting. Let a later lookup try again.
+			if (pending.hostname == null) {
+				entries.remove(key, pending);
+			} else {
+				entries.replace(key, pending,
+						new Entry(pending.hostname, pending.expires, false));
+			}
+		}
+	}
+
+	/**
+	 * Removes an entry if the cache is full, preferring one that has
+	 * expired.
+	 */
+	private void makeRoom(long now) {
+		if (entries.size() < capacity) {
+			return;
+		}
+		Iterator<Entry> values = entries.values().iterator();
+		Entry victim = null;
+		for (int i = 0; i < EVICTION_SAMPLE && values.hasNext(); i++) {
+			Entry entry = values.next();
+			if (!entry.pending && now - entry.expires >= 0L) {
+				values.remove();
+				return;
+			}
+			if (victim == null && !entry.pending) {
+				victim = entry;
+			}
+		}
+		if (victim != null) {
+			entries.values().remove(victim);
+		}
+	}
+
+	/**
+	 * Hostname of one address, and when it expires. An entry being
+	 * resolved is pending, so that only one resolution is scheduled at once.
+	 */
+	private static final class Entry {
+		private final String hostname;
+		private final long expires;
+		private final boolean pending;
+
+		Entry(String hostname, long expires) {
+			this(hostname, expires, true);
+		}
+
+		Entry(String hostname, long expires, boolean pending) {
+			this.hostname = hostname;
+			this.expires = expires;
+			this.pending = pending;
+		}
+	}
+}
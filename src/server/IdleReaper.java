@@ -0,0 +1,185 @@
+package server;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ *
+ * Times out idle clients, however they are served, from one thread and
+ * without a timer per connection. Sessions are kept in a hashed timing
+ * wheel: a ring of slots, each a list of the sessions due to time out in
+ * one tick of the wheel's clock. Every tick the reaper visits one slot, so
+ * the cost of a tick depends only on the sessions due in it, never on how
+ * many clients are connected.
+ *
+ * A session's activity is not reported to the wheel. When a session comes
+ * due, the reaper reads the monotonic time of its last activity, and
+ * either times it out or moves it to the slot of its new deadline, so an
+ * active client costs one move per TIME_OUT rather than one per command.
+ * A session that disconnects is unlinked from its slot at the next tick,
+ * rather than held until it comes due.
+ *
+ */
+public class IdleReaper implements Runnable {
+	private static final int WHEEL_SIZE = 512;
+	private static final int MASK = WHEEL_SIZE - 1;
+
+	private final long tickNanos;
+	private final long startNanos = System.nanoTime();
+	private final Entry[] wheel = new Entry[WHEEL_SIZE];
+	// Sessions added and removed by other threads since the last tick.
+	private final ConcurrentLinkedQueue<ServerThread> added =
+			new ConcurrentLinkedQueue<ServerThread>();
+	private final ConcurrentLinkedQueue<ServerThread> removed =
+			new ConcurrentLinkedQueue<ServerThread>();
+	// Entry of each session in the wheel. Only used by the reaper's thread.
+	private final HashMap<ServerThread, Entry> entries =
+			new HashMap<ServerThread, Entry>();
+	private long tick = 0L;
+	private boolean verbose;
+
+	/**
+	 * @param tickMillis Length of one tick of the wheel, which is how late
+	 * a session may be timed out.
+	 *
+	 * @param verbose True if timeouts should be logged.
+	 */
+	public IdleReaper(long tickMillis, boolean verbose) {
+		this.tickNanos = Math.max(1L, tickMillis) * 1000000L;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Starts watching session for inactivity. Safe to call from any
+	 * thread. The session stays watched until it times out or disconnects.
+	 *
+	 * @param session Newly connected session.
+	 */
+	public void watch(ServerThread session) {
+		added.add(session);
+	}
+
+	/**
+	 * Stops watching session, which has disconnected. Safe to call from any
+	 * thread.
+	 *
+	 * @param session Session that has disconnected.
+	 */
+	public void forget(ServerThread session) {
+		removed.add(session);
+	}
+
+	/**
+	 * Advances the wheel one tick at a time, forever.
+	 */
+	public void run() {
+		while (true) {
+			long wait = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+			if (wait > 0L) {
+				try {
+					Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			tick++;
+			ServerThread session;
+			while ((session = added.poll()) != null) {
+				Entry entry = new Entry(session);
+				entries.put(session, entry);
+				schedule(entry, session.getIdleDeadline());
+			}
+			while ((session = removed.poll()) != null) {
+				Entry entry = entries.remove(session);
+				if (entry != null) {
+					unlink(entry);
+				}
+			}
+			expire(tick);
+		}
+	}
+
+	/**
+	 * Puts entry in the slot for the tick in which deadline falls, or the
+	 * next tick if that has passed.
+	 */
+	private void schedule(Entry entry, long deadline) {
+		long due = (deadline - startNanos + tickNanos - 1) / tickNanos;
+		entry.due = Math.max(due, tick + 1);
+		link(entry);
+	}
+
+	/**
+	 * Adds entry to the front of the slot for entry.due.
+	 */
+	private void link(Entry entry) {
+		int slot = (int) (entry.due & MASK);
+		entry.prev = null;
+		entry.next = wheel[slot];
+		if (entry.next != null) {
+			entry.next.prev = entry;
+		}
+		wheel[slot] = entry;
+	}
+
+	/**
+	 * Removes entry from the slot for entry.due.
+	 */
+	private void unlink(Entry entry) {
+		if (entry.prev != null) {
+			entry.prev.next = entry.next;
+		} else {
+			wheel[(int) (entry.due & MASK)] = entry.next;
+		}
+		if (entry.next != null) {
+			entry.next.prev = entry.prev;
+		}
+		entry.prev = null;
+		entry.next = null;
+	}
+
+	/**
+	 * Visits the slot for tick. Sessions due in a later turn of the wheel
+	 * are left in it; the rest are timed out, dropped if they have already
+	 * disconnected, or moved on if they have been active since.
+	 */
+	private void expire(long tick) {
+		int slot = (int) (tick & MASK);
+		Entry entry = wheel[slot];
+		wheel[slot] = null;
+		long now = System.nanoTime();
+		while (entry != null) {
+			Entry next = entry.next;
+			ServerThread session = entry.session;
+			if (entry.due > tick) {
+				link(entry);
+			} else if (session.isDisconnected()) {
+				entries.remove(session);
+			} else if (now - session.getIdleDeadline() >= 0L) {
+				if (verbose)
+					System.out.println("IdleReaper: Timing out an idle " +
+							"client.");
+				entries.remove(session);
+				session.timeOut();
+			} else {
+				schedule(entry, session.getIdleDeadline());
+			}
+			entry = next;
+		}
+	}
+
+	/**
+	 * One watched session, in a slot's list.
+	 */
+	private static final class Entry {
+		private final ServerThread session;
+		private long due;
+		private Entry prev;
+		private Entry next;
+
+		Entry(ServerThread session) {
+			this.session = session;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Histogram of durations, in nanoseconds, from which percentiles such as
+ * the 99th can be read while it is still being recorded to. Durations are
+ * counted in buckets whose width grows with the duration: each power of two
+ * is split into 16 buckets, so a percentile is reported to within 1/16th
+ * (about 6%) of the true value, however long the durations are, in a fixed
+ * 7.5 kilobytes.
+ *
+ * Recording takes no lock, so any number of threads can record to the same
+ * histogram.
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder totalNanos = new LongAdder();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * Counts one duration.
+	 *
+	 * @param nanos Duration in nanoseconds. Negative durations, which a
+	 * clock adjustment could produce, are counted as zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucket(nanos));
+		totalNanos.add(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get())) {
+			if (maxNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return Count, percentiles and maximum of the durations recorded so
+	 * far. Durations recorded while the summary is made may or may not be
+	 * included.
+	 */
+	public LatencySummary summarize() {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		long max = maxNanos.get();
+		return new LatencySummary(
+				count,
+				totalNanos.sum(),
+				percentile(counts, count, 0.5, max),
+				percentile(counts, count, 0.99, max),
+				percentile(counts, count, 0.999, max),
+				max);
+	}
+
+	/**
+	 * @return Upper bound of the bucket holding the duration at quantile,
+	 * or max if that is lower.
+	 */
+	private static long percentile(
+			long[] counts,
+			long count,
+			double quantile,
+			long max) {
+		if (count == 0) {
+			return 0L;
+		}
+		long rank = (long) Math.ceil(quantile * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * @return Bucket that counts nanos. Durations below SUB_BUCKETS each
+	 * have a bucket of their own; above that, the highest set bit picks a
+	 * power of two, and the SUB_BUCKET_BITS below it a bucket within it.
+	 */
+	static int bucket(long nanos) {
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS
+				+ (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return Longest duration counted by bucket.
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
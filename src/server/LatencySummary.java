@@ -0,0 +1,78 @@
+package server;
+
+import java.beans.ConstructorProperties;
+
+/**
+ *
+ * Count, percentiles and maximum of the durations in a LatencyHistogram at
+ * one moment. Durations are in nanoseconds. Summaries are exported through
+ * JMX as composite data, one attribute per getter.
+ *
+ */
+public final class LatencySummary {
+	private final long count;
+	private final long totalNanos;
+	private final long p50Nanos;
+	private final long p99Nanos;
+	private final long p999Nanos;
+	private final long maxNanos;
+
+	@ConstructorProperties({ "count", "totalNanos", "p50Nanos", "p99Nanos",
+			"p999Nanos", "maxNanos" })
+	public LatencySummary(
+			long count,
+			long totalNanos,
+			long p50Nanos,
+			long p99Nanos,
+			long p999Nanos,
+			long maxNanos) {
+		this.count = count;
+		this.totalNanos = totalNanos;
+		this.p50Nanos = p50Nanos;
+		this.p99Nanos = p99Nanos;
+		this.p999Nanos = p999Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	/**
+	 * @return Number of durations recorded.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return Sum of the durations recorded.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * @return Median duration.
+	 */
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	/**
+	 * @return Duration that 99% of durations were no longer than.
+	 */
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	/**
+	 * @return Duration that 99.9% of durations were no longer than.
+	 */
+	public long getP999Nanos() {
+		return p999Nanos;
+	}
+
+	/**
+	 * @return Longest duration recorded.
+	 */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+}
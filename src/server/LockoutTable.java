@@ -0,0 +1,204 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Usernames locked out at an address after too many failed logins, each
+ * for a fixed duration. Looking a lockout up reads a ConcurrentHashMap and
+ * the monotonic clock, and never takes a lock, so logins from different
+ * addresses never wait on each other.
+ *
+ * Lockouts expire by themselves. Each one is also filed in a ring of time
+ * buckets by the moment it ends, and whenever a lockout is added, the
+ * buckets whose time has passed are emptied out of the map, so the table
+ * holds only live lockouts however many addresses have ever failed to log
+ * in. Its size is capped as well: if a burst of failures from many
+ * addresses fills it, the lockouts nearest to ending are dropped early to
+ * make room.
+ *
+ */
+public class LockoutTable {
+	private static final int BUCKETS = 64;
+
+	private final ConcurrentHashMap<String, Lockout> lockouts =
+			new ConcurrentHashMap<String, Lockout>();
+	private final Bucket[] buckets = new Bucket[BUCKETS];
+	private final long durationNanos;
+	private final long bucketNanos;
+	private final long originNanos = System.nanoTime();
+	// Every bucket up to and including this one has been emptied.
+	private long swept = 0L;
+	private volatile int capacity;
+	// Taken only to add lockouts, which happens once per few failed logins.
+	private final ReentrantLock addLock = new ReentrantLock();
+
+	/**
+	 * @param durationMillis Time for which a username stays locked out.
+	 *
+	 * @param capacity Largest number of lockouts to hold at once.
+	 */
+	public LockoutTable(long durationMillis, int capacity) {
+		this.durationNanos = Math.max(0L, durationMillis) * 1000000L;
+		// Leave spare buckets so that a lockout never lands in a bucket
+		// that is still waiting to be emptied from the last turn.
+		this.bucketNanos = Math.max(1000000L, durationNanos / (BUCKETS - 4));
+		this.capacity = Math.max(1, capacity);
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Locks username out at address for the table's duration, starting now.
+	 *
+	 * @param address Address the failed logins came from.
+	 *
+	 * @param username Username they were for.
+	 */
+	public void lock(String address, String username) {
+		if (durationNanos == 0L) {
+			return;
+		}
+		long now = System.nanoTime();
+		Lockout lockout = new Lockout(key(address, username),
+				now + durationNanos);
+		addLock.lock();
+		try {
+			sweep(epoch(now));
+			while (lockouts.size() >= capacity) {
+				if (!evictOne()) {
+					break;
+				}
+			}
+			lockouts.put(lockout.key, lockout);
+			buckets[(int) (bucketOf(lockout.until) % BUCKETS)].entries
+					.add(lockout);
+		} finally {
+			addLock.unlock();
+		}
+	}
+
+	/**
+	 * @param address Address a login is coming from.
+	 *
+	 * @param username Username it is for.
+	 *
+	 * @return True if username is still locked out at address.
+	 */
+	public boolean isLocked(String address, String username) {
+		Lockout lockout = lockouts.get(key(address, username));
+		if (lockout == null) {
+			return false;
+		}
+		if (System.nanoTime() - lockout.until < 0L) {
+			return true;
+		}
+		lockouts.remove(lockout.key, lockout);
+		return false;
+	}
+
+	/**
+	 * @return Number of lockouts held, which may include some that have
+	 * ended but not yet been swept.
+	 */
+	public int size() {
+		return lockouts.size();
+	}
+
+	/**
+	 * Sets the largest number of lockouts to hold at once. Takes effect
+	 * from the next lockout added.
+	 *
+	 * @param capacity Largest number of lockouts.
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * @return Largest number of lockouts held at once.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private static String key(String address, String username) {
+		return address + ' ' + username;
+	}
+
+	private long epoch(long nanos) {
+		return (nanos - originNanos) / bucketNanos;
+	}
+
+	/**
+	 * @return Bucket for a lockout ending at until: the first bucket that
+	 * is emptied once until has passed.
+	 */
+	private long bucketOf(long until) {
+		return epoch(until) + 1L;
+	}
+
+	/**
+	 * Empties every bucket whose lockouts have all ended by epoch. Called
+	 * with addLock held.
+	 */
+	private void sweep(long epoch) {
+		long last = Math.min(epoch, swept + BUCKETS);
+		for (long bucket = swept + 1L; bucket <= last; bucket++) {
+			drain(buckets[(int) (bucket % BUCKETS)]);
+		}
+		if (epoch > swept) {
+			swept = epoch;
+		}
+	}
+
+	private void drain(Bucket bucket) {
+		Lockout lockout;
+		while ((lockout = bucket.entries.poll()) != null) {
+			// Leaves the key alone if it has been locked out again since.
+			lockouts.remove(lockout.key, lockout);
+		}
+	}
+
+	/**
+	 * Drops the lockout nearest to ending. Called with addLock held.
+	 *
+	 * @return False if there was none to drop.
+	 */
+	private boolean evictOne() {
+		for (long bucket = swept + 1L; bucket <= swept + BUCKETS; bucket++) {
+			Lockout lockout;
+			Bucket oldest = buckets[(int) (bucket % BUCKETS)];
+			while ((lockout = oldest.entries.poll()) != null) {
+				if (lockouts.remove(lockout.key, lockout)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * One username locked out at one address, until the given time.
+	 */
+	private static final class Lockout {
+		private final String key;
+		private final long until;
+
+		Lockout(String key, long until) {
+			this.key = key;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * Lockouts that end within the same stretch of time, oldest first. Only
+	 * used with addLock held.
+	 */
+	private static final class Bucket {
+		private final ArrayDeque<Lockout> entries = new ArrayDeque<Lockout>();
+	}
+}
@@ -0,0 +1,87 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+
+/**
+ *
+ * Serves a Server's metrics as plain text over HTTP, on a port bound to the
+ * loopback address only, so that they can be scraped by a local agent such
+ * as Prometheus, or read with curl. Every request, whatever its path, is
+ * answered with ServerMetrics.render() and the connection is closed.
+ *
+ * Requests are served one at a time on the endpoint's own thread, which
+ * never touches a client connection.
+ *
+ */
+public class MetricsEndpoint implements Runnable {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	// Longest time a scraper may take to send its request.
+	private static final int READ_TIMEOUT_MILLIS = 2000;
+
+	private ServerSocket serverSocket;
+	private ServerMetrics metrics;
+	private boolean verbose;
+
+	/**
+	 * Binds the endpoint's port.
+	 *
+	 * @param port Port to serve metrics on, on the loopback address.
+	 *
+	 * @param metrics Metrics to serve.
+	 *
+	 * @param verbose True if requests should be logged.
+	 *
+	 * @throws IOException If the port could not be bound.
+	 */
+	public MetricsEndpoint(int port, ServerMetrics metrics, boolean verbose)
+			throws IOException {
+		this.serverSocket = new ServerSocket(
+				port, 50, InetAddress.getLoopbackAddress());
+		this.metrics = metrics;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Answers requests forever.
+	 */
+	public void run() {
+		while (true) {
+			try (Socket socket = serverSocket.accept()) {
+				if (verbose)
+					System.out.println("MetricsEndpoint: Serving metrics.");
+				serve(socket);
+			} catch (IOException e) {
+				System.err.println("There was an error serving metrics.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+		BufferedReader in = new BufferedReader(
+				new InputStreamReader(socket.getInputStream(), UTF_8));
+		// Skips the request line and headers; every request gets the same
+		// answer.
+		String line;
+		while ((line = in.readLine()) != null && line.length() > 0) {
+		}
+
+		byte[] body = metrics.render().getBytes(UTF_8);
+		String header = "HTTP/1.0 200 OK\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + body.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		OutputStream out = socket.getOutputStream();
+		out.write(header.getBytes(UTF_8));
+		out.write(body);
+		out.flush();
+	}
+}
@@ -0,0 +1,272 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * State kept by an EventLoop for one client: the channel, the bytes of a
+ * line that has only partly arrived, and output waiting for the socket to
+ * become writable. Complete lines are passed to the connection's
+ * ServerThread, exactly as readLine() would have returned them.
+ *
+ * Messages from other clients are written after the outbound queue's
+ * coalescing window, if it has one, so that a burst of broadcasts costs one
+ * write; responses to the client's own commands are written straight away.
+ *
+ * All methods other than send(), close() and getQueuedMessages() must only
+ * be called from the owning EventLoop's thread.
+ *
+ */
+public class NioConnection implements ClientConnection {
+	private static final int INITIAL_LINE_CAPACITY = 128;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private EventLoop eventLoop;
+	private ServerThread session;
+	private Charset charset = Charset.defaultCharset();
+	private byte[] line = new byte[INITIAL_LINE_CAPACITY];
+	private int lineLength = 0;
+	private OutboundQueue outbound;
+	private OutboundCompressor compressor;
+	// Messages taken from outbound, but not yet completely written.
+	private ByteBuffer[] unwritten;
+	private AtomicBoolean writeRequested = new AtomicBoolean(false);
+	private AtomicBoolean writeDelayed = new AtomicBoolean(false);
+	private volatile boolean closing = false;
+	private volatile boolean aborting = false;
+	private boolean closed = false;
+
+	public NioConnection(
+			SocketChannel channel,
+			SelectionKey key,
+			EventLoop eventLoop,
+			OutboundQueue outbound,
+			OutboundCompressor compressor) {
+		this.channel = channel;
+		this.key = key;
+		this.eventLoop = eventLoop;
+		this.outbound = outbound;
+		this.compressor = compressor;
+	}
+
+	public void setSession(ServerThread session) {
+		this.session = session;
+	}
+
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	public Socket getSocket() {
+		return this.channel.socket();
+	}
+
+	public int getQueuedMessages() {
+		return outbound.size();
+	}
+
+	/**
+	 * Reads whatever the client has sent, and passes every complete line to
+	 * the session. Lines end in "\n" or "\r\n", as with readLine(). A
+	 * client that sends more than ServerThread.MAX_LINE_LENGTH bytes without
+	 * ending the line is disconnected, rather than the line being buffered
+	 * without limit.
+	 *
+	 * @param buffer Empty buffer to read into.
+	 *
+	 * @throws IOException If the channel could not be read.
+	 */
+	public void read(ByteBuffer buffer) throws IOException {
+		int numRead = channel.read(buffer);
+		if (numRead == -1) {
+			closeNow();
+			return;
+		}
+
+		buffer.flip();
+		while (buffer.hasRemaining() && !closing) {
+			byte b = buffer.get();
+			if (b == '\n') {
+				int length = lineLength;
+				if (length > 0 && line[length - 1] == '\r') {
+					length--;
+				}
+				String input = new String(line, 0, length, charset);
+				lineLength = 0;
+				session.receive(input);
+			} else if (lineLength == ServerThread.MAX_LINE_LENGTH) {
+				lineLength = 0;
+				session.lineTooLong();
+			} else {
+				if (lineLength == line.length) {
+					line = Arrays.copyOf(line, Math.min(
+							line.length * 2, ServerThread.MAX_LINE_LENGTH));
+				}
+				line[lineLength++] = b;
+			}
+		}
+
+		// Don't let one long line pin a large buffer for the session's life.
+		if (lineLength == 0 && line.length > INITIAL_LINE_CAPACITY) {
+			line = new byte[INITIAL_LINE_CAPACITY];
+		}
+
+		// Stop reading commands from a client that is not reading the
+		// responses, until write() has made room for more.
+		if (!closed && outbound.isFull()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+	}
+
+	/**
+	 * Queues message to be written to the client. Safe to call from any
+	 * thread, but a sender on an EventLoop thread is never made to wait for
+	 * room in the queue.
+	 *
+	 * @param message Bytes to send.
+	 *
+	 * @return True if the message was queued.
+	 */
+	public boolean send(ByteBuffer message, boolean mayWait) {
+		if (closing) {
+			return false;
+		}
+		boolean queued = outbound.offer(
+				message, mayWait && !EventLoop.inEventLoop());
+		if (!queued && outbound.isOverflowed()) {
+			// The client is not keeping up; drop it rather than the message.
+			aborting = true;
+			eventLoop.requestWrite(this);
+		} else if (queued && outbound.getCoalesceNanos() > 0L) {
+			if (writeDelayed.compareAndSet(false, true)) {
+				eventLoop.requestDelayedWrite(
+						this, outbound.getCoalesceNanos());
+			}
+		} else if (queued && writeRequested.compareAndSet(false, true)) {
+			eventLoop.requestWrite(this);
+		}
+		return queued;
+	}
+
+	/**
+	 * Queues the client's response to its own command. The response is
+	 * queued even if the queue is full; read() then stops reading from the
+	 * client until the queue has room again.
+	 *
+	 * @param message Bytes to send.
+	 *
+	 * @return True if the message was queued.
+	 */
+	public boolean reply(ByteBuffer message) {
+		boolean queued = outbound.put(message, false);
+		if (queued && writeRequested.compareAndSet(false, true)) {
+			eventLoop.requestWrite(this);
+		}
+		return queued;
+	}
+
+	/**
+	 * Writes queued output until it has all been written or the socket's
+	 * send buffer is full, in which case the loop is asked to call again
+	 * once the socket is writable.
+	 *
+	 * @throws IOException If the channel could not be written to.
+	 */
+	public void write() throws IOException {
+		if (closed) {
+			return;
+		}
+		if (aborting) {
+			closeNow();
+			return;
+		}
+		writeRequested.set(false);
+		writeDelayed.set(false);
+
+		ByteBuffer[] batch = eventLoop.getWriteBatch();
+		while (true) {
+			int count = 0;
+			if (unwritten != null) {
+				System.arraycopy(unwritten, 0, batch, 0, unwritten.length);
+				count = unwritten.length;
+				unwritten = null;
+			}
+			count += compressor.apply(
+					batch, count, outbound.drainTo(batch, count));
+			if (count == 0) {
+				break;
+			}
+
+			// Every queued message, even one shared with other recipients
+			// of a broadcast, goes out in a single system call.
+			channel.write(batch, 0, count);
+
+			int first = 0;
+			while (first < count && !batch[first].hasRemaining()) {
+				first++;
+			}
+			if (first < count) {
+				unwritten = Arrays.copyOfRange(batch, first, count);
+			}
+			Arrays.fill(batch, 0, count, null);
+
+			if (unwritten != null) {
+				if (outbound.isFull()) {
+					key.interestOps(SelectionKey.OP_WRITE);
+				} else {
+					key.interestOps(
+							SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				return;
+			}
+		}
+
+		if (closing) {
+			closeNow();
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Closes the connection once everything queued so far has been written.
+	 * Safe to call from any thread.
+	 */
+	public void close() {
+		closing = true;
+		outbound.close();
+		eventLoop.requestWrite(this);
+	}
+
+	/**
+	 * Closes the connection immediately, discarding any queued output, and
+	 * lets the session disconnect its client from the root server.
+	 */
+	public void closeNow() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closing = true;
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("There was an error closing resources after "
+					+ "the client disconnected.");
+			e.printStackTrace();
+		}
+		outbound.clear();
+		unwritten = null;
+		compressor.end();
+		session.disconnected();
+	}
+}
@@ -0,0 +1,174 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Open-addressing hash table, kept off the heap in a direct buffer, from
+ * each username with offline messages in an OfflineLog to the addresses of
+ * its newest and oldest messages and the number of messages it has
+ * waiting. Usernames themselves are not stored: a slot holds the
+ * username's hash, and a match is confirmed against the username in the
+ * newest message's record. A million recipients therefore cost around 48
+ * megabytes of native memory, and no heap at all.
+ *
+ * The index is not saved; OfflineLog rebuilds it by scanning its segments
+ * when it is opened. It is not thread safe, and is guarded by its log's
+ * lock.
+ *
+ */
+public class OfflineIndex {
+	private static final int SLOT_SIZE = 24;
+	private static final int HEAD = 0;
+	private static final int TAIL = 8;
+	private static final int HASH = 16;
+	private static final int COUNT = 20;
+	private static final long EMPTY = 0L;
+	private static final long DELETED = -1L;
+	private static final int MIN_CAPACITY = 1024;
+
+	private OfflineLog log;
+	private ByteBuffer slots;
+	private int capacity;
+	private int size = 0;
+	private int deleted = 0;
+
+	/**
+	 * @param log Log whose records the index points into.
+	 */
+	public OfflineIndex(OfflineLog log) {
+		this.log = log;
+		allocate(MIN_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+	}
+
+	/**
+	 * @param user Username, encoded as it is in the log.
+	 *
+	 * @param hash Hash of the username.
+	 *
+	 * @return Slot holding user, or -1 if user has no messages.
+	 */
+	public int find(byte[] user, int hash) {
+		int mask = capacity - 1;
+		for (int slot = start(hash); ; slot = (slot + 1) & mask) {
+			long head = head(slot);
+			if (head == EMPTY) {
+				return -1;
+			}
+			if (head != DELETED && slots.getInt(slot * SLOT_SIZE + HASH) == hash
+					&& log.userEquals(head, user)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Adds a username that is not in the index.
+	 *
+	 * @param hash Hash of the username.
+	 *
+	 * @param head Address of the username's newest message.
+	 *
+	 * @param tail Address of the username's oldest message.
+	 *
+	 * @param count Number of messages the username has waiting.
+	 */
+	public void insert(int hash, long head, long tail, int count) {
+		if ((size + deleted + 1) * 4L >= capacity * 3L) {
+			rehash(size * 2 >= capacity / 2 ? capacity * 2 : capacity);
+		}
+		int mask = capacity - 1;
+		int slot = start(hash);
+		while (head(slot) != EMPTY && head(slot) != DELETED) {
+			slot = (slot + 1) & mask;
+		}
+		if (head(slot) == DELETED) {
+			deleted--;
+		}
+		set(slot, head, count);
+		setTail(slot, tail);
+		slots.putInt(slot * SLOT_SIZE + HASH, hash);
+		size++;
+	}
+
+	/**
+	 * @return Address of the newest message of the username in slot.
+	 */
+	public long head(int slot) {
+		return slots.getLong(slot * SLOT_SIZE + HEAD);
+	}
+
+	/**
+	 * @return Address of the oldest message of the username in slot.
+	 */
+	public long tail(int slot) {
+		return slots.getLong(slot * SLOT_SIZE + TAIL);
+	}
+
+	/**
+	 * @return Number of messages waiting for the username in slot.
+	 */
+	public int count(int slot) {
+		return slots.getInt(slot * SLOT_SIZE + COUNT);
+	}
+
+	/**
+	 * Updates the username in slot after its oldest messages have been
+	 * delivered.
+	 */
+	public void setTail(int slot, long tail) {
+		slots.putLong(slot * SLOT_SIZE + TAIL, tail);
+	}
+
+	/**
+	 * Updates the username in slot after a message has been added for it.
+	 */
+	public void set(int slot, long head, int count) {
+		slots.putLong(slot * SLOT_SIZE + HEAD, head);
+		slots.putInt(slot * SLOT_SIZE + COUNT, count);
+	}
+
+	/**
+	 * Removes the username in slot, once it has no messages waiting.
+	 */
+	public void remove(int slot) {
+		set(slot, DELETED, 0);
+		size--;
+		deleted++;
+	}
+
+	/**
+	 * @return Number of usernames with messages waiting.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private int start(int hash) {
+		// Fibonacci hashing: the top bits of the product depend on every bit
+		// of the hash, including the low ones OfflineMessageStore shards by.
+		return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(
+				capacity));
+	}
+
+	private void rehash(int newCapacity) {
+		ByteBuffer old = this.slots;
+		int oldCapacity = this.capacity;
+		allocate(newCapacity);
+		size = 0;
+		deleted = 0;
+		for (int slot = 0; slot < oldCapacity; slot++) {
+			long head = old.getLong(slot * SLOT_SIZE + HEAD);
+			if (head != EMPTY && head != DELETED) {
+				insert(old.getInt(slot * SLOT_SIZE + HASH), head,
+						old.getLong(slot * SLOT_SIZE + TAIL),
+						old.getInt(slot * SLOT_SIZE + COUNT));
+			}
+		}
+	}
+}
@@ -0,0 +1,664 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * One shard of an OfflineMessageStore: an append-only log of offline
+ * messages, split into numbered segment files that are memory-mapped, and
+ * an OfflineIndex of who has messages waiting.
+ *
+ * Each record holds one message, and the addresses of the previous and
+ * next messages for the same recipient, so a recipient's messages form a
+ * chain that is delivered from the oldest forward, a page at a time if
+ * need be, without reading the rest. Delivered records are marked as such
+ * in place. A segment is deleted once nothing in it is
+ * waiting; one that is mostly delivered has the messages left in it copied
+ * forward to the newest segment first, each linked into its chain in place
+ * of the original, so that one recipient who never logs in again cannot
+ * pin a whole segment.
+ *
+ * A record is written before its length, and copies are written before
+ * the originals are marked delivered, so a record cut short by a crash is
+ * ignored when the log is reopened, and a message is never lost; at worst,
+ * one that was being delivered is delivered again. Chains are rebuilt from
+ * their links when the log is reopened, repairing any a crash left half
+ * written. A reopened log starts a new segment for its first append.
+ *
+ * Record layout: int length of the whole record (written last), byte
+ * state, long addresses of the previous and next records, short length of
+ * the username, the username, then the message, both in UTF-8.
+ *
+ */
+public class OfflineLog {
+	private static final int LENGTH = 0;
+	private static final int STATE = 4;
+	private static final int PREV = 5;
+	private static final int NEXT = 13;
+	private static final int USER_LENGTH = 21;
+	private static final int HEADER_SIZE = 23;
+	private static final byte LIVE = 0;
+	private static final byte DELIVERED = 1;
+	private static final int MAX_USER_LENGTH = 0xffff;
+	private static final String SUFFIX = ".log";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final File directory;
+	private final String prefix;
+	private final int segmentSize;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final TreeMap<Integer, Segment> segments =
+			new TreeMap<Integer, Segment>();
+	private final OfflineIndex index = new OfflineIndex(this);
+	private Segment active;
+	private int messages = 0;
+
+	/**
+	 * Opens the shard's segments in directory, creating the directory if
+	 * need be, and rebuilds the index from them.
+	 *
+	 * @param directory Directory holding the store.
+	 *
+	 * @param shard Number of the shard, which prefixes its file names.
+	 *
+	 * @param segmentSize Size in bytes of each new segment.
+	 *
+	 * @throws IOException If a segment could not be opened.
+	 */
+	public OfflineLog(File directory, int shard, int segmentSize)
+			throws IOException {
+		this.directory = directory;
+		this.prefix = "shard-" + shard + "-";
+		this.segmentSize = segmentSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create offline message "
+					+ "directory " + directory + ".");
+		}
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				int number = segmentNumber(file.getName());
+				if (number > 0) {
+					segments.put(number, map(number, file, file.length()));
+				}
+			}
+		}
+		// Segments found here are never appended to: anything after the last
+		// complete record in them may be left over from a record cut short,
+		// and must not end up looking like part of a new one.
+		LinkedHashMap<Long, Scanned> live = new LinkedHashMap<Long, Scanned>();
+		for (Segment segment : segments.values()) {
+			scan(segment, live);
+		}
+		rebuild(live);
+		compact(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Appends message for username.
+	 *
+	 * @throws IOException If a new segment was needed and could not be
+	 * created.
+	 */
+	public void append(String username, String message) throws IOException {
+		lock.lock();
+		try {
+			byte[] user = username.getBytes(UTF_8);
+			if (user.length > MAX_USER_LENGTH) {
+				throw new IOException("Username " + username + " is too "
+						+ "long to store offline messages for.");
+			}
+			int hash = username.hashCode();
+			int slot = index.find(user, hash);
+			long prev = slot < 0 ? 0L : index.head(slot);
+			long address = write(user, message.getBytes(UTF_8), prev, 0L);
+			if (slot < 0) {
+				index.insert(hash, address, address, 1);
+			} else {
+				setNext(prev, address);
+				index.set(slot, address, index.count(slot) + 1);
+			}
+			messages++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the oldest messages waiting for username. Only
+	 * the messages returned are read, so the lock is held for time in
+	 * proportion to max, however many messages are waiting. Segments left
+	 * mostly delivered are compacted later, by compact().
+	 *
+	 * @param max Largest number of messages to return.
+	 *
+	 * @return Messages, oldest first. Empty if there are none.
+	 */
+	public List<String> take(String username, int max) {
+		lock.lock();
+		try {
+			byte[] user = username.getBytes(UTF_8);
+			int slot = index.find(user, username.hashCode());
+			if (slot < 0) {
+				return new ArrayList<String>();
+			}
+			int count = index.count(slot);
+
+			List<String> messages = new ArrayList<String>(
+					Math.min(count, max));
+			long address = index.tail(slot);
+			while (address != 0L && messages.size() < max) {
+				messages.add(message(address));
+				long next = next(address);
+				markDelivered(address);
+				address = next;
+			}
+			if (address == 0L) {
+				index.remove(slot);
+			} else {
+				// The first message left is now the oldest.
+				setPrev(address, 0L);
+				index.setTail(slot, address);
+				index.set(slot, index.head(slot), count - messages.size());
+			}
+			this.messages -= messages.size();
+			return messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting for username.
+	 */
+	public int count(String username) {
+		lock.lock();
+		try {
+			int slot = index.find(
+					username.getBytes(UTF_8), username.hashCode());
+			return slot < 0 ? 0 : index.count(slot);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of usernames with messages waiting.
+	 */
+	public int recipients() {
+		lock.lock();
+		try {
+			return index.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting, for every username.
+	 */
+	public int messages() {
+		lock.lock();
+		try {
+			return this.messages;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Does one bounded step of compaction: deletes segments other than the
+	 * active one that have nothing left in them, after first moving the
+	 * messages left in any that are mostly delivered forward to the active
+	 * segment, at most max of them. Only the records in such a segment are
+	 * copied, so a message is copied once for each mostly delivered segment
+	 * it is left in, however many messages its recipient has elsewhere. The
+	 * lock is held for the step alone, so that messages can be stored and
+	 * delivered between steps.
+	 *
+	 * @param max Largest number of messages to move.
+	 *
+	 * @return True if there may be more to compact.
+	 *
+	 * @throws IOException If a new segment was needed and could not be
+	 * created.
+	 */
+	public boolean compact(int max) throws IOException {
+		lock.lock();
+		try {
+			int moved = 0;
+			for (Segment segment : new ArrayList<Segment>(segments.values())) {
+				if (segment == active) {
+					continue;
+				}
+				if (segment.liveBytes > 0
+						&& segment.liveBytes * 4L < segment.buffer.capacity()) {
+					ByteBuffer buffer = segment.buffer;
+					while (segment.compacted < segment.position && moved < max) {
+						int offset = segment.compacted;
+						if (buffer.get(offset + STATE) == LIVE) {
+							move(address(segment.number, offset));
+							moved++;
+						}
+						segment.compacted += buffer.getInt(offset + LENGTH);
+					}
+				}
+				if (segment.liveBytes == 0) {
+					segments.remove(segment.number);
+					if (!segment.file.delete()) {
+						System.err.println("Could not delete delivered offline "
+								+ "messages in " + segment.file + ".");
+					}
+				}
+				if (moved >= max) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes every segment's changes to disk.
+	 */
+	public void force() {
+		lock.lock();
+		try {
+			for (Segment segment : segments.values()) {
+				segment.buffer.force();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Used by OfflineIndex to confirm that the record at address is for
+	 * user.
+	 */
+	boolean userEquals(long address, byte[] user) {
+		Segment segment = segments.get(segmentOf(address));
+		int offset = offsetOf(address);
+		ByteBuffer buffer = segment.buffer;
+		if ((buffer.getShort(offset + USER_LENGTH) & 0xffff) != user.length) {
+			return false;
+		}
+		for (int i = 0; i < user.length; i++) {
+			if (buffer.get(offset + HEADER_SIZE + i) != user[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads every complete record in segment, counting the live ones and
+	 * adding them to live, in the order they lie.
+	 */
+	private void scan(Segment segment, Map<Long, Scanned> live) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_SIZE <= buffer.capacity()) {
+			int length = buffer.getInt(offset + LENGTH);
+			if (length < HEADER_SIZE || offset + length > buffer.capacity()) {
+				break;
+			}
+			if (buffer.get(offset + STATE) == LIVE) {
+				segment.liveBytes += length;
+				live.put(address(segment.number, offset), new Scanned(
+						user(buffer, offset),
+						buffer.getLong(offset + PREV),
+						buffer.getLong(offset + NEXT)));
+			}
+			offset += length;
+		}
+		segment.position = offset;
+	}
+
+	/**
+	 * Rebuilds the index from the live records found by scan(). Chains are
+	 * followed by their links rather than by where their records lie, as
+	 * compaction moves records out of order. Chains are followed from their
+	 * oldest records first, and then from whatever records are left, which
+	 * a crash may have left behind: a record whose predecessor's link to it
+	 * was never written is linked now; one copied by compaction, of which
+	 * only the copy or the original was linked, is marked delivered as a
+	 * duplicate.
+	 */
+	private void rebuild(LinkedHashMap<Long, Scanned> live) {
+		// Records appended after a predecessor that was never linked to them.
+		HashMap<Long, Long> unlinked = new HashMap<Long, Long>();
+		for (Map.Entry<Long, Scanned> entry : live.entrySet()) {
+			Scanned record = entry.getValue();
+			Scanned prev = live.get(record.prev);
+			if (prev != null && prev.next == 0L
+					&& Arrays.equals(prev.user, record.user)) {
+				unlinked.put(record.prev, entry.getKey());
+			}
+		}
+		for (int pass = 0; pass < 2; pass++) {
+			for (Map.Entry<Long, Scanned> entry : live.entrySet()) {
+				Scanned record = entry.getValue();
+				if (record.followed) {
+					continue;
+				}
+				Scanned prev = live.get(record.prev);
+				if (prev == null || !Arrays.equals(prev.user, record.user)) {
+					follow(live, unlinked, entry.getKey(), false);
+				} else if (pass == 1) {
+					// Its predecessor links to a copy of it instead.
+					follow(live, unlinked, entry.getKey(),
+							live.containsKey(prev.next));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Follows the chain of live records from start, and indexes it, after
+	 * any chain already indexed for the same recipient. If the chain runs
+	 * into records already followed, its records are duplicates of those,
+	 * and are marked delivered instead.
+	 *
+	 * @param superseded True if start is already known to be a duplicate.
+	 */
+	private void follow(
+			Map<Long, Scanned> live,
+			Map<Long, Long> unlinked,
+			long start,
+			boolean superseded) {
+		ArrayList<Long> chain = new ArrayList<Long>();
+		boolean duplicate = superseded;
+		long address = start;
+		Scanned record = live.get(start);
+		while (true) {
+			record.followed = true;
+			chain.add(address);
+			long next = record.next;
+			Scanned following = live.get(next);
+			if (following == null
+					|| !Arrays.equals(following.user, record.user)) {
+				Long appended = unlinked.get(address);
+				next = appended == null ? 0L : appended;
+				following = live.get(next);
+			}
+			if (following == null) {
+				break;
+			}
+			if (following.followed) {
+				duplicate = true;
+				break;
+			}
+			address = next;
+			record = following;
+		}
+		if (duplicate) {
+			for (long stale : chain) {
+				markDelivered(stale);
+			}
+			return;
+		}
+
+		// Writes only the links that are not already right.
+		for (int i = 0; i < chain.size(); i++) {
+			Scanned linked = live.get(chain.get(i));
+			long prev = i == 0 ? 0L : chain.get(i - 1);
+			long next = i == chain.size() - 1 ? 0L : chain.get(i + 1);
+			if (linked.prev != prev) {
+				setPrev(chain.get(i), prev);
+			}
+			if (linked.next != next) {
+				setNext(chain.get(i), next);
+			}
+		}
+		byte[] user = record.user;
+		int hash = new String(user, UTF_8).hashCode();
+		int slot = index.find(user, hash);
+		long first = chain.get(0);
+		long last = chain.get(chain.size() - 1);
+		if (slot < 0) {
+			index.insert(hash, last, first, chain.size());
+		} else {
+			long head = index.head(slot);
+			setNext(head, first);
+			setPrev(first, head);
+			index.set(slot, last, index.count(slot) + chain.size());
+		}
+		messages += chain.size();
+	}
+
+	/**
+	 * Writes a record to the active segment, starting a new one if it does
+	 * not fit.
+	 *
+	 * @return Address of the record.
+	 */
+	private long write(byte[] user, byte[] message, long prev, long next)
+			throws IOException {
+		int length = HEADER_SIZE + user.length + message.length;
+		if (active == null
+				|| active.position + length > active.buffer.capacity()) {
+			roll(length);
+		}
+
+		ByteBuffer buffer = active.buffer;
+		int offset = active.position;
+		buffer.put(offset + STATE, LIVE);
+		buffer.putLong(offset + PREV, prev);
+		buffer.putLong(offset + NEXT, next);
+		buffer.putShort(offset + USER_LENGTH, (short) user.length);
+		ByteBuffer body = buffer.duplicate();
+		body.position(offset + HEADER_SIZE);
+		body.put(user);
+		body.put(message);
+		// Last, so that a crash part way through leaves no record at all.
+		buffer.putInt(offset + LENGTH, length);
+
+		active.position += length;
+		active.liveBytes += length;
+		return address(active.number, offset);
+	}
+
+	/**
+	 * Starts a new active segment, large enough for a record of length
+	 * bytes.
+	 */
+	private void roll(int length) throws IOException {
+		if (active != null) {
+			active.buffer.force();
+		}
+		int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+		File file = new File(directory, prefix + number + SUFFIX);
+		Segment segment = map(number, file, Math.max(segmentSize, length));
+		segments.put(number, segment);
+		active = segment;
+	}
+
+	/**
+	 * Copies the record at original to the active segment, links the copy
+	 * into its chain in the original's place, then marks the original
+	 * delivered.
+	 */
+	private void move(long original) throws IOException {
+		ByteBuffer buffer = segments.get(segmentOf(original)).buffer;
+		int offset = offsetOf(original);
+		byte[] user = user(buffer, offset);
+		long prev = buffer.getLong(offset + PREV);
+		long next = buffer.getLong(offset + NEXT);
+		int slot = -1;
+		if (prev == 0L || next == 0L) {
+			slot = index.find(user, new String(user, UTF_8).hashCode());
+			if (slot < 0) {
+				// Not reachable from the index, so not deliverable.
+				markDelivered(original);
+				return;
+			}
+		}
+
+		byte[] message = new byte[buffer.getInt(offset + LENGTH)
+				- HEADER_SIZE - user.length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + HEADER_SIZE + user.length);
+		source.get(message);
+		long copy = write(user, message, prev, next);
+		if (prev == 0L) {
+			index.setTail(slot, copy);
+		} else {
+			setNext(prev, copy);
+		}
+		if (next == 0L) {
+			index.set(slot, copy, index.count(slot));
+		} else {
+			setPrev(next, copy);
+		}
+		markDelivered(original);
+	}
+
+	private long next(long address) {
+		return segments.get(segmentOf(address)).buffer.getLong(
+				offsetOf(address) + NEXT);
+	}
+
+	private void setNext(long address, long next) {
+		segments.get(segmentOf(address)).buffer.putLong(
+				offsetOf(address) + NEXT, next);
+	}
+
+	private void setPrev(long address, long prev) {
+		segments.get(segmentOf(address)).buffer.putLong(
+				offsetOf(address) + PREV, prev);
+	}
+
+	private String message(long address) {
+		Segment segment = segments.get(segmentOf(address));
+		ByteBuffer buffer = segment.buffer;
+		int offset = offsetOf(address);
+		int start = HEADER_SIZE
+				+ (buffer.getShort(offset + USER_LENGTH) & 0xffff);
+		byte[] message = new byte[buffer.getInt(offset + LENGTH) - start];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + start);
+		source.get(message);
+		return new String(message, UTF_8);
+	}
+
+	/**
+	 * Marks the record at address delivered.
+	 */
+	private void markDelivered(long address) {
+		Segment segment = segments.get(segmentOf(address));
+		int offset = offsetOf(address);
+		if (segment.buffer.get(offset + STATE) == LIVE) {
+			segment.buffer.put(offset + STATE, DELIVERED);
+			segment.liveBytes -= segment.buffer.getInt(offset + LENGTH);
+		}
+	}
+
+	private static byte[] user(ByteBuffer buffer, int offset) {
+		byte[] user = new byte[buffer.getShort(offset + USER_LENGTH) & 0xffff];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset + HEADER_SIZE);
+		source.get(user);
+		return user;
+	}
+
+	private static Segment map(int number, File file, long size)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid after the channel is closed.
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			return new Segment(number, file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return Number of the segment named name in this shard, or 0 if name
+	 * is not one of this shard's segments.
+	 */
+	private int segmentNumber(String name) {
+		if (!name.startsWith(prefix) || !name.endsWith(SUFFIX)) {
+			return 0;
+		}
+		try {
+			return Integer.parseInt(name.substring(
+					prefix.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long address(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xffffffffL);
+	}
+
+	private static int segmentOf(long address) {
+		return (int) (address >>> 32);
+	}
+
+	private static int offsetOf(long address) {
+		return (int) address;
+	}
+
+	/**
+	 *
+	 * One memory-mapped segment file.
+	 *
+	 */
+	private static final class Segment {
+		private final int number;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		// Next free offset; only meaningful for the active segment.
+		private int position = 0;
+		// Offset up to which compact() has moved messages out.
+		private int compacted = 0;
+		private long liveBytes = 0L;
+
+		private Segment(int number, File file, MappedByteBuffer buffer) {
+			this.number = number;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 *
+	 * A live record found when the log is reopened.
+	 *
+	 */
+	private static final class Scanned {
+		private final byte[] user;
+		private final long prev;
+		private final long next;
+		// Set once the record's chain has been followed.
+		private boolean followed = false;
+
+		private Scanned(byte[] user, long prev, long next) {
+			this.user = user;
+			this.prev = prev;
+			this.next = next;
+		}
+	}
+}
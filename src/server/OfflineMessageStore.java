@@ -0,0 +1,164 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ *
+ * Durable store of messages sent to users while they were offline, kept in
+ * a directory of memory-mapped, append-only log segments. Recipients are
+ * spread over a fixed number of shards, each an OfflineLog with its own
+ * lock, so that messages to different users are rarely stored one at a
+ * time. Messages are delivered in the order they were sent, duplicates
+ * included, and survive a restart of the server.
+ *
+ * Messages are held on disk and in the page cache rather than on the heap,
+ * and who has messages waiting is indexed off the heap, so the store can
+ * hold messages for millions of recipients without the heap growing.
+ *
+ * Segments left mostly delivered are compacted by a daemon thread of the
+ * store's own, a few hundred messages at a time per shard, so delivering
+ * messages never waits on compaction, and neither does storing them for
+ * long.
+ *
+ */
+public class OfflineMessageStore {
+	// Changing this would send existing recipients to the wrong shards.
+	private static final int SHARDS = 16;
+	private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+	// Messages moved per hold of a shard's lock.
+	private static final int COMPACT_BATCH = 256;
+	private static final long COMPACT_INTERVAL_MILLIS = 1000L;
+
+	private final File directory;
+	private final OfflineLog[] shards = new OfflineLog[SHARDS];
+
+	/**
+	 * Opens the store in directory, creating it if it does not exist, and
+	 * starts compacting it in the background.
+	 *
+	 * @param directory Directory to keep the store in.
+	 *
+	 * @throws IOException If the store could not be opened.
+	 */
+	public OfflineMessageStore(File directory) throws IOException {
+		this.directory = directory;
+		for (int i = 0; i < SHARDS; i++) {
+			shards[i] = new OfflineLog(directory, i, SEGMENT_SIZE);
+		}
+		Thread thread = new Thread(new Compactor(), "OfflineCompactor");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stores message for username, after any already stored for them.
+	 *
+	 * @throws IOException If the message could not be stored.
+	 */
+	public void add(String username, String message) throws IOException {
+		shard(username).append(username, message);
+	}
+
+	/**
+	 * Removes and returns every message stored for username.
+	 *
+	 * @return Messages in the order they were added. Empty if there are
+	 * none.
+	 */
+	public List<String> take(String username) {
+		return take(username, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Removes and returns the oldest messages stored for username, so that
+	 * a large backlog can be delivered a page at a time. Messages for other
+	 * users can be stored while it is delivered.
+	 *
+	 * @param max Largest number of messages to return.
+	 *
+	 * @return Messages in the order they were added. Empty if there are
+	 * none.
+	 */
+	public List<String> take(String username, int max) {
+		return shard(username).take(username, max);
+	}
+
+	/**
+	 * @return Number of messages stored for username.
+	 */
+	public int count(String username) {
+		return shard(username).count(username);
+	}
+
+	/**
+	 * @return Number of users with messages stored.
+	 */
+	public int recipients() {
+		int recipients = 0;
+		for (OfflineLog shard : shards) {
+			recipients += shard.recipients();
+		}
+		return recipients;
+	}
+
+	/**
+	 * @return Number of messages stored, for every user.
+	 */
+	public long messages() {
+		long messages = 0;
+		for (OfflineLog shard : shards) {
+			messages += shard.messages();
+		}
+		return messages;
+	}
+
+	/**
+	 * Writes every stored message to disk, rather than leaving it to the
+	 * operating system. Messages already survive the server exiting or
+	 * crashing; this also makes them survive the machine doing so.
+	 */
+	public void force() {
+		for (OfflineLog shard : shards) {
+			shard.force();
+		}
+	}
+
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	private OfflineLog shard(String username) {
+		return shards[Math.floorMod(username.hashCode(), SHARDS)];
+	}
+
+	/**
+	 * Compacts every shard a batch at a time, letting go of its lock
+	 * between batches, and then waits a while before looking again.
+	 */
+	private final class Compactor implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					for (OfflineLog shard : shards) {
+						try {
+							while (shard.compact(COMPACT_BATCH)) {
+								// Lets threads waiting on the lock have it.
+								Thread.yield();
+							}
+						} catch (IOException e) {
+							// Nothing is lost; the shard is tried again later.
+							System.err.println("There was an error compacting "
+									+ "offline messages in " + directory + ".");
+							e.printStackTrace();
+						}
+					}
+					Thread.sleep(COMPACT_INTERVAL_MILLIS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
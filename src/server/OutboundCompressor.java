@@ -0,0 +1,139 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * Compresses what a connection writes to a client that asked for deflate,
+ * once the client's session has queued START. Everything queued before
+ * START is written as it is; everything after it goes through one deflate
+ * stream for the rest of the connection, so the usernames, prompts and
+ * notices a chat repeats cost a few bytes after their first time.
+ *
+ * The stream is sync flushed at the end of each batch the connection's
+ * writer takes from its queue, so the client can inflate everything
+ * written so far without waiting for more, and a batch of many messages
+ * costs one flush. Until START is seen a compressor holds no Deflater.
+ *
+ * A compressor is only used by its connection's writer, so it takes no
+ * lock.
+ *
+ */
+public class OutboundCompressor {
+	/**
+	 * Queued, with ClientConnection.reply(), to mark where compression
+	 * starts. It is known by its identity, and is empty, so it writes
+	 * nothing.
+	 */
+	public static final ByteBuffer START =
+			ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	// Chat lines are short and the writer may be an event loop serving
+	// many clients, so speed matters more than the last few percent.
+	private static final int LEVEL = Deflater.BEST_SPEED;
+	private static final int MIN_BUFFER_SIZE = 256;
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private final ServerMetrics metrics;
+	private Deflater deflater;
+	private byte[] input = new byte[MIN_BUFFER_SIZE];
+	private byte[] output = new byte[MIN_BUFFER_SIZE];
+
+	/**
+	 * @param metrics Metrics to count bytes compressed in, or null.
+	 */
+	public OutboundCompressor(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Replaces messages just taken from the queue with the bytes that
+	 * should be written for them: messages before START as they are, and
+	 * every message after it, once compression has started, as one
+	 * compressed and flushed buffer.
+	 *
+	 * @param batch Messages to write.
+	 *
+	 * @param offset Index in batch of the first message just taken.
+	 *
+	 * @param count Number of messages just taken.
+	 *
+	 * @return Number of buffers now in batch from offset on.
+	 */
+	public int apply(ByteBuffer[] batch, int offset, int count) {
+		int end = offset + count;
+		// Buffers at the front of the batch left as they are.
+		int kept = 0;
+		if (deflater == null) {
+			int start = offset;
+			while (start < end && batch[start] != START) {
+				start++;
+			}
+			if (start == end) {
+				return count;
+			}
+			deflater = new Deflater(LEVEL);
+			kept = start - offset;
+		}
+
+		int length = 0;
+		for (int i = offset + kept; i < end; i++) {
+			ByteBuffer message = batch[i];
+			if (message != START) {
+				int remaining = message.remaining();
+				input = ensure(input, length + remaining);
+				message.get(input, length, remaining);
+				length += remaining;
+			}
+			batch[i] = null;
+		}
+		if (length == 0) {
+			return kept;
+		}
+
+		deflater.setInput(input, 0, length);
+		int written = 0;
+		while (true) {
+			written += deflater.deflate(output, written,
+					output.length - written, Deflater.SYNC_FLUSH);
+			if (written < output.length) {
+				break;
+			}
+			output = Arrays.copyOf(output, output.length * 2);
+		}
+		if (metrics != null) {
+			metrics.recordCompression(length, written);
+		}
+		batch[offset + kept] = ByteBuffer.wrap(
+				Arrays.copyOf(output, written));
+
+		// Don't let one large batch pin large buffers for the connection's
+		// life.
+		if (input.length > MAX_RETAINED_SIZE) {
+			input = new byte[MIN_BUFFER_SIZE];
+		}
+		if (output.length > MAX_RETAINED_SIZE) {
+			output = new byte[MIN_BUFFER_SIZE];
+		}
+		return kept + 1;
+	}
+
+	/**
+	 * Frees the Deflater's native memory. Called once the connection has
+	 * closed.
+	 */
+	public void end() {
+		if (deflater != null) {
+			deflater.end();
+		}
+	}
+
+	private static byte[] ensure(byte[] buffer, int size) {
+		if (size <= buffer.length) {
+			return buffer;
+		}
+		return Arrays.copyOf(buffer, Math.max(size, buffer.length * 2));
+	}
+}
@@ -0,0 +1,416 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * Bounded queue of messages waiting to be written to one client. Any thread
+ * may offer messages; only the connection's writer takes them. When the
+ * queue is full, the queue's OverflowPolicy decides whether the oldest
+ * message is dropped, the new one is refused, or the sender waits.
+ *
+ * A client's responses to its own commands are not subject to the policy:
+ * they are put() rather than offered, and are never refused, nor dropped
+ * to make room for others. Instead, the client's own input is throttled
+ * until its queue has room.
+ *
+ * Messages offered by other clients, such as broadcasts, may be held back
+ * for a short coalescing window so that several can be written together;
+ * a response ends the window early.
+ *
+ */
+public class OutboundQueue {
+	private final ArrayDeque<ByteBuffer> messages = new ArrayDeque<ByteBuffer>();
+	// Queued messages that were put(), which DROP_OLDEST must not drop.
+	private final Set<ByteBuffer> pinned = Collections.newSetFromMap(
+			new IdentityHashMap<ByteBuffer, Boolean>());
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final long pushBackMillis;
+	private final long coalesceNanos;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private boolean closed = false;
+	private boolean overflowed = false;
+	private long dropped = 0L;
+	private boolean urgent = false;
+
+	/**
+	 * @param capacity Maximum number of queued messages. Values less than
+	 * one are treated as one.
+	 *
+	 * @param policy What to do when a message is offered to a full queue.
+	 *
+	 * @param pushBackMillis Longest time, in milliseconds, that a sender is
+	 * made to wait under the BACKPRESSURE policy.
+	 */
+	public OutboundQueue(
+			int capacity,
+			OverflowPolicy policy,
+			long pushBackMillis) {
+		this(capacity, policy, pushBackMillis, 0L);
+	}
+
+	/**
+	 * @param capacity Maximum number of queued messages. Values less than
+	 * one are treated as one.
+	 *
+	 * @param policy What to do when a message is offered to a full queue.
+	 *
+	 * @param pushBackMillis Longest time, in milliseconds, that a sender is
+	 * made to wait under the BACKPRESSURE policy.
+	 *
+	 * @param coalesceMicros Longest time, in microseconds, that a message
+	 * offered by another client may wait for others to be written with it.
+	 * Zero writes every message as soon as possible.
+	 */
+	public OutboundQueue(
+			int capacity,
+			OverflowPolicy policy,
+			long pushBackMillis,
+			long coalesceMicros) {
+		this.capacity = Math.max(1, capacity);
+		this.policy = policy;
+		this.pushBackMillis = pushBackMillis;
+		this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(
+				Math.max(0L, coalesceMicros));
+	}
+
+	/**
+	 * Adds message to the back of the queue, applying the overflow policy if
+	 * the queue is full.
+	 *
+	 * @param message Message to queue.
+	 *
+	 * @param mayWait Whether the calling thread may be made to wait for room
+	 * under the BACKPRESSURE policy.
+	 *
+	 * @return True if the message was queued. False if the queue is closed,
+	 * or the message was refused under the DISCONNECT or BACKPRESSURE
+	 * policies, or under DROP_OLDEST because the queue holds nothing but
+	 * responses.
+	 */
+	public boolean offer(ByteBuffer message, boolean mayWait) {
+		lock.lock();
+		try {
+			if (closed) {
+				return false;
+			}
+
+			if (messages.size() >= capacity) {
+				if (policy == OverflowPolicy.DROP_OLDEST) {
+					dropped++;
+					if (!dropOldestOffered()) {
+						// Nothing but responses is queued.
+						return false;
+					}
+				} else if (policy == OverflowPolicy.DISCONNECT) {
+					overflowed = true;
+					dropped++;
+					return false;
+				} else {
+					long remaining = mayWait
+							? TimeUnit.MILLISECONDS.toNanos(pushBackMillis)
+							: 0L;
+					while (messages.size() >= capacity && !closed
+							&& remaining > 0L) {
+						try {
+							remaining = notFull.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+					if (messages.size() >= capacity || closed) {
+						dropped++;
+						return false;
+					}
+				}
+			}
+
+			messages.add(message);
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds a response to the client's own command to the back of the queue.
+	 * Responses are never refused while the queue is open: if the
+	 * queue is full, the caller waits for room, or, if it may not wait, the
+	 * response is queued anyway and the caller is expected to stop reading
+	 * from the client until isFull() is false.
+	 *
+	 * @param message Message to queue.
+	 *
+	 * @param mayWait Whether the calling thread may wait for room.
+	 *
+	 * @return True if the message was queued, false if the queue is closed.
+	 */
+	public boolean put(ByteBuffer message, boolean mayWait) {
+		lock.lock();
+		try {
+			while (mayWait && messages.size() >= capacity && !closed) {
+				try {
+					notFull.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+			if (closed) {
+				return false;
+			}
+
+			messages.add(message);
+			pinned.add(message);
+			urgent = true;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits, for at most the coalescing window, until the queue holds at
+	 * least count messages. Returns early if a response to the client's own
+	 * command is queued, since responses are never held back.
+	 *
+	 * @param count Number of messages worth writing together.
+	 */
+	public void awaitCoalesced(int count) {
+		lock.lock();
+		try {
+			long remaining = coalesceNanos;
+			while (remaining > 0L && messages.size() < count
+					&& !urgent && !closed) {
+				try {
+					remaining = notEmpty.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the message at the front of the queue, without
+	 * waiting.
+	 *
+	 * @return Oldest queued message, or null if the queue is empty.
+	 */
+	public ByteBuffer poll() {
+		lock.lock();
+		try {
+			ByteBuffer message = unpin(messages.poll());
+			if (message != null) {
+				notFull.signal();
+			}
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes as many queued messages as fit in batch, oldest first, without
+	 * waiting, so that they can be written with one gathering write.
+	 *
+	 * @param batch Array to fill.
+	 *
+	 * @param offset Index in batch of the first message to fill in.
+	 *
+	 * @return Number of messages removed.
+	 */
+	public int drainTo(ByteBuffer[] batch, int offset) {
+		lock.lock();
+		try {
+			int count = 0;
+			while (offset + count < batch.length && !messages.isEmpty()) {
+				batch[offset + count] = unpin(messages.poll());
+				count++;
+			}
+			urgent = false;
+			if (count > 0) {
+				notFull.signalAll();
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and returns the message at the front of the queue, waiting for
+	 * one to be offered if the queue is empty.
+	 *
+	 * @return Oldest queued message, or null once the queue has been closed
+	 * and everything in it has been taken.
+	 *
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public ByteBuffer take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (messages.isEmpty() && !closed) {
+				notEmpty.await();
+			}
+			ByteBuffer message = unpin(messages.poll());
+			if (message != null) {
+				notFull.signal();
+			}
+			return message;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the oldest message that was offered rather than put, for
+	 * DROP_OLDEST. Responses, and markers such as OutboundCompressor.START,
+	 * are kept, since the client's view of the stream depends on them.
+	 *
+	 * @return False if every queued message was put.
+	 */
+	private boolean dropOldestOffered() {
+		Iterator<ByteBuffer> queued = messages.iterator();
+		while (queued.hasNext()) {
+			if (!pinned.contains(queued.next())) {
+				queued.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return message, after forgetting that it was put, if it was.
+	 */
+	private ByteBuffer unpin(ByteBuffer message) {
+		if (message != null && !pinned.isEmpty()) {
+			pinned.remove(message);
+		}
+		return message;
+	}
+
+	/**
+	 * Stops the queue from accepting new messages. Messages already queued
+	 * can still be taken, and waiting senders and takers are woken.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the queue and discards everything in it.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			closed = true;
+			messages.clear();
+			pinned.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of queued messages.
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return messages.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if the queue holds at least as many messages as its
+	 * capacity.
+	 */
+	public boolean isFull() {
+		lock.lock();
+		try {
+			return messages.size() >= capacity;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if the queue has been closed.
+	 */
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return True if a message was refused under the DISCONNECT policy, and
+	 * the client should be disconnected.
+	 */
+	public boolean isOverflowed() {
+		lock.lock();
+		try {
+			return overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Number of messages dropped or refused because the queue was
+	 * full.
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Longest time, in nanoseconds, that a message offered by
+	 * another client may be held back to be written with others.
+	 */
+	public long getCoalesceNanos() {
+		return this.coalesceNanos;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return this.policy;
+	}
+}
@@ -0,0 +1,44 @@
+package server;
+
+/**
+ *
+ * What an OutboundQueue does when a message is sent to a client whose queue
+ * is already full, because the client is not reading as fast as messages
+ * are sent to it.
+ *
+ */
+public enum OverflowPolicy {
+	/**
+	 * Discard the oldest queued message from another client to make room
+	 * for the new one. The client's responses to its own commands are never
+	 * discarded; if nothing else is queued, the new message is refused.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Refuse the message and disconnect the slow client.
+	 */
+	DISCONNECT,
+
+	/**
+	 * Make the sender of a message wait, for a bounded time, for room in
+	 * the queue. If no room is made, the message is refused and the sender
+	 * is told. Broadcasts, posts to channels, messages passed on by other
+	 * nodes, and senders on an EventLoop thread are never made to wait;
+	 * their messages are refused at once.
+	 */
+	BACKPRESSURE;
+
+	/**
+	 * Parses a policy given on the command line, ignoring case.
+	 *
+	 * @param name drop_oldest, disconnect or backpressure.
+	 *
+	 * @return Matching policy.
+	 *
+	 * @throws IllegalArgumentException If name is not a policy.
+	 */
+	public static OverflowPolicy parse(String name) {
+		return valueOf(name.trim().toUpperCase());
+	}
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * When each user was last seen, for wholasthr. Sightings are filed in a
+ * ring of time buckets, one for every sixtieth of the window, so minute
+ * buckets for the default hour. Listing the users seen within the window
+ * visits only the buckets the window covers, so it costs about as much as
+ * the users it finds, however many users have ever been seen.
+ *
+ * Users expire a bucket at a time: when the ring turns and a bucket is
+ * reused, the users last seen in it are forgotten. Recording a sighting
+ * never takes a lock; one is taken only to turn the ring, once per bucket.
+ *
+ */
+public class PresenceIndex {
+	private static final int WINDOW_BUCKETS = 60;
+	// One more than the window covers, so that the bucket being reused is
+	// always wholly outside the window.
+	private static final int BUCKETS = WINDOW_BUCKETS + 1;
+
+	private final long windowNanos;
+	private final long bucketNanos;
+	private final long originNanos = System.nanoTime();
+	// Time each user was last seen, and so the one bucket counting them.
+	private final ConcurrentHashMap<String, Long> lastSeen =
+			new ConcurrentHashMap<String, Long>();
+	private final AtomicReferenceArray<Bucket> buckets =
+			new AtomicReferenceArray<Bucket>(BUCKETS);
+	private volatile long current = 0L;
+	private final ReentrantLock turnLock = new ReentrantLock();
+
+	/**
+	 * @param windowMillis How long a user counts as seen after they were.
+	 */
+	public PresenceIndex(long windowMillis) {
+		this.windowNanos = Math.max(0L, windowMillis) * 1000000L;
+		this.bucketNanos = Math.max(1000000L,
+				(windowNanos + WINDOW_BUCKETS - 1) / WINDOW_BUCKETS);
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, new Bucket(i == 0 ? 0L : i - BUCKETS));
+		}
+	}
+
+	/**
+	 * Records that username has been seen now.
+	 *
+	 * @param username Username of a user who logged in or out.
+	 */
+	public void seen(String username) {
+		long now = System.nanoTime();
+		long epoch = turn(now);
+		lastSeen.put(username, now);
+		Bucket bucket = buckets.get((int) (epoch % BUCKETS));
+		if (bucket.epoch == epoch) {
+			bucket.users.add(username);
+		}
+	}
+
+	/**
+	 * Adds every user seen within the window to users.
+	 *
+	 * @param users Collection to add usernames to.
+	 */
+	public void addSeen(Collection<String> users) {
+		long now = System.nanoTime();
+		long epoch = turn(now);
+		long first = Math.max(0L, epoch - WINDOW_BUCKETS);
+		for (long e = first; e <= epoch; e++) {
+			Bucket bucket = buckets.get((int) (e % BUCKETS));
+			if (bucket.epoch != e) {
+				continue;
+			}
+			for (String username : bucket.users) {
+				Long seen = lastSeen.get(username);
+				// Counted only in the bucket they were last seen in.
+				if (seen != null && epoch(seen) == e
+						&& now - seen < windowNanos) {
+					users.add(username);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Number of users remembered, some of whom may have been seen
+	 * just outside the window.
+	 */
+	public int size() {
+		return lastSeen.size();
+	}
+
+	private long epoch(long nanos) {
+		return (nanos - originNanos) / bucketNanos;
+	}
+
+	/**
+	 * Turns the ring to the bucket for now, forgetting the users last seen
+	 * in each bucket it reuses.
+	 *
+	 * @return Epoch of the bucket for now.
+	 */
+	private long turn(long now) {
+		long epoch = epoch(now);
+		if (epoch <= current) {
+			return epoch;
+		}
+		turnLock.lock();
+		try {
+			long from = Math.max(current + 1L, epoch - BUCKETS + 1L);
+			for (long e = from; e <= epoch; e++) {
+				int slot = (int) (e % BUCKETS);
+				expire(buckets.get(slot));
+				buckets.set(slot, new Bucket(e));
+			}
+			if (epoch > current) {
+				current = epoch;
+			}
+		} finally {
+			turnLock.unlock();
+		}
+		return epoch;
+	}
+
+	private void expire(Bucket bucket) {
+		for (String username : bucket.users) {
+			Long seen = lastSeen.get(username);
+			if (seen != null && epoch(seen) == bucket.epoch) {
+				lastSeen.remove(username, seen);
+			}
+		}
+	}
+
+	/**
+	 * Users last seen within one bucket's stretch of time.
+	 */
+	private static final class Bucket {
+		private final long epoch;
+		private final Set<String> users =
+				ConcurrentHashMap.<String>newKeySet();
+
+		Bucket(long epoch) {
+			this.epoch = epoch;
+		}
+	}
+}
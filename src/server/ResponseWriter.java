@@ -0,0 +1,93 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * Output of a ServerThread to its client, by kind of message. How each kind
+ * is put on the wire depends on the protocol the client speaks: lines of
+ * text for legacy clients, or typed frames for clients that asked for
+ * framing. Output is held until flush() so that a whole response goes out
+ * as one message.
+ *
+ */
+public abstract class ResponseWriter {
+	/**
+	 * Prompts the client for its next input.
+	 *
+	 * @param prompt Prompt, such as ">Command: ".
+	 */
+	public abstract void prompt(String prompt);
+
+	/**
+	 * Sends any other output, such as the result of a command.
+	 *
+	 * @param text Text to send.
+	 */
+	public abstract void notice(String text);
+
+	/**
+	 * Echoes the client's own broadcast back to it.
+	 *
+	 * @param sender Username of the client.
+	 *
+	 * @param message Message broadcast.
+	 */
+	public abstract void broadcast(String sender, String message);
+
+	/**
+	 * Tells the client why its connection is about to be closed.
+	 *
+	 * @param reason Reason for the disconnection.
+	 */
+	public abstract void disconnect(String reason);
+
+	/**
+	 * Encodes a message from another client, and for a text client the
+	 * prompt that follows it, as one buffer that can be queued for this
+	 * client directly.
+	 *
+	 * @param type protocol.Frame.MESSAGE or protocol.Frame.BROADCAST.
+	 *
+	 * @param sender Username of the sending client.
+	 *
+	 * @param message Message sent.
+	 *
+	 * @return Buffer holding the encoded message, ready to be read.
+	 */
+	public abstract ByteBuffer encodeDelivery(
+			byte type,
+			String sender,
+			String message);
+
+	/**
+	 * Encodes the reason a client is about to be disconnected as one buffer
+	 * that can be queued for the client directly, from any thread.
+	 *
+	 * @param reason Reason for the disconnection.
+	 *
+	 * @return Buffer holding the encoded reason, ready to be read.
+	 */
+	public abstract ByteBuffer encodeDisconnect(String reason);
+
+	/**
+	 * Encodes a notice from the server, and for a text client the prompt
+	 * that follows it, as one buffer that can be queued for the client
+	 * directly, from any thread.
+	 *
+	 * @param text Text of the notice.
+	 *
+	 * @return Buffer holding the encoded notice, ready to be read.
+	 */
+	public abstract ByteBuffer encodeNotice(String text);
+
+	/**
+	 * Sends everything written since the last flush as one message.
+	 */
+	public abstract void flush();
+
+	/**
+	 * Flushes, then closes the connection once everything has been written.
+	 */
+	public abstract void close();
+}
@@ -1,9 +1,21 @@
 package server;
 
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
 import java.io.*;
-import java.text.NumberFormat;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
 import java.util.*;
+import java.util.concurrent.Executor;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 
@@ -16,27 +28,56 @@ import java.util.*;
  *
  */
 public class Server {
+	private static final int READER_BUFFER_SIZE = 512;
+	// Connections waiting to be accepted, so that a burst of logins is 
+	// queued by the operating system rather than refused.
+	private static final int ACCEPT_BACKLOG = 1024;
+	private static final String DEFAULT_OFFLINE_DIRECTORY = "offline_messages";
+	private static final String USER_PASS_FILE = "user_pass.txt";
+	// How late an idle client may be timed out.
+	private static final long IDLE_TICK_MILLIS = 100L;
+	private static final int DEFAULT_LOCKOUT_CAPACITY = 100000;
+	private static final int HOSTNAME_CACHE_CAPACITY = 4096;
 
+	private ServerSocketChannel serverChannel;
 	private ServerSocket serverSocket;
-	private TreeMap<String, String> authList;
-	private TreeMap<String, TreeMap<String, Date>> blocked = 
-			new TreeMap<String, TreeMap<String, Date>>();
-	private TreeMap<String, ServerThread> connected = 
-			new TreeMap<String, ServerThread>();
-	private TreeMap<String, Date> connectedLastHr = 
-			new TreeMap<String, Date>();
-	private TreeMap<String, HashSet<String>> offlineMessages = 
-			new TreeMap<String, HashSet<String>>();
-	private TreeMap<String, Integer> statistics = 
-			new TreeMap<String, Integer>();
+	private CredentialStore credentials;
+	private LockoutTable blocked;
+	private SessionRegistry connected = new SessionRegistry();
+	private BroadcastFanout fanout = new BroadcastFanout(connected);
+	private ChannelRegistry channels = new ChannelRegistry();
+	private ServerMetrics metrics = new ServerMetrics(this);
+	private volatile IdleReaper idleReaper;
+	// Null unless client hostnames are to be resolved.
+	private volatile HostnameCache hostnames;
+	// Null unless this server is one node of a cluster.
+	private volatile ClusterNode cluster;
+	// Null unless clients are served over TLS.
+	private volatile SSLContext tls;
+	private PresenceIndex connectedLastHr;
+	// Written once, when the store is opened; every other access only reads 
+	// it, so adding and taking messages never waits on a server-wide lock.
+	private volatile OfflineMessageStore offlineMessages;
+	private CommandStatistics statistics = new CommandStatistics();
 	private final long BLOCK_TIME;
 	private final long LAST_HOUR;
 	private final long TIME_OUT;
-	private final Object blockedLock = new Object();
-	private final Object connectedLock = new Object();
-	private final Object connectedLastHrLock = new Object();
-	private final Object offlineMessageLock = new Object();
-	private final Object statisticsLock = new Object();
+	private Executor connectionExecutor;
+	private int outboundCapacity = 1024;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BACKPRESSURE;
+	private long pushBackMillis = 1000L;
+	private long coalesceMicros = 0L;
+	private int offlinePageSize = 100;
+	// Commands, and broadcasts or channel posts, each client may give a 
+	// second, and at once. A rate of 0 leaves them unlimited.
+	private double commandRate = 20.0;
+	private int commandBurst = 40;
+	private double broadcastRate = 2.0;
+	private int broadcastBurst = 10;
+	// Commands refused in a row before a client is disconnected.
+	private int floodLimit = 100;
+	private final ReentrantLock offlineMessageLock = new ReentrantLock();
+	private final ReentrantLock idleReaperLock = new ReentrantLock();
 
 	/**
 	 * Constructs ServerSocket and user-password list. This socket continually 
@@ -47,7 +88,9 @@ public class Server {
 	 */
 	public Server(int portNum) {
 		try {
-			serverSocket = new ServerSocket(portNum);
+			serverChannel = ServerSocketChannel.open();
+			serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(portNum), ACCEPT_BACKLOG);
 		} catch (IOException e) {
 			System.err.println(
 					"The server had an error opening a socket "
@@ -56,21 +99,9 @@ public class Server {
 			System.exit(1);
 		}
 		try {
-			authList = new TreeMap<String, String>();
-			File userPass = new File("user_pass.txt");
-			BufferedReader reader = null;
-			reader = new BufferedReader(new FileReader(userPass));
-			String line;
-			String[] entries = new String[2];
-
-			// Populate authList from user_pass.txt
-			while ((line = reader.readLine()) != null) {
-				entries = line.split(" ");
-				authList.put(entries[0], entries[1]);
-			}
-
-			// Close reader -- will not reread user_pass.txt more than once.
-			reader.close();
+			// Passwords are salted and digested as they are loaded, into an 
+			// index kept off the heap.
+			credentials = new CredentialStore(new File(USER_PASS_FILE));
 		} catch (IOException e) {
 			System.err.println(
 					"There was an error reading in the list of "
@@ -82,6 +113,9 @@ public class Server {
 		this.BLOCK_TIME = 60000L;
 		this.LAST_HOUR = 3600000L;
 		this.TIME_OUT = 1800000L;
+		this.blocked = new LockoutTable(this.BLOCK_TIME, 
+				DEFAULT_LOCKOUT_CAPACITY);
+		this.connectedLastHr = new PresenceIndex(this.LAST_HOUR);
 	}
 
 	/**
@@ -94,7 +128,9 @@ public class Server {
 	 */
 	public Server(int portNum, long BLOCK_TIME, long LAST_HOUR, long TIME_OUT) {
 		try {
-			serverSocket = new ServerSocket(portNum);
+			serverChannel = ServerSocketChannel.open();
+			serverSocket = serverChannel.socket();
+			serverSocket.bind(new InetSocketAddress(portNum), ACCEPT_BACKLOG);
 		} catch (IOException e) {
 			System.err.println(
 					"The server had an error opening a socket "
@@ -103,21 +139,9 @@ public class Server {
 			System.exit(1);
 		}
 		try {
-			authList = new TreeMap<String, String>();
-			File userPass = new File("user_pass.txt");
-			BufferedReader reader = null;
-			reader = new BufferedReader(new FileReader(userPass));
-			String line;
-			String[] entries = new String[2];
-
-			// Populate authList from user_pass.txt
-			while ((line = reader.readLine()) != null) {
-				entries = line.split(" ");
-				authList.put(entries[0], entries[1]);
-			}
-
-			// Close reader -- will not reread user_pass.txt more than once.
-			reader.close();
+			// Passwords are salted and digested as they are loaded, into an 
+			// index kept off the heap.
+			credentials = new CredentialStore(new File(USER_PASS_FILE));
 		} catch (IOException e) {
 			System.err.println(
 					"There was an error reading in the list of "
@@ -143,6 +167,10 @@ public class Server {
 		} else {
 			this.TIME_OUT = 1800000L;
 		}
+
+		this.blocked = new LockoutTable(this.BLOCK_TIME, 
+				DEFAULT_LOCKOUT_CAPACITY);
+		this.connectedLastHr = new PresenceIndex(this.LAST_HOUR);
 	}
 
 	/**
@@ -161,15 +189,60 @@ public class Server {
 			return false;
 		}
 
-		if (!authList.containsKey(userName)) {
-			return false;
-		} else {
-			return authList.get(userName).equals(passWord);
+		return credentials.check(userName, passWord);
+	}
+
+	/**
+	 * @param username Username to look for.
+	 * 
+	 * @return True if username is listed in user_pass.txt.
+	 */
+	public boolean isUser(String username) {
+		return credentials.contains(username);
+	}
+
+	/**
+	 * Adds users who are not in user_pass.txt, or changes their passwords, 
+	 * until user_pass.txt is next changed other than by appending to it.
+	 * 
+	 * @param users Usernames and their passwords.
+	 */
+	public void addUsers(Map<String, String> users) {
+		credentials.add(users);
+	}
+
+	/**
+	 * Reloads user_pass.txt whenever it changes, so that users can be 
+	 * added, removed, or given new passwords without a restart. Logins are 
+	 * checked against the old users until the new ones are loaded.
+	 * 
+	 * @param verbose True if reloads should be logged.
+	 */
+	public void watchCredentials(boolean verbose) {
+		try {
+			credentials.watch(verbose);
+		} catch (IOException e) {
+			System.err.println("The server could not watch " + 
+					USER_PASS_FILE + " for changes.");
+			e.printStackTrace();
 		}
 	}
 
-	public TreeMap<String, String> getAuthList() {
-		return this.authList;
+	/**
+	 * @return Channel the Server listens on. Used by EventLoopServer, which 
+	 * accepts connections from the channel rather than from serverSocket.
+	 */
+	protected ServerSocketChannel getServerChannel() {
+		return this.serverChannel;
+	}
+
+	/**
+	 * Gets and returns TIME_OUT attribute of server.
+	 * 
+	 * @return TIME_OUT in microseconds.
+	 */
+	protected Long getTimeOut() {
+		return this.TIME_OUT;
 	}
 
 	public static void main(String[] args) {
@@ -177,7 +250,16 @@ public class Server {
 		// If port number not given as argument, print usage statement
 		if (args.length == 0) {
 			System.err.println("Usage: java Server <port number> " +
-					"[--BLOCK_TIME, --LAST_HOUR, --TIME_OUT] [-v]");
+					"[--BLOCK_TIME, --LAST_HOUR, --TIME_OUT] " +
+					"[--IO_MODE=thread|virtual|nio] [--EVENT_LOOPS] " +
+					"[--OUTBOUND_QUEUE, --OVERFLOW, --PUSH_BACK] " +
+					"[--COALESCE] [--OFFLINE_DIR, --OFFLINE_PAGE] " +
+					"[--METRICS_PORT] [--LOCKOUT_CAP] [--HOSTNAME_TTL] " +
+					"[--CLUSTER_PORT, --CLUSTER_HOST, --PEERS] " +
+					"[--RATE_LIMIT, --RATE_BURST, --BROADCAST_RATE, " +
+					"--BROADCAST_BURST, --FLOOD_LIMIT] " +
+					"[--TLS_KEYSTORE, --TLS_PASSWORD, " +
+					"--TLS_SESSION_CACHE, --TLS_SESSION_TIMEOUT] [-v]");
 			System.exit(1);
 		}
 
@@ -186,6 +268,29 @@ public class Server {
 		long blockTime = -1L;
 		long lastHour = -1L;
 		long timeOut = -1L;
+		String ioMode = "thread";
+		int eventLoops = Runtime.getRuntime().availableProcessors();
+		int outboundQueue = 1024;
+		OverflowPolicy overflow = OverflowPolicy.BACKPRESSURE;
+		long pushBack = 1000L;
+		long coalesce = 0L;
+		String offlineDir = DEFAULT_OFFLINE_DIRECTORY;
+		int offlinePage = 100;
+		int metricsPort = 0;
+		int lockoutCap = DEFAULT_LOCKOUT_CAPACITY;
+		long hostnameTtl = 0L;
+		int clusterPort = 0;
+		String clusterHost = "127.0.0.1";
+		List<String> peers = new ArrayList<String>();
+		double rateLimit = 20.0;
+		int rateBurst = 40;
+		double broadcastRate = 2.0;
+		int broadcastBurst = 10;
+		int floodLimit = 100;
+		String tlsKeystore = null;
+		String tlsPassword = System.getenv("SPEAKEASY_TLS_PASSWORD");
+		int tlsSessionCache = 20480;
+		int tlsSessionTimeout = 86400;
 
 		StringBuilder commandLine = new StringBuilder();
 		for (int i = 1; i < args.length; i++) {
@@ -210,6 +315,152 @@ public class Server {
 										.length()));
 				commandLine.append("Server: Got command line argument " +
 						"--TIME_OUT=" + timeOut + "\n");
+			} else if (args[i].contains("IO_MODE")) {
+				ioMode = args[i].substring(args[i].indexOf("=") + 1);
+				commandLine.append("Server: Got command line argument " +
+						"--IO_MODE=" + ioMode + "\n");
+			} else if (args[i].contains("EVENT_LOOPS")) {
+				eventLoops = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--EVENT_LOOPS=" + eventLoops + "\n");
+			} else if (args[i].contains("OUTBOUND_QUEUE")) {
+				outboundQueue = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--OUTBOUND_QUEUE=" + outboundQueue + "\n");
+			} else if (args[i].contains("OVERFLOW")) {
+				overflow = OverflowPolicy.parse(args[i]
+						.substring(args[i].indexOf("=") + 1));
+				commandLine.append("Server: Got command line argument " +
+						"--OVERFLOW=" + overflow + "\n");
+			} else if (args[i].contains("PUSH_BACK")) {
+				pushBack = Long.parseLong(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--PUSH_BACK=" + pushBack + "\n");
+			} else if (args[i].contains("COALESCE")) {
+				coalesce = Long.parseLong(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--COALESCE=" + coalesce + "\n");
+			} else if (args[i].contains("OFFLINE_DIR")) {
+				offlineDir = args[i].substring(args[i].indexOf("=") + 1);
+				commandLine.append("Server: Got command line argument " +
+						"--OFFLINE_DIR=" + offlineDir + "\n");
+			} else if (args[i].contains("OFFLINE_PAGE")) {
+				offlinePage = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--OFFLINE_PAGE=" + offlinePage + "\n");
+			} else if (args[i].contains("METRICS_PORT")) {
+				metricsPort = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--METRICS_PORT=" + metricsPort + "\n");
+			} else if (args[i].contains("LOCKOUT_CAP")) {
+				lockoutCap = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--LOCKOUT_CAP=" + lockoutCap + "\n");
+			} else if (args[i].contains("HOSTNAME_TTL")) {
+				hostnameTtl = Long.parseLong(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--HOSTNAME_TTL=" + hostnameTtl + "\n");
+			} else if (args[i].contains("CLUSTER_PORT")) {
+				clusterPort = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--CLUSTER_PORT=" + clusterPort + "\n");
+			} else if (args[i].contains("CLUSTER_HOST")) {
+				clusterHost = args[i].substring(args[i].indexOf("=") + 1);
+				commandLine.append("Server: Got command line argument " +
+						"--CLUSTER_HOST=" + clusterHost + "\n");
+			} else if (args[i].contains("PEERS")) {
+				for (String peer : args[i]
+						.substring(args[i].indexOf("=") + 1).split(",")) {
+					if (peer.trim().length() > 0) {
+						peers.add(peer.trim());
+					}
+				}
+				commandLine.append("Server: Got command line argument " +
+						"--PEERS=" + peers + "\n");
+			} else if (args[i].contains("RATE_LIMIT")) {
+				rateLimit = Double.parseDouble(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--RATE_LIMIT=" + rateLimit + "\n");
+			} else if (args[i].contains("RATE_BURST")) {
+				rateBurst = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--RATE_BURST=" + rateBurst + "\n");
+			} else if (args[i].contains("BROADCAST_RATE")) {
+				broadcastRate = Double.parseDouble(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--BROADCAST_RATE=" + broadcastRate + "\n");
+			} else if (args[i].contains("BROADCAST_BURST")) {
+				broadcastBurst = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--BROADCAST_BURST=" + broadcastBurst + "\n");
+			} else if (args[i].contains("FLOOD_LIMIT")) {
+				floodLimit = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--FLOOD_LIMIT=" + floodLimit + "\n");
+			} else if (args[i].contains("TLS_KEYSTORE")) {
+				tlsKeystore = args[i].substring(args[i].indexOf("=") + 1);
+				commandLine.append("Server: Got command line argument " +
+						"--TLS_KEYSTORE=" + tlsKeystore + "\n");
+			} else if (args[i].contains("TLS_PASSWORD")) {
+				tlsPassword = args[i].substring(args[i].indexOf("=") + 1);
+				commandLine.append("Server: Got command line argument " +
+						"--TLS_PASSWORD\n");
+			} else if (args[i].contains("TLS_SESSION_CACHE")) {
+				tlsSessionCache = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--TLS_SESSION_CACHE=" + tlsSessionCache + "\n");
+			} else if (args[i].contains("TLS_SESSION_TIMEOUT")) {
+				tlsSessionTimeout = Integer.parseInt(args[i]
+						.substring(args[i]
+								.indexOf("=") + 1, args[i]
+										.length()));
+				commandLine.append("Server: Got command line argument " +
+						"--TLS_SESSION_TIMEOUT=" + tlsSessionTimeout + "\n");
 			} else if (args[i].equals("-v")) {
 				System.out.println("Server: Got command line argument " + 
 						"'-v.' Entering verbosity mode.");
@@ -233,6 +484,97 @@ public class Server {
 			System.out.println("Server: Instantiating Server on port " + 
 					portNum + ".");
 		Server rootServer = new Server(portNum, blockTime, lastHour, timeOut);
+		rootServer.setOutboundQueue(outboundQueue, overflow, pushBack);
+		rootServer.setCoalesceMicros(coalesce);
+		rootServer.setOfflinePageSize(offlinePage);
+		rootServer.setLockoutCapacity(lockoutCap);
+		rootServer.setHostnameTtl(hostnameTtl);
+		rootServer.setCommandRate(rateLimit, rateBurst);
+		rootServer.setBroadcastRate(broadcastRate, broadcastBurst);
+		rootServer.setFloodLimit(floodLimit);
+		if (tlsKeystore != null) {
+			if (ioMode.equals("nio")) {
+				System.err.println("TLS is only available with " +
+						"--IO_MODE=thread or --IO_MODE=virtual.");
+				System.exit(1);
+			}
+			try {
+				rootServer.enableTls(new File(tlsKeystore), 
+						tlsPassword == null ? new char[0] 
+								: tlsPassword.toCharArray(), 
+						tlsSessionCache, tlsSessionTimeout);
+			} catch (IOException e) {
+				System.err.println("The server could not read its TLS " +
+						"key and certificate from " + tlsKeystore + ".");
+				e.printStackTrace();
+				System.exit(1);
+			} catch (GeneralSecurityException e) {
+				System.err.println("The server could not use the TLS " +
+						"key and certificate in " + tlsKeystore + ".");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		try {
+			rootServer.openOfflineStore(new File(offlineDir));
+		} catch (IOException e) {
+			System.err.println("The server could not open its offline " +
+					"message store in " + offlineDir + ".");
+			e.printStackTrace();
+			System.exit(1);
+		}
+		rootServer.registerMetrics();
+		rootServer.watchCredentials(verbose);
+		if (clusterPort > 0) {
+			try {
+				rootServer.joinCluster(
+						clusterHost, clusterPort, peers, verbose);
+			} catch (IOException e) {
+				System.err.println("The server could not listen for other " +
+						"nodes of its cluster on port " + clusterPort + ".");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+		if (metricsPort > 0) {
+			try {
+				Thread endpoint = new Thread(new MetricsEndpoint(
+						metricsPort, rootServer.getMetrics(), verbose),
+						"MetricsEndpoint");
+				endpoint.setDaemon(true);
+				endpoint.start();
+			} catch (IOException e) {
+				System.err.println("The server could not serve metrics on " +
+						"port " + metricsPort + ".");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
+
+		if (ioMode.equals("virtual")) {
+			Executor virtualThreads = newVirtualThreadExecutor();
+			if (virtualThreads == null) {
+				System.err.println("--IO_MODE=virtual requires a Java " +
+						"runtime with virtual threads (Java 21 or later).");
+				System.exit(1);
+			}
+			rootServer.setConnectionExecutor(virtualThreads);
+		} else if (ioMode.equals("nio")) {
+			/*
+			 * Multiplex every client over a fixed set of event loops instead 
+			 * of dedicating a thread to each one. The EventLoopServer never 
+			 * returns; it accepts connections until the process is killed.
+			 */
+			try {
+				new EventLoopServer(rootServer, eventLoops, verbose).run();
+			} catch (IOException e) {
+				System.err.println("The server had an error starting its " +
+						"event loops.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+			return;
+		}
 
 		while (true) {
 			try {
@@ -245,37 +587,57 @@ public class Server {
 				if (verbose)
 					System.out.println("Server: Received request to connect.");
 
-				// Open up PrintWriter to client and set autoflush to true
-				PrintWriter out = new PrintWriter
-						(clientSocket.getOutputStream(), true);
+				// Open up queued connection to client. Its writer runs 
+				// separately, so that sending to this client never blocks 
+				// on its socket.
+				SocketConnection connection;
+				InputStream input;
+				if (rootServer.tls != null) {
+					// The handshake is done by the client's own threads, 
+					// the first time they read or write.
+					TlsChannel tls = rootServer.newTlsChannel(clientSocket);
+					connection = new SocketConnection(
+							clientSocket, 
+							tls,
+							rootServer.newOutboundQueue(),
+							new OutboundCompressor(rootServer.getMetrics()));
+					input = Channels.newInputStream(tls);
+				} else {
+					connection = new SocketConnection(
+							clientSocket, 
+							rootServer.newOutboundQueue(),
+							new OutboundCompressor(rootServer.getMetrics()));
+					input = clientSocket.getInputStream();
+				}
+				rootServer.execute(connection);
 
-				// Open up BufferedReader with client
-				BufferedReader in = new BufferedReader
-						(new InputStreamReader
-								(clientSocket.getInputStream()));
+				// Open up BufferedReader with client. The reader's buffer 
+				// is small so that an idle client costs a few KB, and its 
+				// lines are limited so that a busy one cannot cost more.
+				BufferedReader in = new BoundedLineReader(
+						new InputStreamReader(input), 
+						READER_BUFFER_SIZE, 
+						ServerThread.MAX_LINE_LENGTH);
 
 
 				if (verbose)
 					System.out.println("Server: Creating and running new " +
 							"thread to serve client.");
 				/* 
-				 * Pass all 3 I/O arguments to new server thread (who will now 
+				 * Pass both I/O arguments to new server thread (who will now 
 				 * communicate with client), pass reference to root server 
 				 * (this), and resume listening on port args[0]
 				 */
-				Thread serverThread = new Thread(
-						new ServerThread(
-								clientSocket, 
-								in, 
-								out, 
-								rootServer, 
-								rootServer.TIME_OUT, 
-								verbose
-								)
+				ServerThread serverThread = new ServerThread(
+						connection, 
+						in, 
+						rootServer, 
+						rootServer.TIME_OUT, 
+						verbose
 						);
 
 				// Run serverThread
-				serverThread.start();
+				rootServer.execute(serverThread);
 			} catch (IOException e) {
 				System.err.println("There was an error in the client/server "
 						+ "communication.");
@@ -285,66 +647,492 @@ public class Server {
 	}
 
 	/**
-	 * Adds an IP address / username combination to the blocked list
+	 * Sets the Executor that runs each client's ServerThread. By default, 
+	 * every ServerThread is run on a new platform thread.
 	 * 
-	 * @param client
+	 * @param connectionExecutor Executor to run ServerThreads on, or null to 
+	 * start a new thread for each one.
 	 */
-	public void block(String address, String username) {
-		synchronized (this.blockedLock) {
-			if (!blocked.containsKey(address)) {
-				blocked.put(address, new TreeMap<String, Date>());
-				blocked.get(address).put(username, new Date());
-			} else {
-				blocked.get(address).put(username, new Date());
-			}
+	public void setConnectionExecutor(Executor connectionExecutor) {
+		this.connectionExecutor = connectionExecutor;
+	}
+
+	/**
+	 * Runs task, such as a ServerThread or the writer of its 
+	 * SocketConnection, on the connection executor, or on a new thread if 
+	 * none has been set.
+	 * 
+	 * @param task Task serving a newly connected client.
+	 */
+	public void execute(Runnable task) {
+		if (this.connectionExecutor == null) {
+			new Thread(task).start();
+		} else {
+			this.connectionExecutor.execute(task);
 		}
 	}
 
 	/**
-	 * Verifies whether client is still blocked.
+	 * Sets the size of, and overflow policy for, each client's queue of 
+	 * outbound messages.
 	 * 
-	 * @param client
+	 * @param capacity Maximum number of messages queued for one client.
+	 * 
+	 * @param policy What to do when a message is sent to a full queue.
+	 * 
+	 * @param pushBackMillis Longest time a sender waits under the 
+	 * BACKPRESSURE policy.
+	 */
+	public void setOutboundQueue(
+			int capacity,
+			OverflowPolicy policy,
+			long pushBackMillis) {
+		this.outboundCapacity = capacity;
+		this.overflowPolicy = policy;
+		this.pushBackMillis = pushBackMillis;
+	}
+
+	/**
+	 * Sets how long messages sent to a client by other clients, such as 
+	 * broadcasts, may be held back so that several are written together.
+	 * 
+	 * @param coalesceMicros Coalescing window in microseconds, or zero to 
+	 * write every message as soon as possible.
+	 */
+	public void setCoalesceMicros(long coalesceMicros) {
+		this.coalesceMicros = coalesceMicros;
+	}
+
+	/**
+	 * Sets how many offline messages are sent to a client at a time. The 
+	 * rest wait in the store until the client asks for them, so a client 
+	 * with a large backlog is neither flooded on login nor made to hold 
+	 * every message in memory at once.
+	 * 
+	 * @param pageSize Messages per page. Values below 1 are treated as 1.
+	 */
+	public void setOfflinePageSize(int pageSize) {
+		this.offlinePageSize = Math.max(1, pageSize);
+	}
+
+	/**
+	 * @return Number of offline messages sent to a client at a time.
+	 */
+	public int getOfflinePageSize() {
+		return this.offlinePageSize;
+	}
+
+	/**
+	 * Turns on reverse DNS resolution of client hostnames, which are then 
+	 * shown alongside client addresses in messages. Hostnames are resolved 
+	 * in the background and cached, so logins never wait on DNS.
+	 * 
+	 * @param ttlMillis Time for which a resolved hostname is used before 
+	 * it is resolved again, or zero to turn resolution off.
+	 */
+	public void setHostnameTtl(long ttlMillis) {
+		setHostnameResolver(HostnameCache.DNS, ttlMillis);
+	}
+
+	/**
+	 * Turns on resolution of client hostnames with resolver, as for 
+	 * setHostnameTtl().
+	 * 
+	 * @param resolver Resolver to look client addresses up with.
+	 * 
+	 * @param ttlMillis Time for which a resolved hostname is used, or zero 
+	 * to turn resolution off.
+	 */
+	public void setHostnameResolver(
+			HostnameCache.Resolver resolver, 
+			long ttlMillis) {
+		if (ttlMillis > 0L) {
+			this.hostnames = new HostnameCache(
+					resolver, ttlMillis, HOSTNAME_CACHE_CAPACITY);
+		} else {
+			this.hostnames = null;
+		}
+	}
+
+	/**
+	 * Returns the hostname of address if it is known, and starts resolving 
+	 * it in the background if it is not. Never blocks.
+	 * 
+	 * @param address Client address.
+	 * 
+	 * @return Hostname of address, or null if it has not been resolved or 
+	 * hostnames are not resolved at all.
+	 */
+	public String resolveHostname(InetAddress address) {
+		HostnameCache cache = this.hostnames;
+		return cache == null ? null : cache.lookup(address);
+	}
+
+	/**
+	 * @param address Client address.
+	 * 
+	 * @return Numeric form of address, preceded by its hostname if that is 
+	 * known.
+	 */
+	public String describeAddress(InetAddress address) {
+		String numeric = address.getHostAddress();
+		String hostname = resolveHostname(address);
+		if (hostname == null || hostname.equals(numeric)) {
+			return numeric;
+		}
+		return hostname + " (" + numeric + ")";
+	}
+
+	/**
+	 * @return Empty outbound queue for a newly connected client.
+	 */
+	public OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(
+				this.outboundCapacity,
+				this.overflowPolicy,
+				this.pushBackMillis,
+				this.coalesceMicros);
+	}
+
+	/**
+	 * Creates an Executor that starts a new virtual thread for each 
+	 * ServerThread. Looked up reflectively, so that the server still builds 
+	 * and runs on Java versions without virtual threads.
+	 * 
+	 * @return Virtual thread per task Executor, or null if this Java 
+	 * runtime does not support virtual threads.
+	 */
+	public static Executor newVirtualThreadExecutor() {
+		try {
+			return (Executor) java.util.concurrent.Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds an IP address / username combination to the blocked list for 
+	 * BLOCK_TIME. The block is forgotten once it ends.
+	 * 
+	 * @param address Numeric address the client connected from.
+	 * 
+	 * @param username Username the client failed to log in as.
+	 */
+	public void block(String address, String username) {
+		blocked.lock(address, username);
+	}
+
+	/**
+	 * Verifies whether client is still blocked. Never takes a lock.
+	 * 
+	 * @param address Numeric address the client connected from.
+	 * 
+	 * @param username Username the client is logging in as.
 	 * 
 	 * @return True if client is still blocked, false otherwise
 	 */
 	public boolean isBlocked(String address, String username) {
-		synchronized (this.blockedLock) { 
-			if (!blocked.containsKey(address)) {
-				return false;
-			}	else if (!blocked.get(address).containsKey(username)) {
-				return false;
-			} else {
-				Date now = new Date();
-				long elapsedTime = now.getTime() - 
-						blocked
-						.get(address)
-						.get(username)
-						.getTime();
-				return elapsedTime < this.BLOCK_TIME;
-			}
+		return blocked.isLocked(address, username);
+	}
+
+	/**
+	 * Serves every client accepted from now on over TLS, with the key and 
+	 * certificate in keystore. Sessions are cached, and session tickets 
+	 * issued, so that a client reconnecting within sessionTimeout seconds 
+	 * resumes its session with an abbreviated handshake.
+	 * 
+	 * @param keystore PKCS12 or JKS keystore holding the server's private 
+	 * key and certificate chain.
+	 * 
+	 * @param password Password of the keystore and of the key.
+	 * 
+	 * @param sessionCacheSize Most sessions cached, or 0 for no limit.
+	 * 
+	 * @param sessionTimeout Seconds for which a session may be resumed.
+	 * 
+	 * @throws IOException If keystore could not be read.
+	 * 
+	 * @throws GeneralSecurityException If keystore holds no usable key.
+	 */
+	public void enableTls(
+			File keystore, 
+			char[] password, 
+			int sessionCacheSize, 
+			int sessionTimeout) throws IOException, GeneralSecurityException {
+		// Stateless resumption for TLS 1.3 and 1.2 clients that support it. 
+		// Read when TLS is first used, so set before the context is made.
+		if (System.getProperty(
+				"jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty(
+					"jdk.tls.server.enableSessionTicketExtension", "true");
 		}
+		KeyStore keys = KeyStore.getInstance(keystore, password);
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keys, password);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagers.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(sessionCacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+		this.tls = context;
+	}
+
+	/**
+	 * @param socket Socket accepted from a client.
+	 * 
+	 * @return TLS channel over socket, not yet handshaken.
+	 * 
+	 * @throws IOException If the socket's streams could not be opened.
+	 */
+	TlsChannel newTlsChannel(Socket socket) throws IOException {
+		SSLEngine engine = this.tls.createSSLEngine();
+		engine.setUseClientMode(false);
+		return new TlsChannel(socket, engine, this.metrics);
 	}
 
+	/**
+	 * Limits how fast each client may give commands. A client may give 
+	 * burst commands at once, and then rate a second; commands beyond that 
+	 * are refused until the client slows down.
+	 * 
+	 * @param rate Commands a second, or 0 for no limit.
+	 * 
+	 * @param burst Commands that may be given at once.
+	 */
+	public void setCommandRate(double rate, int burst) {
+		this.commandRate = rate;
+		this.commandBurst = burst;
+	}
 
 	/**
-	 * Adds client/server pair to the connected map.
+	 * Limits how fast each client may broadcast or post to a channel, on 
+	 * top of the limit on all commands, since each is sent on to many 
+	 * users.
 	 * 
-	 * @param client
+	 * @param rate Broadcasts and posts a second, or 0 for no limit.
+	 * 
+	 * @param burst Broadcasts and posts that may be given at once.
 	 */
-	public void connect(String username, ServerThread serverThread) {
-		synchronized (this.connectedLock) { 
-			connected.put(username, serverThread);
+	public void setBroadcastRate(double rate, int burst) {
+		this.broadcastRate = rate;
+		this.broadcastBurst = burst;
+	}
+
+	/**
+	 * Sets how many commands in a row may be refused by the rate limits 
+	 * before the client giving them is disconnected.
+	 * 
+	 * @param limit Commands refused in a row, or 0 never to disconnect a 
+	 * client for them.
+	 */
+	public void setFloodLimit(int limit) {
+		this.floodLimit = limit;
+	}
+
+	/**
+	 * @return Commands refused in a row before a client is disconnected, or 
+	 * 0 if clients are never disconnected for them.
+	 */
+	public int getFloodLimit() {
+		return this.floodLimit;
+	}
+
+	/**
+	 * @return A new client's bucket of commands, or null if commands are 
+	 * not limited.
+	 */
+	public TokenBucket newCommandBucket() {
+		return this.commandRate > 0.0 
+				? new TokenBucket(this.commandRate, this.commandBurst) 
+				: null;
+	}
+
+	/**
+	 * @return A new client's bucket of broadcasts and posts, or null if 
+	 * they are not limited.
+	 */
+	public TokenBucket newBroadcastBucket() {
+		return this.broadcastRate > 0.0 
+				? new TokenBucket(this.broadcastRate, this.broadcastBurst) 
+				: null;
+	}
+
+	/**
+	 * Sets the largest number of address / username combinations held on 
+	 * the blocked list at once. When it is full, the blocks nearest to 
+	 * ending are dropped early to make room.
+	 * 
+	 * @param capacity Largest number of blocks.
+	 */
+	public void setLockoutCapacity(int capacity) {
+		blocked.setCapacity(capacity);
+	}
+
+	/**
+	 * @return Number of address / username combinations on the blocked 
+	 * list.
+	 */
+	public int getLockouts() {
+		return blocked.size();
+	}
+
+
+	/**
+	 * Adds client/server pair to the connected registry, unless the client 
+	 * is already connected.
+	 * 
+	 * @param username Username of the authenticated client.
+	 * 
+	 * @param serverThread ServerThread serving the client.
+	 * 
+	 * @return True if the client was connected, false if they already were.
+	 */
+	public boolean connect(String username, ServerThread serverThread) {
+		ClusterNode cluster = this.cluster;
+		if (cluster != null && cluster.isRemote(username)) {
+			return false;
 		}
+		if (!connected.register(username, serverThread)) {
+			return false;
+		}
+		connectedLastHr.seen(username);
+		if (cluster != null) {
+			cluster.joined(username);
+		}
+		return true;
 	}
 
 	/**
-	 * Removes client/server pair from the connected map.
+	 * Removes client/server pair from the connected registry.
 	 * 
 	 * @param client
 	 */
 	public void disconnect(String client) {
-		synchronized (this.connectedLock) {
-			connected.remove(client);
+		if (connected.unregister(client) != null) {
+			left(client);
+		}
+	}
+
+	/**
+	 * Removes client/server pair from the connected registry, if client is 
+	 * still served by serverThread.
+	 * 
+	 * @param client Username of the disconnecting client.
+	 * 
+	 * @param serverThread ServerThread that served the client.
+	 */
+	public void disconnect(String client, ServerThread serverThread) {
+		if (connected.unregister(client, serverThread)) {
+			left(client);
+		}
+	}
+
+	private void left(String client) {
+		connectedLastHr.seen(client);
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) {
+			cluster.left(client);
+		}
+	}
+
+	/**
+	 * Makes this server one node of a cluster, linked to the other nodes 
+	 * over TCP. Users logged in to any node can then message and see each 
+	 * other.
+	 * 
+	 * @param host Host the other nodes know this node by.
+	 * 
+	 * @param port Port to listen for the other nodes on.
+	 * 
+	 * @param nodes Address of every node in the cluster, as host:port.
+	 * 
+	 * @param verbose True if links between nodes should be logged.
+	 * 
+	 * @throws IOException If port could not be bound.
+	 */
+	public void joinCluster(
+			String host, 
+			int port, 
+			List<String> nodes, 
+			boolean verbose) throws IOException {
+		ClusterNode node = new ClusterNode(
+				this, host + ":" + port, port, nodes, verbose);
+		this.cluster = node;
+		node.start();
+	}
+
+	/**
+	 * @return Usernames of users logged in to other nodes of the cluster, 
+	 * if this server is in one.
+	 */
+	public Collection<String> getRemoteUsers() {
+		ClusterNode cluster = this.cluster;
+		if (cluster == null) {
+			return Collections.<String>emptyList();
+		}
+		return cluster.getRemoteUsers();
+	}
+
+	/**
+	 * Passes a message to the node of the cluster that recipient is logged 
+	 * in to.
+	 * 
+	 * @param sender Username of the sending client.
+	 * 
+	 * @param recipient Username of the recipient.
+	 * 
+	 * @param message Message sent.
+	 * 
+	 * @return False if recipient is not logged in to another node.
+	 */
+	public boolean routeMessage(
+			String sender, 
+			String recipient, 
+			String message) {
+		ClusterNode cluster = this.cluster;
+		return cluster != null && cluster.route(sender, recipient, message);
+	}
+
+	/**
+	 * Passes a broadcast, already fanned out to this server's clients, to 
+	 * every other node of the cluster.
+	 * 
+	 * @param sender Username of the broadcasting client.
+	 * 
+	 * @param message Message broadcast.
+	 */
+	public void forwardBroadcast(String sender, String message) {
+		ClusterNode cluster = this.cluster;
+		if (cluster != null) {
+			cluster.broadcast(sender, message);
+		}
+	}
+
+	/**
+	 * Delivers a message passed on by another node to the recipient, or 
+	 * stores it if they have logged out since.
+	 */
+	void deliverFromNode(String sender, String recipient, String message) {
+		ServerThread session = connected.get(recipient);
+		if (session == null 
+				|| !session.sendMessageToClient(message, sender, false)) {
+			addOfflineMessage(recipient, sender + ": " + message);
+		}
+	}
+
+	/**
+	 * Tells username, if they are logged in here, how many offline 
+	 * messages are waiting for them, after more have been handed over by 
+	 * another node.
+	 */
+	void noticeOfflineMessages(String username) {
+		ServerThread session = connected.get(username);
+		if (session != null) {
+			session.sendNoticeToClient(ServerThread.moreOfflineMessages(
+					countOfflineMessages(username)));
 		}
 	}
 
@@ -356,102 +1144,231 @@ public class Server {
 	 * @return True if client is connected, false otherwise.
 	 */
 	public boolean isConnected(String username) {
-		synchronized (this.connectedLock) {
-			return this.connected.containsKey(username);
+		return this.connected.contains(username);
+	}
+
+	/**
+	 * @return Registry of usernames to the ServerThreads serving them. It 
+	 * can be read without locking, and iterated through its snapshot().
+	 */
+	public SessionRegistry getConnected() {
+		return this.connected;
+	}
+
+	/**
+	 * @return Engine that delivers broadcasts to every connected client.
+	 */
+	public BroadcastFanout getFanout() {
+		return this.fanout;
+	}
+
+	/**
+	 * @return Channels, and the users subscribed to each.
+	 */
+	public ChannelRegistry getChannels() {
+		return this.channels;
+	}
+
+	/**
+	 * @return Reaper that times out this server's idle clients, started the 
+	 * first time it is asked for.
+	 */
+	public IdleReaper getIdleReaper() {
+		IdleReaper reaper = this.idleReaper;
+		if (reaper != null) {
+			return reaper;
 		}
+		this.idleReaperLock.lock();
+		try {
+			if (this.idleReaper == null) {
+				reaper = new IdleReaper(IDLE_TICK_MILLIS, false);
+				Thread thread = new Thread(reaper, "IdleReaper");
+				thread.setDaemon(true);
+				thread.start();
+				this.idleReaper = reaper;
+			}
+			return this.idleReaper;
+		} finally {
+			this.idleReaperLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Instrumentation of this server's commands, connections and 
+	 * queues.
+	 */
+	public ServerMetrics getMetrics() {
+		return this.metrics;
 	}
 
 	/**
-	 * @return Map of usernames to the ServerSockets they are connected to.
+	 * Exports this server's metrics over JMX, as SpeakEasy:type=ServerMetrics 
+	 * on the platform MBean server. Failure is reported but not fatal, as 
+	 * the server runs just as well without them.
 	 */
-	public TreeMap<String, ServerThread> getConnected() {
-		synchronized (this.connectedLock) {
-			return this.connected;
+	public void registerMetrics() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					this.metrics, 
+					new ObjectName("SpeakEasy:type=ServerMetrics"));
+		} catch (JMException e) {
+			System.err.println("The server could not export its metrics " +
+					"over JMX.");
+			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * @return Map containing usernames and times that they were authenticated.
-	 * When a user calls wholasthr connectedLastHr is 'refreshed' to reset the 
-	 * authentication time of all connected users to the current time, and all 
-	 * users who have been disconnected for at least LAST_HOUR time are removed.
+	 * @return Usernames of every user connected now or within the last 
+	 * LAST_HOUR, in alphabetical order. Costs about as much as the users 
+	 * returned, however many have ever connected.
 	 */
-	public TreeMap<String, Date> getConnectedLastHr() {
-		synchronized (this.connectedLastHrLock) {
-			return this.connectedLastHr;
+	public TreeSet<String> getConnectedLastHr() {
+		TreeSet<String> users = new TreeSet<String>();
+		SessionRegistry.Snapshot snapshot = connected.snapshot();
+		for (int i = 0; i < snapshot.size(); i++) {
+			users.add(snapshot.username(i));
 		}
+		connectedLastHr.addSeen(users);
+		users.addAll(getRemoteUsers());
+		return users;
 	}
 
 	/**
-	 * When client connects, add them to the 
+	 * Records that a user has been connected just now.
 	 * 
 	 * @param username Username of client to be added
 	 */
 	public void addConnectedLastHr(String username) {
-		synchronized (this.connectedLastHrLock) {
-			this.connectedLastHr.put(username, new Date());
-		}
+		connectedLastHr.seen(username);
 	}
 
 	/**
-	 * 'Refreshes' connectedLastHr in a two step process:
-	 *
-	 * 1) Adds all currently connected users to connectedLastHr with current 
-	 * time as value.
+	 * Returns the oldest page of messages that have been sent to username 
+	 * while they were offline.
 	 * 
-	 * 2) Checks all remaining users in connectedLastHr. If time between now 
-	 * and value in mapping is greater than LAST_HOUR, then user has been 
-	 * disconnected for at least LAST_HOUR, and they are removed from list.
+	 * @param username Client who has been receiving messages.
+	 * @return Up to getOfflinePageSize() of username's messages, in the 
+	 * order they were sent. They are removed from the store.
 	 */
-	public void refreshConnectedLastHr() {
-		synchronized (connectedLastHrLock) {
-			for (String username : connected.keySet()) {
-				connectedLastHr.put(username, new Date());
-			}
+	public List<String> getOfflineMessage(String username) {
+		return takeOfflineMessages(username, this.offlinePageSize);
+	}
 
-			for (String username: connectedLastHr.keySet()) {
-				if (new Date().getTime()
-						- this.connectedLastHr.get(username).getTime()
-						>= this.LAST_HOUR) {
-					connectedLastHr.remove(username);
-				}
-			}
+	/**
+	 * @return Up to max of username's oldest offline messages, which are 
+	 * removed from the store.
+	 */
+	List<String> takeOfflineMessages(String username, int max) {
+		OfflineMessageStore store = getOfflineStore();
+		if (store == null) {
+			return new ArrayList<String>();
 		}
+		return store.take(username, max);
 	}
 
 	/**
-	 * Returns messages that have been sent to username while they were 
-	 * offline.
-	 * 
 	 * @param username Client who has been receiving messages.
-	 * @return HashSet containing username's messages.
-	 */
-	public HashSet<String> getOfflineMessage(String username) {
-		synchronized (this.offlineMessageLock) {
-			if (this.offlineMessages.get(username) == null) {
-				return new HashSet<String>();
-			} else {
-				HashSet<String> messages = 
-						new HashSet<String>(offlineMessages.get(username));
-				this.offlineMessages.remove(username);
-				return messages;
-			}
+	 * @return Number of username's offline messages still in the store.
+	 */
+	public int countOfflineMessages(String username) {
+		OfflineMessageStore store = getOfflineStore();
+		if (store == null) {
+			return 0;
 		}
+		return store.count(username);
 	}
 
 	/**
-	 * Adds message to set of username's offline messages.
+	 * Adds message to username's offline messages, after any already 
+	 * waiting for them.
 	 * 
 	 * @param username
 	 * 
 	 * @param message
+	 * 
+	 * @return False if the message could not be stored.
 	 */
-	public void addOfflineMessage(String username, String message) {
-		synchronized (this.offlineMessageLock) {
-			if (!this.offlineMessages.containsKey(username)) {
-				this.offlineMessages.put(username, new HashSet<String>());
+	public boolean addOfflineMessage(String username, String message) {
+		ClusterNode cluster = this.cluster;
+		if (cluster != null && cluster.storeAtHome(username, message)) {
+			return true;
+		}
+		return storeOfflineMessage(username, message);
+	}
+
+	/**
+	 * Adds message to username's offline messages in this server's own 
+	 * store, even if another node of the cluster is username's home.
+	 * 
+	 * @return False if the message could not be stored.
+	 */
+	boolean storeOfflineMessage(String username, String message) {
+		OfflineMessageStore store = getOfflineStore();
+		if (store == null) {
+			return false;
+		}
+		try {
+			store.add(username, message);
+			return true;
+		} catch (IOException e) {
+			System.err.println("There was an error storing an offline " 
+					+ "message for " + username + ".");
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the store that offline messages are kept in. Messages already 
+	 * in the store are delivered as their recipients log in.
+	 * 
+	 * @param directory Directory to keep offline messages in.
+	 * 
+	 * @throws IOException If the store could not be opened.
+	 */
+	public void openOfflineStore(File directory) throws IOException {
+		OfflineMessageStore store = new OfflineMessageStore(directory);
+		this.offlineMessageLock.lock();
+		try {
+			this.offlineMessages = store;
+		} finally {
+			this.offlineMessageLock.unlock();
+		}
+	}
+
+	/**
+	 * @return Store of offline messages if it has been opened, or null. 
+	 * Unlike getOfflineStore(), never opens it.
+	 */
+	OfflineMessageStore getOpenOfflineStore() {
+		return this.offlineMessages;
+	}
+
+	/**
+	 * @return Store of offline messages, opened in the default directory if 
+	 * openOfflineStore() has not been called, or null if it could not be 
+	 * opened.
+	 */
+	private OfflineMessageStore getOfflineStore() {
+		OfflineMessageStore store = this.offlineMessages;
+		if (store != null) {
+			return store;
+		}
+		this.offlineMessageLock.lock();
+		try {
+			if (this.offlineMessages == null) {
+				this.offlineMessages = new OfflineMessageStore(
+						new File(DEFAULT_OFFLINE_DIRECTORY));
 			}
-			this.offlineMessages.get(username).add(message);
+			return this.offlineMessages;
+		} catch (IOException e) {
+			System.err.println("There was an error opening the offline " 
+					+ "message store in " + DEFAULT_OFFLINE_DIRECTORY + ".");
+			e.printStackTrace();
+			return null;
+		} finally {
+			this.offlineMessageLock.unlock();
 		}
 	}
 
@@ -474,55 +1391,24 @@ public class Server {
 	}
 
 	/**
-	 * When a command is run, increment the number of times it has been run to 
-	 * the statistics tree for analytic use.
+	 * When a command is run, increment the number of times it has been run 
+	 * for analytic use. Never blocks, however many clients are running 
+	 * commands.
 	 * 
 	 * @param command Command to be run
 	 */
 	public void addStatistic(String command) {
-		synchronized (this.statisticsLock) {
-			if (!this.statistics.containsKey(command)) {
-				this.statistics.put(command, 1);
-			} else {
-				int numCommands = this.statistics.get(command);
-				this.statistics.put(command, numCommands + 1);
-			}
-		}
+		this.statistics.record(command);
 	}
 
 	/**
 	 * Constructs String that represents analysis of commands used in program.
+	 * The string is only rebuilt once commands have been run since it was 
+	 * last asked for, and never while holding a lock.
 	 * 
 	 * @return Analytics string
 	 */
 	public String getStatisticsString() {
-		synchronized (this.statisticsLock) {
-			NumberFormat format = NumberFormat.getInstance();
-			format.setMinimumFractionDigits(2);
-			format.setMaximumFractionDigits(2);
-
-			StringBuilder builder = new StringBuilder();
-			builder.append("Statistics for commands run in chat program:\n\n");
-			double totalCommands = 0;
-			for (String command : this.statistics.keySet()) {
-				totalCommands += statistics.get(command);
-			}
-
-			for (String command : this.statistics.keySet()) {
-				Double numCommand = (double)this.statistics.get(command);
-				builder.append(command +
-						": " +
-						statistics.get(command) +
-						"/" +
-						(int)totalCommands +
-						" --- " +
-						format.format((100*numCommand)/totalCommands) + 
-						"%\n");
-			}
-			String ret = builder.toString();
-			ret = ret.substring(0, ret.length() - 1);
-
-			return ret;
-		}
+		return this.statistics.getAnalysis();
 	}
 }
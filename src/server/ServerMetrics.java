@@ -0,0 +1,326 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Instrumentation for a Server: how long commands, logins and broadcasts
+ * take, and how many connections, queued messages and offline messages
+ * there are. Durations are kept in LatencyHistograms, so tail latencies
+ * can be read; everything else is read from the server when asked for.
+ * Recording never takes a lock.
+ *
+ * Metrics are exported over JMX through ServerMetricsMXBean, and as plain
+ * text, in the Prometheus exposition format, by render(), which
+ * MetricsEndpoint serves.
+ *
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+	private static final String PREFIX = "speakeasy_";
+
+	private final Server server;
+	private final ConcurrentHashMap<String, LatencyHistogram> commands =
+			new ConcurrentHashMap<String, LatencyHistogram>();
+	private final LatencyHistogram authentication = new LatencyHistogram();
+	private final LongAdder connectionsOpened = new LongAdder();
+	private final LongAdder connectionsClosed = new LongAdder();
+	private final LongAdder compressionIn = new LongAdder();
+	private final LongAdder compressionOut = new LongAdder();
+	private final LatencyHistogram tlsHandshake = new LatencyHistogram();
+	private final LongAdder tlsResumed = new LongAdder();
+	private final LongAdder tlsFailed = new LongAdder();
+
+	/**
+	 * @param server Server whose connections, queues and offline messages
+	 * are reported.
+	 */
+	public ServerMetrics(Server server) {
+		this.server = server;
+	}
+
+	/**
+	 * Counts a newly accepted client connection.
+	 */
+	public void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	/**
+	 * Counts a client connection that has closed.
+	 */
+	public void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	/**
+	 * Records the time taken to process one command.
+	 *
+	 * @param command Name of the command. Only the commands the server
+	 * knows, and one name for all unknown commands, should be given, so
+	 * that the number of histograms stays small.
+	 *
+	 * @param nanos Time taken, in nanoseconds.
+	 */
+	public void recordCommand(String command, long nanos) {
+		LatencyHistogram histogram = commands.get(command);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = commands.putIfAbsent(command, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	/**
+	 * Records the time taken to check one login attempt, and to welcome
+	 * the user if it succeeded.
+	 *
+	 * @param nanos Time taken, in nanoseconds.
+	 */
+	public void recordAuthentication(long nanos) {
+		authentication.record(nanos);
+	}
+
+	/**
+	 * Records one batch of output compressed for a client.
+	 *
+	 * @param in Bytes before compression.
+	 *
+	 * @param out Bytes written to the client.
+	 */
+	public void recordCompression(long in, long out) {
+		compressionIn.add(in);
+		compressionOut.add(out);
+	}
+
+	/**
+	 * Records one finished TLS handshake.
+	 *
+	 * @param nanos Time taken, in nanoseconds, including round trips to
+	 * the client.
+	 *
+	 * @param resumed True if an earlier session was resumed, rather than a
+	 * full handshake done.
+	 */
+	public void recordHandshake(long nanos, boolean resumed) {
+		tlsHandshake.record(nanos);
+		if (resumed) {
+			tlsResumed.increment();
+		}
+	}
+
+	/**
+	 * Counts a TLS handshake that failed or timed out.
+	 */
+	public void recordHandshakeFailure() {
+		tlsFailed.increment();
+	}
+
+	public long getConnectionsActive() {
+		return connectionsOpened.sum() - connectionsClosed.sum();
+	}
+
+	public long getConnectionsTotal() {
+		return connectionsOpened.sum();
+	}
+
+	public int getUsersConnected() {
+		return server.getConnected().size();
+	}
+
+	public long getOutboundQueueDepth() {
+		SessionRegistry.Snapshot connected = server.getConnected().snapshot();
+		long depth = 0;
+		for (int i = 0; i < connected.size(); i++) {
+			depth += connected.session(i).getQueuedMessages();
+		}
+		return depth;
+	}
+
+	public long getOutboundQueueDepthMax() {
+		SessionRegistry.Snapshot connected = server.getConnected().snapshot();
+		long max = 0;
+		for (int i = 0; i < connected.size(); i++) {
+			max = Math.max(max, connected.session(i).getQueuedMessages());
+		}
+		return max;
+	}
+
+	public int getOfflineRecipients() {
+		OfflineMessageStore store = server.getOpenOfflineStore();
+		return store == null ? 0 : store.recipients();
+	}
+
+	public long getOfflineMessages() {
+		OfflineMessageStore store = server.getOpenOfflineStore();
+		return store == null ? 0L : store.messages();
+	}
+
+	public int getLockouts() {
+		return server.getLockouts();
+	}
+
+	public long getCompressedBytesIn() {
+		return compressionIn.sum();
+	}
+
+	public long getCompressedBytesOut() {
+		return compressionOut.sum();
+	}
+
+	public long getTlsHandshakesResumed() {
+		return tlsResumed.sum();
+	}
+
+	public long getTlsHandshakesFailed() {
+		return tlsFailed.sum();
+	}
+
+	public Map<String, LatencySummary> getCommandLatency() {
+		TreeMap<String, LatencySummary> latency =
+				new TreeMap<String, LatencySummary>();
+		for (Map.Entry<String, LatencyHistogram> entry : commands.entrySet()) {
+			latency.put(entry.getKey(), entry.getValue().summarize());
+		}
+		return latency;
+	}
+
+	public LatencySummary getAuthenticationLatency() {
+		return authentication.summarize();
+	}
+
+	public LatencySummary getBroadcastLatency() {
+		return server.getFanout().getLatency().summarize();
+	}
+
+	public LatencySummary getTlsHandshakeLatency() {
+		return tlsHandshake.summarize();
+	}
+
+	/**
+	 * @return Every metric, as plain text in the Prometheus exposition
+	 * format. Latencies are in seconds.
+	 */
+	public String render() {
+		StringBuilder text = new StringBuilder(4096);
+
+		String name = PREFIX + "command_latency_seconds";
+		header(text, name, "summary", "Time taken to process each command.");
+		for (Map.Entry<String, LatencySummary> entry
+				: getCommandLatency().entrySet()) {
+			summary(text, name, "command=\"" + entry.getKey() + "\"",
+					entry.getValue());
+		}
+
+		name = PREFIX + "authentication_latency_seconds";
+		header(text, name, "summary",
+				"Time taken to check each login attempt.");
+		summary(text, name, null, getAuthenticationLatency());
+
+		name = PREFIX + "broadcast_latency_seconds";
+		header(text, name, "summary",
+				"Time taken to queue each broadcast or channel post for "
+				+ "every recipient.");
+		summary(text, name, null, getBroadcastLatency());
+
+		name = PREFIX + "tls_handshake_latency_seconds";
+		header(text, name, "summary",
+				"Time taken by each finished TLS handshake.");
+		summary(text, name, null, getTlsHandshakeLatency());
+
+		gauge(text, "connections_active", "gauge",
+				"Clients connected, whether or not they have logged in.",
+				getConnectionsActive());
+		gauge(text, "connections_total", "counter",
+				"Clients that have connected since the server started.",
+				getConnectionsTotal());
+		gauge(text, "users_connected", "gauge",
+				"Users logged in.", getUsersConnected());
+		gauge(text, "outbound_queue_depth", "gauge",
+				"Messages waiting to be written to every logged in user.",
+				getOutboundQueueDepth());
+		gauge(text, "outbound_queue_depth_max", "gauge",
+				"Most messages waiting to be written to one logged in user.",
+				getOutboundQueueDepthMax());
+		gauge(text, "offline_recipients", "gauge",
+				"Users with offline messages waiting.",
+				getOfflineRecipients());
+		gauge(text, "offline_messages", "gauge",
+				"Offline messages waiting, for every user.",
+				getOfflineMessages());
+		gauge(text, "lockouts", "gauge",
+				"Usernames blocked at an address after failed logins.",
+				getLockouts());
+		gauge(text, "deflate_bytes_in_total", "counter",
+				"Bytes of output compressed for clients that asked for " +
+				"deflate.", getCompressedBytesIn());
+		gauge(text, "deflate_bytes_out_total", "counter",
+				"Bytes written to clients that asked for deflate, after " +
+				"compression.", getCompressedBytesOut());
+		gauge(text, "tls_handshakes_resumed_total", "counter",
+				"TLS handshakes that resumed an earlier session.",
+				getTlsHandshakesResumed());
+		gauge(text, "tls_handshakes_failed_total", "counter",
+				"TLS handshakes that failed or timed out.",
+				getTlsHandshakesFailed());
+		return text.toString();
+	}
+
+	private static void header(
+			StringBuilder text,
+			String name,
+			String type,
+			String help) {
+		text.append("# HELP ").append(name).append(' ').append(help)
+				.append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type)
+				.append('\n');
+	}
+
+	private static void gauge(
+			StringBuilder text,
+			String name,
+			String type,
+			String help,
+			long value) {
+		header(text, PREFIX + name, type, help);
+		text.append(PREFIX).append(name).append(' ').append(value)
+				.append('\n');
+	}
+
+	private static void summary(
+			StringBuilder text,
+			String name,
+			String label,
+			LatencySummary summary) {
+		String labels = label == null ? "" : label + ",";
+		quantile(text, name, labels, "0.5", summary.getP50Nanos());
+		quantile(text, name, labels, "0.99", summary.getP99Nanos());
+		quantile(text, name, labels, "0.999", summary.getP999Nanos());
+		String suffix = label == null ? "" : "{" + label + "}";
+		text.append(name).append("_sum").append(suffix).append(' ')
+				.append(seconds(summary.getTotalNanos())).append('\n');
+		text.append(name).append("_count").append(suffix).append(' ')
+				.append(summary.getCount()).append('\n');
+	}
+
+	private static void quantile(
+			StringBuilder text,
+			String name,
+			String labels,
+			String quantile,
+			long nanos) {
+		text.append(name).append('{').append(labels)
+				.append("quantile=\"").append(quantile).append("\"} ")
+				.append(seconds(nanos)).append('\n');
+	}
+
+	private static double seconds(long nanos) {
+		return nanos / 1e9;
+	}
+}
@@ -0,0 +1,103 @@
+package server;
+
+import java.util.Map;
+
+/**
+ *
+ * Management interface through which ServerMetrics is exported over JMX,
+ * under the name SpeakEasy:type=ServerMetrics. Latencies are summaries of
+ * everything recorded since the server started.
+ *
+ */
+public interface ServerMetricsMXBean {
+
+	/**
+	 * @return Number of clients connected, whether or not they have logged
+	 * in.
+	 */
+	public long getConnectionsActive();
+
+	/**
+	 * @return Number of clients that have connected since the server
+	 * started.
+	 */
+	public long getConnectionsTotal();
+
+	/**
+	 * @return Number of users logged in.
+	 */
+	public int getUsersConnected();
+
+	/**
+	 * @return Number of messages waiting to be written to every logged in
+	 * user.
+	 */
+	public long getOutboundQueueDepth();
+
+	/**
+	 * @return Largest number of messages waiting to be written to any one
+	 * logged in user.
+	 */
+	public long getOutboundQueueDepthMax();
+
+	/**
+	 * @return Number of users with offline messages waiting.
+	 */
+	public int getOfflineRecipients();
+
+	/**
+	 * @return Number of offline messages waiting, for every user.
+	 */
+	public long getOfflineMessages();
+
+	/**
+	 * @return Number of usernames blocked at an address after failed
+	 * logins.
+	 */
+	public int getLockouts();
+
+	/**
+	 * @return Bytes of output compressed for clients that asked for
+	 * deflate, before compression.
+	 */
+	public long getCompressedBytesIn();
+
+	/**
+	 * @return Bytes written to clients that asked for deflate, after
+	 * compression. The difference from getCompressedBytesIn() is the
+	 * bandwidth saved.
+	 */
+	public long getCompressedBytesOut();
+
+	/**
+	 * @return Number of TLS handshakes that resumed an earlier session.
+	 * The rest of those counted by getTlsHandshakeLatency() were full
+	 * handshakes.
+	 */
+	public long getTlsHandshakesResumed();
+
+	/**
+	 * @return Number of TLS handshakes that failed or timed out.
+	 */
+	public long getTlsHandshakesFailed();
+
+	/**
+	 * @return Time taken to process each kind of command, by command.
+	 */
+	public Map<String, LatencySummary> getCommandLatency();
+
+	/**
+	 * @return Time taken to check each login attempt and welcome the user.
+	 */
+	public LatencySummary getAuthenticationLatency();
+
+	/**
+	 * @return Time taken to queue each broadcast for every recipient.
+	 */
+	public LatencySummary getBroadcastLatency();
+
+	/**
+	 * @return Time taken by each finished TLS handshake.
+	 */
+	public LatencySummary getTlsHandshakeLatency();
+}
@@ -1,24 +1,75 @@
 package server;
 
 import java.net.*;
-import java.util.Date;
-import java.util.HashSet;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.io.*;
 
+import protocol.Frame;
+
 public class ServerThread implements Runnable {
+	/**
+	 * Stages of a client's session. Input is interpreted according to the 
+	 * current stage, which lets the same logic be driven either by run() on 
+	 * a dedicated thread or one line at a time by an EventLoop.
+	 */
+	private enum Stage { USERNAME, PASSWORD, COMMAND, CLOSED }
+
 	private Socket clientSocket;
 	private BufferedReader in;
 	private PrintWriter out;
+	// Replaced by the session's own thread if the client asks for framing, 
+	// and read by other clients' threads when they send to this client.
+	private volatile ResponseWriter responses;
+	private volatile boolean framed = false;
+	private ClientConnection connection;
 	private Server rootServer;
-	private HashSet<String> blockList = new HashSet<String>();
+	// Read by other clients' threads when they send to this client.
+	private Set<String> blockList = ConcurrentHashMap.newKeySet();
 	private String clientUsername;
-	private Date lastActivity = new Date();
+	// Monotonic time of the client's last input, read by the IdleReaper.
+	private volatile long lastActivity = System.nanoTime();
+	private volatile boolean timedOut = false;
 	private final Long TIME_OUT;
 	private boolean verbose;
 	private String clientAddress;
+	private Stage stage = Stage.USERNAME;
+	private String lastUsername;
+	private String pendingUsername;
+	private int numFailures = 0;
+	private volatile boolean disconnected = false;
+	private CommandParser parser = new CommandParser();
+	private static final String TIMED_OUT = "You have timed out due to " +
+			"inactivity. Please log back in if you would like to continue " +
+			"chatting.";
+	private static final String FLOODED = "You have been disconnected " +
+			"for sending commands too quickly.";
+	private static final String TOO_LONG = "You have been disconnected " +
+			"for sending a line that was too long.";
+	// Longest line, in characters or bytes, a client may send: a quarter of
+	// the largest frame payload, so that anything relayed from a line fits
+	// in a frame however it is encoded. Enforced by NioConnection, and by
+	// the BoundedLineReader a Server reads each client's lines with.
+	static final int MAX_LINE_LENGTH = Frame.MAX_PAYLOAD_LENGTH / 4;
+	// Null if the server does not limit commands, or broadcasts and posts.
+	private TokenBucket commandBucket;
+	private TokenBucket broadcastBucket;
+	private int throttledInARow = 0;
+	// Time spent so far checking the current login attempt.
+	private long authenticationNanos = 0L;
+	// Commands whose processing times are recorded separately; any other 
+	// input is recorded as an unknown command.
+	private static final String[] COMMANDS = { "whoelse", "wholasthr", 
+			"more", "help", "analysis", "broadcast", "block", "unblock", 
+			"message", "join", "leave", "post", "channels" };
 
 	public ServerThread (
 			Socket clientSocket, 
@@ -28,6 +79,7 @@ public class ServerThread implements Runnable {
 		this.clientSocket = clientSocket;
 		this.in = in;
 		this.out = out;
+		this.responses = new TextResponseWriter(out);
 		this.rootServer = rootServer;
 		this.TIME_OUT = 1800000L;
 		this.verbose = false;
@@ -43,6 +95,7 @@ public class ServerThread implements Runnable {
 		this.clientSocket = clientSocket;
 		this.in = in;
 		this.out = out;
+		this.responses = new TextResponseWriter(out);
 		this.rootServer = rootServer;
 		this.TIME_OUT = TIME_OUT;
 		this.verbose = verbose;
@@ -57,11 +110,99 @@ public class ServerThread implements Runnable {
 		this.clientSocket = clientSocket;
 		this.in = in;
 		this.out = out;
+		this.responses = new TextResponseWriter(out);
 		this.rootServer = rootServer;
 		this.TIME_OUT = TIME_OUT;
 		this.verbose = false;
 	}
 
+	/**
+	 * Constructs a ServerThread whose output is queued on connection and 
+	 * written by the connection's own writer, so that sending to a slow 
+	 * client never blocks the sender on the client's socket.
+	 * 
+	 * @param connection Connection to the client.
+	 * 
+	 * @param in Reader for the client's input when the ServerThread is run 
+	 * on its own thread, or null if it is driven by an EventLoop, which 
+	 * gives it input one line at a time through receive().
+	 * 
+	 * Output is not flushed line by line: each response, and the prompt 
+	 * that follows it, is flushed to the connection as a single message.
+	 */
+	public ServerThread (
+			ClientConnection connection,
+			BufferedReader in,
+			Server rootServer,
+			Long TIME_OUT,
+			boolean verbose) {
+		this.connection = connection;
+		this.clientSocket = connection.getSocket();
+		this.in = in;
+		this.out = new PrintWriter(new ConnectionWriter(connection), false);
+		this.responses = new TextResponseWriter(this.out);
+		this.rootServer = rootServer;
+		this.TIME_OUT = TIME_OUT;
+		this.verbose = verbose;
+		rootServer.getMetrics().connectionOpened();
+		rootServer.getIdleReaper().watch(this);
+	}
+
+	/**
+	 * @return Monotonic time, as System.nanoTime() gives it, at which the 
+	 * client will have been idle for TIME_OUT.
+	 */
+	public long getIdleDeadline() {
+		return this.lastActivity + TIME_OUT * 1000000L;
+	}
+
+	/**
+	 * @return True once the client's connection has closed.
+	 */
+	public boolean isDisconnected() {
+		return this.disconnected;
+	}
+
+	/**
+	 * Tells an idle client that it has timed out, and closes its 
+	 * connection. Called by the IdleReaper, on its own thread, so the 
+	 * message is queued directly rather than through responses, which only 
+	 * the session's own thread writes to. The session ends as it would had 
+	 * the client closed the connection.
+	 */
+	public void timeOut() {
+		if (this.disconnected) {
+			return;
+		}
+		this.timedOut = true;
+		if (verbose)
+			System.out.println("ServerThread: Client timed out due to " +
+					"inactivity.");
+		try {
+			if (this.connection != null) {
+				// Runs on the IdleReaper's thread, which must not wait on
+				// one client; if the queue is full, the goodbye is dropped.
+				this.connection.send(
+						responses.encodeDisconnect(TIMED_OUT), false);
+				this.connection.close();
+			} else {
+				this.clientSocket.close();
+			}
+		} catch (IOException e) {
+			System.err.println("There was an error closing the connection " 
+					+ "to a client that timed out.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return Number of messages waiting to be written to the client, or 0 
+	 * if its output is not queued.
+	 */
+	public int getQueuedMessages() {
+		return this.connection == null ? 0 : this.connection.getQueuedMessages();
+	}
+
 	/**
 	 * Returns PrintWriter. Used to test ServerThread construction.
 	 * @return PrintWriter
@@ -71,33 +212,36 @@ public class ServerThread implements Runnable {
 	}
 
 	public void run() {
+		try {
+			serve();
+		} finally {
+			// Disconnect client from rootServer's connected registry, even
+			// if a command failed with an unchecked exception, so that the
+			// user is not left looking logged in.
+			disconnected();
+			release();
+		}
+	}
+
+	/**
+	 * Authenticates the client, then handles its commands until it logs
+	 * out, times out or goes away.
+	 */
+	private void serve() {
+		boolean authenticated = false;
 		try {
 			if (verbose)
 				System.out.println("ServerThread: Authenticating client");
-			boolean authenticated = authenticate();
-			if (!authenticated) {
-				return;
-			} else {
-				if (verbose)
-					System.out.println("Client successfully authenticated.");
-				this.lastActivity = new Date();
-				out.println(">Welcome to simple chat server!");
-				HashSet<String> offlineMessages = 
-						rootServer.getOfflineMessage(this.clientUsername);
-
-				if (offlineMessages.size() > 0) {
-					out.println(">You received the following message(s) " +
-							"when you were offline:");
-					for (String offlineMessage : offlineMessages) {
-						out.println(offlineMessage);
-					}
-				}
-				out.println(">Command:");
-			}
+			authenticated = authenticate();
+		} catch (BoundedLineReader.LineTooLongException e) {
+			responses.disconnect(TOO_LONG);
 		} catch (IOException e) {
-			System.err.println("There was an I/O error when authenticating "
-					+ "the client.");
-			e.printStackTrace();
+			// A client that timed out has had its socket closed under it.
+			if (!timedOut) {
+				System.err.println("There was an I/O error when "
+						+ "authenticating the client.");
+				e.printStackTrace();
+			}
 		}
 
 		/*
@@ -107,33 +251,32 @@ public class ServerThread implements Runnable {
 		try {
 			// While user has not timed out, wait for input and process said 
 			// input when it is received
-								
+			if (authenticated) {
 				while ((input = in.readLine()) != null) {
-					if((new Date().getTime() - lastActivity.getTime())
-							>= TIME_OUT) {
-						out.println("You have timed out due to inactivity. " +
-								"Please log back in if you would like to " +
-								"continue chatting.");
-						break;
-					}
-					if (verbose)
-						System.out.println("ServerThread: Got input from client," +
-								" processing now.");
-					if (input.equals("logout")) {
-						out.println("Thank you for using the chat program!");
+					if (!handleCommand(input)) {
 						break;
 					}
-					process(input);
-					out.println(">Command: ");
 				}
-
-			// Disconnect client from rootServer's connected Map
-			rootServer.disconnect(this.clientUsername);
-
+			}
+		} catch (BoundedLineReader.LineTooLongException e) {
+			responses.disconnect(TOO_LONG);
 		} catch (IOException e) {
-			System.err.println("There was an I/O error while communicating "
-					+ "with the client.");
-			e.printStackTrace();
+			if (!timedOut) {
+				System.err.println("There was an I/O error while "
+						+ "communicating with the client.");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Closes the client's connection once run() is done with it.
+	 */
+	private void release() {
+		// A connection closes its socket once its queued output is written.
+		if (this.connection != null) {
+			this.responses.close();
+			return;
 		}
 
 		try {
@@ -147,6 +290,181 @@ public class ServerThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Starts a session that is driven by an EventLoop by prompting the 
+	 * client for their username. Input is then given to receive().
+	 */
+	public void start() {
+		if (verbose)
+			System.out.println("ServerThread: Authenticating client");
+		requestUsername();
+		responses.flush();
+	}
+
+	/**
+	 * Handles one line of input from a client whose session is driven by an 
+	 * EventLoop. The line is used as a username, password or command 
+	 * depending on how far the client has progressed, exactly as it would be 
+	 * by authenticate() and run().
+	 * 
+	 * @param input Line received from the client, without its terminator.
+	 */
+	public void receive(String input) {
+		if (stage == Stage.USERNAME || stage == Stage.PASSWORD) {
+			authenticationInput(input);
+		} else if (stage == Stage.COMMAND) {
+			if (!handleCommand(input)) {
+				stage = Stage.CLOSED;
+			}
+		}
+
+		if (stage == Stage.CLOSED) {
+			responses.close();
+		} else {
+			responses.flush();
+		}
+	}
+
+	/**
+	 * Ends the session of a client driven by an EventLoop that sent a line 
+	 * longer than MAX_LINE_LENGTH, telling the client why. 
+	 */
+	public void lineTooLong() {
+		responses.disconnect(TOO_LONG);
+		stage = Stage.CLOSED;
+		responses.close();
+	}
+
+	/**
+	 * Called once the client's connection has closed, for whatever reason. 
+	 * Removes an authenticated client from rootServer's connected registry.
+	 */
+	public void disconnected() {
+		if (disconnected) {
+			return;
+		}
+		disconnected = true;
+		if (this.clientUsername != null) {
+			rootServer.disconnect(this.clientUsername, this);
+		}
+		if (this.connection != null) {
+			rootServer.getMetrics().connectionClosed();
+			rootServer.getIdleReaper().forget(this);
+		}
+		stage = Stage.CLOSED;
+	}
+
+	/**
+	 * Handles one command from an authenticated client, followed by a fresh 
+	 * prompt. The response and prompt are flushed together, so a command 
+	 * costs one write however many lines it prints.
+	 * 
+	 * @param input Command given by the client.
+	 * 
+	 * @return False if the client logged out or timed out, and the session 
+	 * should end. True otherwise.
+	 */
+	private boolean handleCommand(String input) {
+		if (timedOut || System.nanoTime() - getIdleDeadline() >= 0L) {
+			responses.disconnect(TIMED_OUT);
+			return false;
+		}
+		if (verbose)
+			System.out.println("ServerThread: Got input from client," +
+					" processing now.");
+		if (input.equals("logout")) {
+			responses.disconnect("Thank you for using the chat program!");
+			return false;
+		}
+		long start = System.nanoTime();
+		process(input);
+		rootServer.getMetrics().recordCommand(
+				commandName(), System.nanoTime() - start);
+		int floodLimit = rootServer.getFloodLimit();
+		if (floodLimit > 0 && throttledInARow >= floodLimit) {
+			responses.disconnect(FLOODED);
+			return false;
+		}
+		responses.prompt(">Command: ");
+		responses.flush();
+		return true;
+	}
+
+	/**
+	 * @return Name under which the command last given to process() is 
+	 * recorded in the server's metrics.
+	 */
+	private String commandName() {
+		for (String command : COMMANDS) {
+			if (parser.commandIs(command)) {
+				return command;
+			}
+		}
+		return "unknown";
+	}
+
+	/**
+	 * Greets a newly authenticated client, and sends them the first page of 
+	 * any messages they received while offline.
+	 */
+	private void welcome() {
+		if (verbose)
+			System.out.println("Client successfully authenticated.");
+		this.lastActivity = System.nanoTime();
+		this.commandBucket = rootServer.newCommandBucket();
+		this.broadcastBucket = rootServer.newBroadcastBucket();
+		responses.notice(">Welcome to simple chat server!");
+		List<String> offlineMessages = 
+				rootServer.getOfflineMessage(this.clientUsername);
+
+		if (offlineMessages.size() > 0) {
+			responses.notice(">You received the following message(s) " +
+					"when you were offline:");
+			for (String offlineMessage : offlineMessages) {
+				responses.notice(offlineMessage);
+			}
+			noticeMoreOfflineMessages();
+		}
+		responses.prompt(">Command:");
+	}
+
+	/**
+	 * Sends the client the next page of their offline messages. Pages are 
+	 * only sent when asked for, so however many messages are waiting, the 
+	 * server never holds or queues more than a page of them for a client.
+	 */
+	private void runMore() {
+		List<String> offlineMessages = 
+				rootServer.getOfflineMessage(this.clientUsername);
+		if (offlineMessages.isEmpty()) {
+			responses.notice("You have no more offline messages.");
+			return;
+		}
+		for (String offlineMessage : offlineMessages) {
+			responses.notice(offlineMessage);
+		}
+		noticeMoreOfflineMessages();
+	}
+
+	/**
+	 * Tells the client how many offline messages are still waiting, if any.
+	 */
+	private void noticeMoreOfflineMessages() {
+		int remaining = rootServer.countOfflineMessages(this.clientUsername);
+		if (remaining > 0) {
+			responses.notice(moreOfflineMessages(remaining));
+		}
+	}
+
+	/**
+	 * @return Notice telling a client that remaining offline messages are 
+	 * waiting for them.
+	 */
+	static String moreOfflineMessages(int remaining) {
+		return ">You have " + remaining + " more offline " +
+				"message(s). Enter 'more' to see them.";
+	}
+
 	/**
 	 * This method is the brain of the ServerThread class. Given the command 
 	 * given by the client as input, perform certain functions and return an 
@@ -161,137 +479,186 @@ public class ServerThread implements Runnable {
 			System.out.println("Processing input from client: " + input);
 		
 		if (input == null) {
-			out.println("You have given me a null command that I can't use. "
+			responses.notice("You have given me a null command that I can't use. "
 					+ "Please try again.");
 			this.rootServer.addStatistic("null");
 			return;
 		}
-		this.lastActivity = new Date();
+		this.lastActivity = System.nanoTime();
 
-		// Split command into multiple words by spaces:
-		String[] inputArray = input.split(" ");
+		// Split command into words by spaces, without copying them:
+		parser.parse(input);
+		int words = parser.getWordCount();
+		if (throttled()) {
+			return;
+		}
 
-		// For commands of length 1:
-		if(inputArray.length == 1){
+		// For commands of length 1 (or none, if the command is all spaces):
+		if(words <= 1){
 
 			// If running whoelse:
-			if (inputArray[0].equals("whoelse")) {
+			if (parser.commandIs("whoelse")) {
 				if (verbose)
 					System.out.println("ServerThread: Running whoelse");
 				this.rootServer.addStatistic("whoelse");
 				runWhoElse();
 
 				// If running wholasthr:
-			} else if (inputArray[0].equals("wholasthr")) {
+			} else if (parser.commandIs("wholasthr")) {
 				if (verbose)
 					System.out.println("ServerThread: Running wholasthr");
 				this.rootServer.addStatistic("wholasthr");
 				runWhoLastHr();
 
-			} else if (inputArray[0].equals("help")) {
+			} else if (parser.commandIs("more")) {
+				if (verbose)
+					System.out.println("ServerThread: Running more");
+				this.rootServer.addStatistic("more");
+				runMore();
+
+			} else if (parser.commandIs("channels")) {
+				if (verbose)
+					System.out.println("ServerThread: Running channels");
+				this.rootServer.addStatistic("channels");
+				runChannels();
+
+			} else if (parser.commandIs("help")) {
 				if(verbose)
 					System.out.println("Running help");
 				
 				this.rootServer.addStatistic("help");
-				out.println("List of available commands:");
-				out.println("whoelse: + " +
+				responses.notice("List of available commands:");
+				responses.notice("whoelse: + " +
 						"Displays names of other connected users.");
-				out.println("wholasthr: " +
+				responses.notice("wholasthr: " +
 						"Displays name of only those users that connected " +
 						"within the last " + this.rootServer.getLastHour() + 
 						" microseconds.");
-				out.println("broadcast <message>: " +
+				responses.notice("broadcast <message>: " +
 						"Broadcasts <message> to all connected users.");
-				out.println("message <user> <message>: " +
+				responses.notice("message <user> <message>: " +
 						"Private <message> to a <user>");
-				out.println("block <user>: " +
+				responses.notice("block <user>: " +
 						"Blocks the <user> from sending any messages. " +
 						"If <user> is self, displays error.");
-				out.println("unblock <user>: " +
+				responses.notice("unblock <user>: " +
 						"Unblocks the <user> who has been previously blocked. " +
 						"If <user> was not already blocked, display error.");
-				out.println("analysis: " + 
+				responses.notice("analysis: " + 
 						"Prints a statistical distribution of all of the " +
 						"commands invoked thus far, by all clients, since " +
 						"the Server was first run.");
-				out.println("logout: Log out of the chat program.");
+				responses.notice("more: " +
+						"Displays the next page of messages received while " +
+						"offline.");
+				responses.notice("join <channel>: " +
+						"Subscribes to <channel>, creating it if need be.");
+				responses.notice("leave <channel>: " +
+						"Unsubscribes from <channel>.");
+				responses.notice("post <channel> <message>: " +
+						"Sends <message> to every member of <channel>.");
+				responses.notice("channels: " +
+						"Displays the channels you are subscribed to.");
+				responses.notice("logout: Log out of the chat program.");
 			
-			} else if (inputArray[0].equals("analysis")) {							
+			} else if (parser.commandIs("analysis")) {							
 				if (verbose)
 					System.out.println("ServerThread: Running analysis");
 
-				out.println(this.rootServer.getStatisticsString());
+				responses.notice(this.rootServer.getStatisticsString());
 				
 			} else {
 				// Otherwise, incorrect command
 				this.rootServer.addStatistic("Unknown command");
-				out.println("You have given me a command I don't understand. "
+				responses.notice("You have given me a command I don't understand. "
 						+ "Please try again.");
 			}
 
 			// For commands of length 2:
-		} else if (inputArray.length == 2) {
+		} else if (words == 2) {
 
 			// If it's a broadcast:
-			if (inputArray[0].equals("broadcast")) {
+			if (parser.commandIs("broadcast")) {
 				if (verbose)
-					System.out.println("ServerThread: Running broadcast " + inputArray[1]);
+					System.out.println("ServerThread: Running broadcast " + 
+							parser.getArgument());
 				this.rootServer.addStatistic("broadcast");
-				runBroadcast(inputArray[1]);
+				runBroadcast(parser.getArgument());
 
 				// If a user is being blocked: 
-			} else if (inputArray[0].equals("block")) {
+			} else if (parser.commandIs("block")) {
 				if (verbose)
-					System.out.println("ServerThread: Running unblock " + inputArray[1]);
+					System.out.println("ServerThread: Running block " + 
+							parser.getArgument());
 				this.rootServer.addStatistic("block");
-				blockClient(inputArray[1]);
+				blockClient(parser.getArgument());
 
 				// If a user is being unblocked:
-			} else if (inputArray[0].equals("unblock")) {
+			} else if (parser.commandIs("unblock")) {
 				this.rootServer.addStatistic("unblock");
-				unblockClient(inputArray[1]);
+				unblockClient(parser.getArgument());
+
+			} else if (parser.commandIs("join")) {
+				if (verbose)
+					System.out.println("ServerThread: Running join " + 
+							parser.getArgument());
+				this.rootServer.addStatistic("join");
+				joinChannel(parser.getArgument());
+
+			} else if (parser.commandIs("leave")) {
+				if (verbose)
+					System.out.println("ServerThread: Running leave " + 
+							parser.getArgument());
+				this.rootServer.addStatistic("leave");
+				leaveChannel(parser.getArgument());
 
 				// Otherwise, incorrect command
 			} else {
 				this.rootServer.addStatistic("Unknown command");
-				out.println("You have given me a command I don't understand. "
+				responses.notice("You have given me a command I don't understand. "
 						+ "Please try again.");
 			}
 
 			// For commands of length three or more:
 		} else {
 			// If it's a single message being sent:
-			if (!inputArray[0].equals("message") 
-					&& !inputArray[0].equals("broadcast")) {
+			if (!parser.commandIs("message") 
+					&& !parser.commandIs("broadcast")
+					&& !parser.commandIs("post")) {
 				this.rootServer.addStatistic("Unknown command");
-				out.println("You have given me a command I don't understand. "
+				responses.notice("You have given me a command I don't understand. "
 						+ "Please try again.");
-			} else if (inputArray[0].equals("message")) {
-				// If it's a message, build message
-				String message = "";
-				for (int i = 2; i < inputArray.length; i++) {
-					message += inputArray[i] + " ";
-				}
-				message = message.substring(0, message.length() - 1);
+			} else if (parser.commandIs("post")) {
+				// If it's a post, the message is everything after the 
+				// channel
+				String channel = parser.getArgument();
+				String message = parser.getTextAfterArgument();
+				if (verbose)
+					System.out.println("ServerThread: Running post " +
+							channel + " " + message + ".");
+				this.rootServer.addStatistic("post");
+				postToChannel(channel, message);
+			} else if (parser.commandIs("message")) {
+				// If it's a message, the message is everything after the 
+				// recipient
+				String recipient = parser.getArgument();
+				String message = parser.getTextAfterArgument();
 				if (verbose)
 					System.out.println("ServerThread: Running message " +
-							inputArray[1] + " " + message + ".");
+							recipient + " " + message + ".");
 
 				// Send message
 				this.rootServer.addStatistic("message");
 				messageOtherUser(
-						inputArray[1],
+						recipient,
 						message,
 						this.clientUsername);
 
 				// Otherwise, is multi-word broadcast command.
 			} else {
-				// If it's a broadcast, build message
-				String message = "";
-				for (int i = 1; i < inputArray.length; i++) {
-					message += inputArray[i] + " ";
-				}
-				message = message.substring(0, message.length() - 1);
+				// If it's a broadcast, the message is everything after the 
+				// command
+				String message = parser.getTextAfterCommand();
 				if (verbose)
 					System.out.println("ServerThread: Running broadcast " +
 							message + ".");
@@ -303,6 +670,40 @@ public class ServerThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Takes a token for the command just parsed, and a broadcast token as 
+	 * well if it is a broadcast or post, since those are sent on to many 
+	 * users. If a bucket is empty, tells the client how long to wait, and 
+	 * counts the command as throttled in the statistics.
+	 * 
+	 * @return True if the command should not be run.
+	 */
+	private boolean throttled() {
+		TokenBucket empty = null;
+		if (commandBucket != null && !commandBucket.tryTake()) {
+			empty = commandBucket;
+		} else if (broadcastBucket != null 
+				&& (parser.commandIs("broadcast") || parser.commandIs("post"))
+				&& !broadcastBucket.tryTake()) {
+			empty = broadcastBucket;
+		}
+		if (empty == null) {
+			throttledInARow = 0;
+			return false;
+		}
+		throttledInARow++;
+		this.rootServer.addStatistic("throttled");
+		if (verbose)
+			System.out.println("ServerThread: Throttled " + 
+					this.clientUsername + ".");
+		responses.notice((empty == broadcastBucket 
+				? "You are broadcasting too quickly" 
+				: "You are sending commands too quickly") + 
+				", so your command was not run. Please wait " + 
+				empty.millisUntilToken() + " milliseconds.");
+		return true;
+	}
+
 	/**
 	 * If username is a user in the chat program, and username is not equal 
 	 * to current ServerThread's client, then send message to user.
@@ -318,21 +719,35 @@ public class ServerThread implements Runnable {
 			String message,
 			String sendingClient) {
 		if (username.equals(this.clientUsername)) {
-			out.println("You cannot send a message to yourself.\n "
+			responses.notice("You cannot send a message to yourself.\n "
 					+ "Please provide another command.");
-		} else if (!rootServer.getAuthList().containsKey(username)) {
-			out.println(username + " is not a user of this chat client"
+			return;
+		} else if (!rootServer.isUser(username)) {
+			responses.notice(username + " is not a user of this chat client"
 					+ " so they can't be messaged.");
-		} else if (rootServer.getConnected().containsKey(username)) {
-			rootServer
-			.getConnected()
-			.get(username)
-			.sendMessageToClient(message, sendingClient);
+			return;
+		}
+
+		ServerThread recipient = rootServer.getConnected().get(username);
+		if (recipient != null) {
+			boolean delivered = 
+					recipient.sendMessageToClient(message, sendingClient, true);
+			if (!delivered) {
+				responses.notice(username + " is not keeping up with their " +
+						"messages, so your message could not be delivered.");
+			}
+		} else if (rootServer.routeMessage(
+				this.clientUsername, username, message)) {
+			// Passed to the node of the cluster username is logged in to.
 		} else {
-			rootServer.addOfflineMessage(
+			boolean stored = rootServer.addOfflineMessage(
 					username,
 					this.clientUsername + ": " + message
 					);
+			if (!stored) {
+				responses.notice(username + " is offline, and your message " 
+						+ "could not be saved for them.");
+			}
 		}
 	}
 
@@ -342,13 +757,21 @@ public class ServerThread implements Runnable {
 	 * @param message Message to send to client
 	 * 
 	 * @param sendingClient Client who sent message
+	 * 
+	 * @param mayWait True if called by the sending client's own 
+	 * ServerThread, which may be made to wait for room in the queue. 
+	 * 
+	 * @return False if the message could not be queued for the client, 
+	 * true otherwise (including when the client has blocked sendingClient).
 	 */
-	public void sendMessageToClient(String message, String sendingClient) {
+	public boolean sendMessageToClient(
+			String message, 
+			String sendingClient, 
+			boolean mayWait) {
 		if (this.blockList.contains(sendingClient)) {
-			return;
+			return true;
 		} else {
-			out.println(sendingClient + ": " + message);
-			out.println(">Command: ");
+			return deliver(Frame.MESSAGE, sendingClient, message, mayWait);
 		}
 	}
 
@@ -360,48 +783,190 @@ public class ServerThread implements Runnable {
 	 * @return
 	 */
 	public void runBroadcast(String message) {
-		for (String username : rootServer.getConnected().keySet()) {
-			if (!username.equals(this.clientUsername)) {
-				rootServer
-				.getConnected()
-				.get(username)
-				.sendBroadcastToClient(message);
-			} else {
-				// Only print message if sending to self. This prevents 
-				// >Command: from being printed twice
-				out.println(this.clientUsername + ": " + message + "__broadcast");
-			}
+		BroadcastFanout.Result result = 
+				rootServer.getFanout().broadcast(this.clientUsername, message);
+		rootServer.forwardBroadcast(this.clientUsername, message);
+		if (verbose)
+			System.out.println("ServerThread: Broadcast to " + 
+					result.getDelivered() + " user(s) in " + 
+					result.getNanos() / 1000L + " microseconds.");
+
+		// Only print message if sending to self. This prevents 
+		// >Command: from being printed twice
+		responses.broadcast(this.clientUsername, message);
+		if (result.getUndelivered() > 0) {
+			responses.notice("Your broadcast could not be delivered to " + 
+					result.getUndelivered() + " user(s) who are not " +
+					"keeping up with their messages.");
 		}
 	}
 
 	/**
-	 * Receives and displays broadcasted message.
+	 * Subscribes the client to channel. The subscription is kept when the 
+	 * client logs out.
 	 * 
-	 * @param message
+	 * @param channel Name of the channel, with or without a leading '#'.
 	 */
-	public void sendBroadcastToClient(String message) {
-		if (message == null) {
-			return;
+	public void joinChannel(String channel) {
+		channel = channelName(channel);
+		if (channel.isEmpty()) {
+			responses.notice("Please give the name of a channel to join.");
+		} else if (rootServer.getChannels().join(channel, this.clientUsername)) {
+			responses.notice("You have joined #" + channel + ".");
+		} else {
+			responses.notice("You are already a member of #" + channel + ".");
+		}
+	}
+
+	/**
+	 * Unsubscribes the client from channel.
+	 * 
+	 * @param channel Name of the channel, with or without a leading '#'.
+	 */
+	public void leaveChannel(String channel) {
+		channel = channelName(channel);
+		if (rootServer.getChannels().leave(channel, this.clientUsername)) {
+			responses.notice("You have left #" + channel + ".");
 		} else {
-			out.println(this.clientUsername + ": " + message);
+			responses.notice("You are not a member of #" + channel + ".");
+		}
+	}
+
+	/**
+	 * Sends message to every other member of channel who is connected. 
+	 * Only members may post to a channel.
+	 * 
+	 * @param channel Name of the channel, with or without a leading '#'.
+	 * 
+	 * @param message Message to post.
+	 */
+	public void postToChannel(String channel, String message) {
+		channel = channelName(channel);
+		ChannelRegistry channels = rootServer.getChannels();
+		if (!channels.isMember(channel, this.clientUsername)) {
+			responses.notice("You must join #" + channel + 
+					" before posting to it.");
+			return;
+		}
+		BroadcastFanout.Result result = rootServer.getFanout().post(
+				this.clientUsername, channel, 
+				channels.getMembers(channel), message);
+		if (verbose)
+			System.out.println("ServerThread: Posted to " + 
+					result.getDelivered() + " member(s) of #" + channel + 
+					" in " + result.getNanos() / 1000L + " microseconds.");
+		if (result.getUndelivered() > 0) {
+			responses.notice("Your post could not be delivered to " + 
+					result.getUndelivered() + " member(s) who are not " +
+					"keeping up with their messages.");
+		}
+	}
+
+	/**
+	 * Sends the client the channels they are subscribed to, one per line.
+	 */
+	public void runChannels() {
+		TreeSet<String> joined = 
+				rootServer.getChannels().getChannels(this.clientUsername);
+		if (joined.isEmpty()) {
+			responses.notice("You have not joined any channels.");
+		}
+		for (String channel : joined) {
+			responses.notice("#" + channel);
+		}
+	}
+
+	private static String channelName(String channel) {
+		return channel.startsWith("#") ? channel.substring(1) : channel;
+	}
+
+	/**
+	 * Queues an already encoded message, such as a broadcast shared by 
+	 * every recipient, for the client.
+	 * 
+	 * @param frame Encoded message. It is not modified other than its 
+	 * position.
+	 * 
+	 * @return False if the client's outbound queue refused the message.
+	 */
+	public boolean sendFrameToClient(ByteBuffer frame) {
+		if (this.connection == null) {
+			out.print(Charset.defaultCharset().decode(frame));
+			out.flush();
+			return true;
+		}
+		// Shared by every recipient, so never waits for any one of them.
+		return this.connection.send(frame, false);
+	}
+
+	/**
+	 * @return True if the client asked for binary framing, and so must be 
+	 * sent frames rather than lines of text.
+	 */
+	public boolean isFramed() {
+		return this.framed;
+	}
+
+	/**
+	 * Sends a notice, followed by a prompt if the client speaks text, to the 
+	 * client from outside the client's own ServerThread, such as when 
+	 * another node of the cluster hands over offline messages for them.
+	 * 
+	 * @param text Notice to send.
+	 * 
+	 * @return False if the client's outbound queue refused the notice.
+	 */
+	public boolean sendNoticeToClient(String text) {
+		if (this.connection == null) {
+			out.println(text);
 			out.println(">Command: ");
+			out.flush();
+			return true;
 		}
+		return this.connection.send(
+				this.responses.encodeNotice(text), false);
 	}
 
 	/**
-	 * Refreshes connectedLastHr map in rootServer, then adds each user on the 
-	 * list to a String (with newline between each user) and sends each user 
-	 * to the client.
+	 * Sends a message, followed by a prompt if the client speaks text, to 
+	 * the client on behalf of another client's ServerThread. Unlike writing 
+	 * a response, this reports whether the message could be queued, so the 
+	 * sender can be told if it was not.
+	 * 
+	 * @param type Frame.MESSAGE or Frame.BROADCAST.
+	 * 
+	 * @param sender Username of the sending client.
+	 * 
+	 * @param message Message to send.
+	 * 
+	 * @param mayWait Whether the calling thread may be made to wait for 
+	 * room in the client's queue.
+	 * 
+	 * @return False if the client's outbound queue refused the message.
 	 */
-	public void runWhoLastHr() {
-		this.rootServer.refreshConnectedLastHr();
-		TreeMap<String, Date> connectedLastHr = 
-				this.rootServer.getConnectedLastHr();
-		HashSet<String> retList = new HashSet<String>();
+	private boolean deliver(
+			byte type, 
+			String sender, 
+			String message, 
+			boolean mayWait) {
+		if (this.connection == null) {
+			out.println(sender + ": " + message);
+			out.println(">Command: ");
+			return true;
+		}
+		return this.connection.send(
+				this.responses.encodeDelivery(type, sender, message), 
+				mayWait);
+	}
 
-		for (String user : connectedLastHr.keySet()) {
+	/**
+	 * Sends the client every other user who is connected, or was within 
+	 * the last LAST_HOUR, one per line.
+	 */
+	public void runWhoLastHr() {
+		for (String user : this.rootServer.getConnectedLastHr()) {
 			if(!user.equals(this.clientUsername)) {
-				out.println(user);
+				responses.notice(user);
 			}
 		}
 	}
@@ -410,100 +975,215 @@ public class ServerThread implements Runnable {
 	 * Prints list of other clients currently connected in the application. 
 	 */
 	public void runWhoElse() {
-		for (String curr: rootServer.getConnected().keySet()) {
-			if (!curr.equals(this.clientUsername)) {
-				out.println(curr);
+		SessionRegistry.Snapshot connected = 
+				rootServer.getConnected().snapshot();
+		Collection<String> remote = rootServer.getRemoteUsers();
+		// Snapshots are unordered, so the users are sorted here, along 
+		// with those of other nodes of the cluster. 
+		String[] users = new String[connected.size() + remote.size()];
+		for (int i = 0; i < connected.size(); i++) {
+			users[i] = connected.username(i);
+		}
+		int count = connected.size();
+		for (String user : remote) {
+			if (count == users.length) {
+				// Users connected to another node during the copy.
+				break;
+			}
+			users[count++] = user;
+		}
+		Arrays.sort(users, 0, count);
+		for (int i = 0; i < count; i++) {
+			String curr = users[i];
+			if (!curr.equals(this.clientUsername) 
+					&& (i == 0 || !curr.equals(users[i - 1]))) {
+				responses.notice(curr);
 			}
 		}
 	}
 
 	/**
 	 * Authenticates user by getting username and password from user and 
-	 * querying authList in rootServer.
+	 * checking them with rootServer.
 	 * 
-	 * @return
+	 * @return True if the client was authenticated and is now connected, 
+	 * false otherwise.
 	 * @throws IOException
 	 */
 	public boolean authenticate() throws IOException {
-		out.println(">Username: ");
-		String username = in.readLine();
-		// After reading in username for the first time, check if client 
-		// is blocked from this IP address
-		if (verbose)
-			System.out.println("ServerThread: Checking if client is blocked");
-		this.clientAddress = clientSocket
-				.getInetAddress()
-				.getCanonicalHostName();
+		requestUsername();
+		while (stage == Stage.USERNAME || stage == Stage.PASSWORD) {
+			responses.flush();
+			authenticationInput(in.readLine());
+		}
+		responses.flush();
+		return stage == Stage.COMMAND;
+	}
 
-		if (clientIsBlocked(username)) {
-			return false;
+	/**
+	 * Prompts the client for a username.
+	 */
+	private void requestUsername() {
+		stage = Stage.USERNAME;
+		responses.prompt(">Username: ");
+	}
+
+	/**
+	 * Switches the client to binary framing, which it asked for by sending 
+	 * Frame.PREFACE in place of a username, and prompts it for its username 
+	 * again, this time in a frame. Only clients on a ClientConnection can 
+	 * be framed; any other client is told so and asked for a username.
+	 * 
+	 * @param deflate True if the client sent Frame.PREFACE_DEFLATE, and 
+	 * everything from the username prompt on is to be compressed.
+	 */
+	private void startFraming(boolean deflate) {
+		if (this.connection == null || this.framed) {
+			responses.notice("Binary framing is not available on this "
+					+ "connection.");
+			requestUsername();
+			return;
+		}
+		if (verbose)
+			System.out.println("ServerThread: Client asked for binary "
+					+ "framing.");
+		this.responses.flush();
+		if (deflate) {
+			if (verbose)
+				System.out.println("ServerThread: Client asked for deflate.");
+			this.connection.reply(OutboundCompressor.START);
 		}
+		this.responses = new FrameResponseWriter(this.connection);
+		this.framed = true;
+		requestUsername();
+	}
 
-		out.println(">Password: ");
-		String password = in.readLine();
+	/**
+	 * Advances authentication by one response from the client. A username is 
+	 * checked against the blocked list, and a password against the users 
+	 * in user_pass.txt. 
+	 * Once the client has authenticated, the stage becomes COMMAND; if they 
+	 * are blocked, fail three times in a row, or are already connected, it 
+	 * becomes CLOSED.
+	 * 
+	 * @param response Username or password given by the client, or null if 
+	 * the client disconnected.
+	 */
+	private void authenticationInput(String response) {
+		if (response == null) {
+			stage = Stage.CLOSED;
+			return;
+		}
+		this.lastActivity = System.nanoTime();
 
-		int numFailures = 1;
-		String lastUsername = username;
+		if (stage == Stage.USERNAME && response.equals(Frame.PREFACE)) {
+			startFraming(false);
+			return;
+		} else if (stage == Stage.USERNAME 
+				&& response.equals(Frame.PREFACE_DEFLATE)) {
+			startFraming(true);
+			return;
+		}
 
-		while (!rootServer.checkUserPass(username, password)
-				&& numFailures++ < 3) {
-			out.println("Your credentials could not be authenticated, "
-					+ "please try again.");
+		// A login attempt is timed from its username to its password, not 
+		// counting the time the client takes to send them.
+		long start = System.nanoTime();
+		boolean password = stage == Stage.PASSWORD;
+		checkCredentials(response);
+		authenticationNanos += System.nanoTime() - start;
+		if (password || stage == Stage.CLOSED) {
+			rootServer.getMetrics().recordAuthentication(authenticationNanos);
+			authenticationNanos = 0L;
+		}
+	}
 
-			out.println(">Username: ");
-			username = in.readLine();
+	/**
+	 * Checks a username or password given by the client, as described for 
+	 * authenticationInput().
+	 * 
+	 * @param response Username or password given by the client.
+	 */
+	private void checkCredentials(String response) {
+		if (stage == Stage.USERNAME) {
+			String username = response;
 
-			/* If user gives a different username on a different 
-			 * authentication exchange, first check whether client is blocked. 
-			 * If client is blocked, end authentication session. Otherwise, 
-			 * reset numFailures and set lastUsername to username. 
-			 * The reason for this is that a 
+			/* 
+			 * After reading in a username, check if client is blocked from 
+			 * this IP address. If user gives a different username on a 
+			 * different authentication exchange, reset numFailures and set 
+			 * lastUsername to username. The reason for this is that a 
 			 * username should only be blocked if the same one is given 
 			 * three times in a row. Otherwise, the number of failed 
 			 * login attempts should be reset.
 			 */
-			if (!username.equals(lastUsername)) {
+			if (lastUsername == null || !username.equals(lastUsername)) {
+				if (verbose)
+					System.out.println("ServerThread: Checking if client " +
+							"is blocked");
+				if (this.clientAddress == null) {
+					// Blocks are kept by numeric address, so that logging 
+					// in never waits on reverse DNS. The hostname, if it is 
+					// wanted, is resolved in the background for messages.
+					InetAddress address = clientSocket.getInetAddress();
+					this.clientAddress = address.getHostAddress();
+					rootServer.resolveHostname(address);
+				}
 				if (clientIsBlocked(username)) {
-					return false;
-				} else {
-					numFailures = 1;
-					lastUsername = username;
+					stage = Stage.CLOSED;
+					return;
 				}
+				numFailures = 0;
+				lastUsername = username;
 			}
 
-			out.println(">Password: ");
-			password = in.readLine();
+			pendingUsername = username;
+			stage = Stage.PASSWORD;
+			responses.prompt(">Password: ");
+			return;
 		}
 
-		if (numFailures >= 3) {
+		String username = pendingUsername;
+		String password = response;
+
+		if (!rootServer.checkUserPass(username, password)) {
+			if (++numFailures < 3) {
+				responses.notice("Your credentials could not be authenticated, "
+						+ "please try again.");
+				requestUsername();
+				return;
+			}
+
 			if (verbose) 
 				System.out.println("ServerThread: Authentication failed. " +
 						"Blocking " + username);
-			
+
 			this.rootServer.block(this.clientAddress, username);
-			out.println("You have failed to provide a valid username " +
+			responses.notice("You have failed to provide a valid username " +
 					"and password.");
-			out.println("You have been blocked for " + 
+			responses.disconnect("You have been blocked for " + 
 					rootServer.getBlockTime() +
 					" microseconds.");
-			
-			return false;
-		
-		} else if (this.rootServer.isConnected(username)) {
-			out.println("user " + username + " is already connected.");
-			out.println("Please either log off from your other session, or " +
+			stage = Stage.CLOSED;
+			return;
+		}
+
+		// Checking and connecting in one step means that two clients 
+		// logging in as the same user at once cannot both succeed.
+		this.clientUsername = username;
+		if (!this.rootServer.connect(username, this)) {
+			this.clientUsername = null;
+			responses.notice("user " + username + " is already connected.");
+			responses.disconnect("Please either log off from your other session, or " +
 					"log on as a different user.");
-			return false;
-			
+			stage = Stage.CLOSED;
+
 		// Else, client successfully connected.
 		} else {
-			this.clientUsername = username;
-			rootServer.connect(username, this);
 			if (verbose)
 				System.out.println("ServerThread: Connected to user: '" + 
 						username + "'.");
-			
-			return true;
+			stage = Stage.COMMAND;
+			welcome();
 		}
 	}
 
@@ -515,16 +1195,16 @@ public class ServerThread implements Runnable {
 	 * @param username Client to be blocked
 	 */
 	private void blockClient(String username) {
-		if (!rootServer.getAuthList().containsKey(username)) {
-			out.println(username + " is not a user of this chat client"
+		if (!rootServer.isUser(username)) {
+			responses.notice(username + " is not a user of this chat client"
 					+ " so they can't be blocked.\n"
 					+ "Please provide another command.");
 		} else if (!username.equals(this.clientUsername)) {
 			blockList.add(username);
-			out.println("You have successfully blocked "+ username + 
+			responses.notice("You have successfully blocked "+ username + 
 					" from sending you messages.");
 		} else {
-			out.println("You cannot block yourself.\nPlease provide another "
+			responses.notice("You cannot block yourself.\nPlease provide another "
 					+ "command.");
 		}
 	}
@@ -535,15 +1215,15 @@ public class ServerThread implements Runnable {
 	 * @param username Client to be taken off of block list
 	 */
 	private void unblockClient(String username) {
-		if (!rootServer.getAuthList().containsKey(username)) {
-			out.println(username + " is not a user of this chat client so"
+		if (!rootServer.isUser(username)) {
+			responses.notice(username + " is not a user of this chat client so"
 					+ " they cannot be unblocked.\n"
 					+ "Please provide another command.");
 		} else if (blockList.contains(username)) {
 			blockList.remove(username);
-			out.println("You have successfully unblocked " + username + ".");
+			responses.notice("You have successfully unblocked " + username + ".");
 		} else {
-			out.println(username + " cannot be unblocked because they are "
+			responses.notice(username + " cannot be unblocked because they are "
 					+ "not blocked.");
 		}
 	}
@@ -556,17 +1236,11 @@ public class ServerThread implements Runnable {
 	 */
 	private boolean clientIsBlocked(String username) {
 		if (rootServer.isBlocked(this.clientAddress, username)) {
-			out.println("Username " + username + " is still blocked at " +
-					"address " + this.clientAddress + ". " +
+			responses.disconnect("Username " + username + " is still blocked at " +
+					"address " + 
+					rootServer.describeAddress(clientSocket.getInetAddress()) + 
+					". " +
 					"Please try again later.");
-			try {
-				clientSocket.close();
-			} catch (IOException e) {
-				System.err.println("There was an error closing the connection "
-						+ "to the client after verifying that he/she was "
-						+ "blocked.");
-				e.printStackTrace();
-			}
 			return true;
 		} else {
 			return false;
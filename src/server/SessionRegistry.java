@@ -0,0 +1,237 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Registry of the usernames of connected clients and the ServerThreads
+ * serving them. Lookups, connects and disconnects go straight to a
+ * ConcurrentHashMap and never take a lock. Commands that walk every
+ * connected user, such as broadcast and whoelse, iterate a Snapshot: an
+ * immutable copy of the registry that is rebuilt only after the registry
+ * has changed, and is normally consistent with some single moment in time.
+ * A snapshot is in no particular order, so that rebuilding it costs one
+ * pass over the registry; the few callers that show users in order, such
+ * as whoelse, sort them themselves.
+ *
+ */
+public class SessionRegistry {
+	// Number of times snapshot() retries a copy that raced with a connect
+	// or disconnect before settling for a weakly consistent one.
+	private static final int SNAPSHOT_ATTEMPTS = 8;
+
+	private final ConcurrentHashMap<String, ServerThread> sessions =
+			new ConcurrentHashMap<String, ServerThread>();
+
+	// Every change increments started before touching the map and finished
+	// afterwards, so a copy taken while the two are equal, and during which
+	// started did not move, saw no change half-done.
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong finished = new AtomicLong();
+	private volatile Snapshot snapshot = new Snapshot(
+			new String[0], new ServerThread[0], 0L, true);
+
+	/**
+	 * Registers username as connected, unless it already is.
+	 *
+	 * @param username Username of the authenticated client.
+	 *
+	 * @param session ServerThread serving the client.
+	 *
+	 * @return True if username was registered, false if it was already
+	 * connected.
+	 */
+	public boolean register(String username, ServerThread session) {
+		started.incrementAndGet();
+		try {
+			return sessions.putIfAbsent(username, session) == null;
+		} finally {
+			finished.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes username from the registry, but only if it is still served by
+	 * session.
+	 *
+	 * @param username Username of the disconnecting client.
+	 *
+	 * @param session ServerThread that served the client.
+	 *
+	 * @return True if username was removed.
+	 */
+	public boolean unregister(String username, ServerThread session) {
+		started.incrementAndGet();
+		try {
+			return sessions.remove(username, session);
+		} finally {
+			finished.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes username from the registry, whichever ServerThread serves it.
+	 *
+	 * @param username Username of the disconnecting client.
+	 *
+	 * @return ServerThread that served username, or null if it was not
+	 * connected.
+	 */
+	public ServerThread unregister(String username) {
+		started.incrementAndGet();
+		try {
+			return sessions.remove(username);
+		} finally {
+			finished.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param username Username to look up.
+	 *
+	 * @return ServerThread serving username, or null if username is not
+	 * connected.
+	 */
+	public ServerThread get(String username) {
+		return sessions.get(username);
+	}
+
+	/**
+	 * @param username Username to look up.
+	 *
+	 * @return True if username is connected.
+	 */
+	public boolean contains(String username) {
+		return sessions.containsKey(username);
+	}
+
+	/**
+	 * @return Number of connected clients.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns an immutable copy of the registry, in no particular order.
+	 * The copy is cached until the registry next changes, so iterating it
+	 * repeatedly, as a series of broadcasts does, costs nothing beyond the
+	 * iteration, and rebuilding it costs one pass over the registry.
+	 *
+	 * The copy is consistent with a single moment, unless connects and
+	 * disconnects arrive so fast that SNAPSHOT_ATTEMPTS copies in a row
+	 * each raced with one. Then a weakly consistent copy is returned, and
+	 * not cached: it holds every user connected throughout the copy, none
+	 * who were disconnected throughout it, and may or may not hold those
+	 * who connected or disconnected during it. Snapshot.isConsistent()
+	 * tells the two apart.
+	 *
+	 * @return Snapshot of every connected username and its ServerThread.
+	 */
+	public Snapshot snapshot() {
+		Snapshot current = this.snapshot;
+		long version = started.get();
+		if (current.version == version && finished.get() == version) {
+			return current;
+		}
+
+		for (int attempt = 0; attempt < SNAPSHOT_ATTEMPTS; attempt++) {
+			long before = started.get();
+			if (finished.get() != before) {
+				Thread.yield();
+				continue;
+			}
+			Snapshot copy = copy(before, true);
+			if (started.get() == before) {
+				this.snapshot = copy;
+				return copy;
+			}
+		}
+
+		// Connects and disconnects are arriving faster than a copy can be
+		// taken; settle for one that may straddle a few of them.
+		return copy(-1L, false);
+	}
+
+	private Snapshot copy(long version, boolean consistent) {
+		// Sized with room to spare for users who connect during the copy.
+		int capacity = sessions.size() + 16;
+		String[] usernames = new String[capacity];
+		ServerThread[] threads = new ServerThread[capacity];
+		int count = 0;
+		for (Map.Entry<String, ServerThread> entry : sessions.entrySet()) {
+			if (count == usernames.length) {
+				usernames = Arrays.copyOf(usernames, count * 2);
+				threads = Arrays.copyOf(threads, count * 2);
+			}
+			usernames[count] = entry.getKey();
+			threads[count] = entry.getValue();
+			count++;
+		}
+		return new Snapshot(
+				Arrays.copyOf(usernames, count),
+				Arrays.copyOf(threads, count),
+				version,
+				consistent);
+	}
+
+	/**
+	 *
+	 * Immutable copy of the registry, in no particular order.
+	 *
+	 */
+	public static final class Snapshot {
+		private final String[] usernames;
+		private final ServerThread[] sessions;
+		private final long version;
+		private final boolean consistent;
+
+		private Snapshot(
+				String[] usernames,
+				ServerThread[] sessions,
+				long version,
+				boolean consistent) {
+			this.usernames = usernames;
+			this.sessions = sessions;
+			this.version = version;
+			this.consistent = consistent;
+		}
+
+		/**
+		 * @return True if the snapshot is consistent with a single moment,
+		 * false if it may straddle connects and disconnects that raced
+		 * with it.
+		 */
+		public boolean isConsistent() {
+			return consistent;
+		}
+
+		/**
+		 * @return Number of connected clients when the snapshot was taken.
+		 */
+		public int size() {
+			return usernames.length;
+		}
+
+		/**
+		 * @param i Index, from 0 to size() - 1.
+		 *
+		 * @return i'th connected username.
+		 */
+		public String username(int i) {
+			return usernames[i];
+		}
+
+		/**
+		 * @param i Index, from 0 to size() - 1.
+		 *
+		 * @return ServerThread serving the i'th connected username.
+		 */
+		public ServerThread session(int i) {
+			return sessions[i];
+		}
+	}
+}
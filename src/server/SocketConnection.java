@@ -0,0 +1,174 @@
+package server;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ *
+ * ClientConnection for a client served by its own blocking ServerThread.
+ * Output is queued on an OutboundQueue and written to the socket by the
+ * connection's writer, which is run as a separate task. A ServerThread
+ * sending to a client that is not reading therefore waits only as long as
+ * the queue's OverflowPolicy allows, instead of until the client's TCP
+ * window opens.
+ *
+ */
+public class SocketConnection implements ClientConnection, Runnable {
+	private static final int WRITE_BATCH_SIZE = 64;
+
+	private Socket socket;
+	private OutboundQueue outbound;
+	private WritableByteChannel channel;
+	// Null unless the connection is over TLS.
+	private TlsChannel tls;
+	private OutboundCompressor compressor;
+
+	/**
+	 * @param socket Socket connected to the client.
+	 *
+	 * @param outbound Queue of messages waiting to be written.
+	 *
+	 * @param compressor Compressor of the output, once the client asks for
+	 * deflate.
+	 *
+	 * @throws IOException If the socket's output stream could not be opened.
+	 */
+	public SocketConnection(
+			Socket socket,
+			OutboundQueue outbound,
+			OutboundCompressor compressor) throws IOException {
+		this.socket = socket;
+		this.outbound = outbound;
+		this.compressor = compressor;
+		if (socket.getChannel() != null) {
+			this.channel = socket.getChannel();
+		} else {
+			this.channel = Channels.newChannel(socket.getOutputStream());
+		}
+	}
+
+	/**
+	 * @param tls TLS channel over the client's socket, written to in place
+	 * of the socket.
+	 *
+	 * @param outbound Queue of messages waiting to be written.
+	 *
+	 * @param compressor Compressor of the output, once the client asks for
+	 * deflate.
+	 */
+	public SocketConnection(
+			Socket socket,
+			TlsChannel tls,
+			OutboundQueue outbound,
+			OutboundCompressor compressor) {
+		this.socket = socket;
+		this.tls = tls;
+		this.channel = tls;
+		this.outbound = outbound;
+		this.compressor = compressor;
+	}
+
+	public boolean send(ByteBuffer message, boolean mayWait) {
+		boolean queued = outbound.offer(message, mayWait);
+		if (!queued && outbound.isOverflowed()) {
+			closeNow();
+		}
+		return queued;
+	}
+
+	public boolean reply(ByteBuffer message) {
+		return outbound.put(message, true);
+	}
+
+	public void close() {
+		outbound.close();
+	}
+
+	/**
+	 * Closes the socket immediately, discarding any queued output. A
+	 * ServerThread blocked reading from the socket sees its stream end.
+	 */
+	public void closeNow() {
+		outbound.clear();
+		try {
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("There was an error closing the connection "
+					+ "to a client that was not keeping up.");
+			e.printStackTrace();
+		}
+	}
+
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	public int getQueuedMessages() {
+		return outbound.size();
+	}
+
+	/**
+	 * Writes queued messages to the socket until the connection is closed
+	 * and its queue is empty, then closes the socket.
+	 */
+	public void run() {
+		ByteBuffer[] batch = new ByteBuffer[WRITE_BATCH_SIZE];
+		try {
+			while ((batch[0] = outbound.take()) != null) {
+				// Give other clients' messages a moment to arrive, so that
+				// a burst of them costs one write rather than many.
+				outbound.awaitCoalesced(WRITE_BATCH_SIZE - 1);
+				int count = compressor.apply(
+						batch, 0, 1 + outbound.drainTo(batch, 1));
+				write(batch, count);
+				Arrays.fill(batch, 0, count, null);
+			}
+		} catch (IOException e) {
+			// The client has gone away; its ServerThread will see the
+			// socket close and disconnect it.
+			outbound.clear();
+		} catch (InterruptedException e) {
+			outbound.clear();
+		}
+		compressor.end();
+
+		try {
+			if (tls != null) {
+				tls.close();
+			}
+			socket.close();
+		} catch (IOException e) {
+			System.err.println("There was an error closing resources after "
+					+ "the client disconnected.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the first count messages in batch, with a single gathering
+	 * write when the socket has a channel.
+	 */
+	private void write(ByteBuffer[] batch, int count) throws IOException {
+		if (channel instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			int first = 0;
+			while (first < count) {
+				gathering.write(batch, first, count - first);
+				while (first < count && !batch[first].hasRemaining()) {
+					first++;
+				}
+			}
+		} else {
+			for (int i = 0; i < count; i++) {
+				while (batch[i].hasRemaining()) {
+					channel.write(batch[i]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ *
+ * ResponseWriter for clients that speak the original line protocol. Every
+ * kind of message is written as one or more lines of text, exactly as the
+ * server has always written them.
+ *
+ */
+public class TextResponseWriter extends ResponseWriter {
+	private PrintWriter out;
+
+	/**
+	 * @param out Writer to the client. It should not flush automatically.
+	 */
+	public TextResponseWriter(PrintWriter out) {
+		this.out = out;
+	}
+
+	public void prompt(String prompt) {
+		out.println(prompt);
+	}
+
+	public void notice(String text) {
+		out.println(text);
+	}
+
+	public void broadcast(String sender, String message) {
+		out.println(sender + ": " + message + "__broadcast");
+	}
+
+	public void disconnect(String reason) {
+		out.println(reason);
+	}
+
+	public ByteBuffer encodeDelivery(
+			byte type,
+			String sender,
+			String message) {
+		return encode(sender, message);
+	}
+
+	public ByteBuffer encodeDisconnect(String reason) {
+		return ByteBuffer.wrap((reason + System.lineSeparator())
+				.getBytes(Charset.defaultCharset()));
+	}
+
+	public ByteBuffer encodeNotice(String text) {
+		return ByteBuffer.wrap((text + System.lineSeparator() + ">Command: "
+				+ System.lineSeparator()).getBytes(Charset.defaultCharset()));
+	}
+
+	/**
+	 * Encodes a message from another client, and the prompt that follows
+	 * it, as lines of text.
+	 *
+	 * @param sender Username of the sending client.
+	 *
+	 * @param message Message sent.
+	 *
+	 * @return Buffer holding the encoded lines, ready to be read.
+	 */
+	public static ByteBuffer encode(String sender, String message) {
+		String text = sender + ": " + message + System.lineSeparator()
+				+ ">Command: " + System.lineSeparator();
+		return ByteBuffer.wrap(text.getBytes(Charset.defaultCharset()));
+	}
+
+	public void flush() {
+		out.flush();
+	}
+
+	public void close() {
+		out.close();
+	}
+}
@@ -0,0 +1,387 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ *
+ * TLS over a client's blocking socket, built on an SSLEngine. A
+ * SocketConnection writes through it, and a ServerThread reads through it,
+ * exactly as they would through the socket's own streams; records are
+ * wrapped and unwrapped in between. The engine itself knows nothing of the
+ * socket, so the same wrapping and unwrapping could be driven by an event
+ * loop instead.
+ *
+ * The handshake is done by whichever thread uses the channel first, so the
+ * thread accepting connections never waits on a client's handshake. A
+ * client that has not finished it within HANDSHAKE_TIMEOUT_MILLIS, or that
+ * fails it, is disconnected as if it had closed the connection. How long
+ * each handshake takes, and whether it resumed an earlier session, is
+ * recorded in the server's metrics.
+ *
+ * Reads and writes each take their own lock, since an SSLEngine may wrap
+ * and unwrap at the same time, and a reader waiting for the client must
+ * not hold up the writer.
+ *
+ */
+public class TlsChannel implements ByteChannel, GatheringByteChannel {
+	private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+	private static final ByteBuffer[] EMPTY = { ByteBuffer.allocate(0) };
+
+	private final Socket socket;
+	private final SSLEngine engine;
+	private final ServerMetrics metrics;
+	private final InputStream rawIn;
+	private final OutputStream rawOut;
+	// Records read from the socket but not yet unwrapped, and data
+	// unwrapped but not yet read. Both are kept ready to be filled, and
+	// guarded by readLock.
+	private ByteBuffer netIn;
+	private ByteBuffer appIn;
+	private boolean inboundDone = false;
+	// Guarded by writeLock.
+	private ByteBuffer netOut;
+	private final ReentrantLock readLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// Held by the thread doing the handshake. Reads and writes wait on it
+	// before taking their own lock, so none are under way meanwhile.
+	private final ReentrantLock handshakeLock = new ReentrantLock();
+	private volatile boolean handshaken = false;
+	private volatile boolean failed = false;
+	private volatile boolean open = true;
+
+	/**
+	 * @param socket Socket connected to the client.
+	 *
+	 * @param engine Engine in server mode, not yet handshaken.
+	 *
+	 * @param metrics Metrics to record handshakes in, or null.
+	 *
+	 * @throws IOException If the socket's streams could not be opened.
+	 */
+	public TlsChannel(
+			Socket socket,
+			SSLEngine engine,
+			ServerMetrics metrics) throws IOException {
+		this.socket = socket;
+		this.engine = engine;
+		this.metrics = metrics;
+		this.rawIn = socket.getInputStream();
+		this.rawOut = socket.getOutputStream();
+		this.netIn = ByteBuffer.allocate(
+				engine.getSession().getPacketBufferSize());
+		this.appIn = ByteBuffer.allocate(
+				engine.getSession().getApplicationBufferSize());
+		this.netOut = ByteBuffer.allocate(
+				engine.getSession().getPacketBufferSize());
+	}
+
+	/**
+	 * Reads data the client has sent, waiting for some if there is none.
+	 *
+	 * @return Number of bytes read, or -1 once the client has closed the
+	 * connection or failed the handshake.
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if (!ensureHandshake()) {
+			return -1;
+		}
+		readLock.lock();
+		try {
+			while (appIn.position() == 0) {
+				if (inboundDone) {
+					return -1;
+				}
+				SSLEngineResult result = unwrap();
+				if (result == null
+						|| result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					inboundDone = true;
+					return -1;
+				}
+				afterUnwrap(result.getHandshakeStatus());
+			}
+			appIn.flip();
+			int count = Math.min(dst.remaining(), appIn.remaining());
+			int limit = appIn.limit();
+			appIn.limit(appIn.position() + count);
+			dst.put(appIn);
+			appIn.limit(limit);
+			appIn.compact();
+			return count;
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	public int write(ByteBuffer src) throws IOException {
+		return (int) write(new ByteBuffer[] { src }, 0, 1);
+	}
+
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Wraps and writes all of srcs, a record at a time.
+	 *
+	 * @return Number of bytes of srcs written.
+	 *
+	 * @throws ClosedChannelException If the connection is closed, or the
+	 * handshake failed.
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		if (!ensureHandshake()) {
+			throw new ClosedChannelException();
+		}
+		writeLock.lock();
+		try {
+			long written = 0L;
+			while (hasRemaining(srcs, offset, length)) {
+				SSLEngineResult result = wrap(srcs, offset, length);
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					throw new ClosedChannelException();
+				}
+				written += result.bytesConsumed();
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+					runTasks();
+				}
+			}
+			return written;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Tells the client the connection is closing, if the handshake was
+	 * finished, then closes the socket.
+	 */
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		try {
+			if (handshaken && !failed) {
+				writeLock.lock();
+				try {
+					engine.closeOutbound();
+					wrap(EMPTY, 0, 1);
+				} finally {
+					writeLock.unlock();
+				}
+			}
+		} catch (IOException e) {
+			// The client has gone already.
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Performs the handshake if it has not been, on the calling thread.
+	 *
+	 * @return False if the handshake failed.
+	 */
+	private boolean ensureHandshake() throws IOException {
+		if (handshaken) {
+			return true;
+		}
+		handshakeLock.lock();
+		try {
+			if (!handshaken && !failed) {
+				handshake();
+			}
+			return handshaken;
+		} finally {
+			handshakeLock.unlock();
+		}
+	}
+
+	private void handshake() throws IOException {
+		long start = System.nanoTime();
+		long startMillis = System.currentTimeMillis();
+		try {
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+			engine.beginHandshake();
+			HandshakeStatus status = engine.getHandshakeStatus();
+			while (status != HandshakeStatus.FINISHED
+					&& status != HandshakeStatus.NOT_HANDSHAKING) {
+				if (status == HandshakeStatus.NEED_WRAP) {
+					status = wrap(EMPTY, 0, 1).getHandshakeStatus();
+				} else if (status == HandshakeStatus.NEED_TASK) {
+					runTasks();
+					status = engine.getHandshakeStatus();
+				} else {
+					SSLEngineResult result = unwrap();
+					if (result == null) {
+						throw new SSLException("The client closed the " +
+								"connection during the handshake.");
+					}
+					status = result.getHandshakeStatus();
+				}
+			}
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			failed = true;
+			if (metrics != null) {
+				metrics.recordHandshakeFailure();
+			}
+			open = false;
+			try {
+				socket.close();
+			} catch (IOException e1) {
+				// Already closing.
+			}
+			return;
+		}
+		handshaken = true;
+		if (metrics != null) {
+			// A resumed session was created by an earlier handshake.
+			metrics.recordHandshake(System.nanoTime() - start,
+					engine.getSession().getCreationTime() < startMillis);
+		}
+	}
+
+	/**
+	 * Answers whatever the engine needs after unwrapping a record that was
+	 * not application data, such as a TLS 1.3 key update.
+	 */
+	private void afterUnwrap(HandshakeStatus status) throws IOException {
+		while (true) {
+			if (status == HandshakeStatus.NEED_TASK) {
+				runTasks();
+				status = engine.getHandshakeStatus();
+			} else if (status == HandshakeStatus.NEED_WRAP) {
+				writeLock.lock();
+				try {
+					status = wrap(EMPTY, 0, 1).getHandshakeStatus();
+				} finally {
+					writeLock.unlock();
+				}
+			} else {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Unwraps one record from netIn into appIn, reading from the socket
+	 * until netIn holds a whole record. Called with readLock or
+	 * handshakeLock held.
+	 *
+	 * @return Result of the unwrap, or null if the client closed the
+	 * socket first.
+	 */
+	private SSLEngineResult unwrap() throws IOException {
+		while (true) {
+			netIn.flip();
+			SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				appIn = grow(appIn,
+						engine.getSession().getApplicationBufferSize());
+				break;
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					netIn = grow(netIn,
+							engine.getSession().getPacketBufferSize());
+				}
+				int read = rawIn.read(netIn.array(),
+						netIn.arrayOffset() + netIn.position(),
+						netIn.remaining());
+				if (read < 0) {
+					try {
+						engine.closeInbound();
+					} catch (SSLException e) {
+						// Closed without close_notify; treated the same.
+					}
+					return null;
+				}
+				netIn.position(netIn.position() + read);
+				break;
+			default:
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Wraps as much of srcs as fits in one record, and writes it. Called
+	 * with writeLock or handshakeLock held.
+	 */
+	private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length)
+			throws IOException {
+		while (true) {
+			netOut.clear();
+			SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+			if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+				netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2,
+						engine.getSession().getPacketBufferSize()));
+				continue;
+			}
+			if (netOut.position() > 0) {
+				rawOut.write(netOut.array(), netOut.arrayOffset(),
+						netOut.position());
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Runs the engine's delegated tasks, such as checking certificates, on
+	 * the calling thread.
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * @return A buffer holding buffer's contents, with room for at least
+	 * size more bytes.
+	 */
+	private static ByteBuffer grow(ByteBuffer buffer, int size) {
+		ByteBuffer larger = ByteBuffer.allocate(
+				buffer.position() + Math.max(size, buffer.capacity()));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	private static boolean hasRemaining(
+			ByteBuffer[] buffers,
+			int offset,
+			int length) {
+		for (int i = offset; i < offset + length; i++) {
+			if (buffers[i].hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
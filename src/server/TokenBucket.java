@@ -0,0 +1,68 @@
+package server;
+
+/**
+ *
+ * Token bucket limiting how often one client may do something. The bucket
+ * holds up to burst tokens, refilled at rate tokens a second, and each
+ * action takes one. A client may therefore act burst times at once, and
+ * after that only as fast as the bucket refills.
+ *
+ * The tokens are kept as nanoseconds of credit, refilled from the clock
+ * whenever the bucket is used, so a bucket costs two longs and no timer.
+ * A bucket belongs to one session, and is only used by the thread
+ * handling that session's input, so it takes no lock.
+ *
+ */
+public class TokenBucket {
+	private final long nanosPerToken;
+	private final long capacityNanos;
+	private long creditNanos;
+	private long lastNanos;
+
+	/**
+	 * Constructs a full bucket.
+	 *
+	 * @param rate Tokens added a second. Must be above 0.
+	 *
+	 * @param burst Most tokens held at once. Values below 1 are treated as
+	 * 1.
+	 */
+	public TokenBucket(double rate, int burst) {
+		this.nanosPerToken = Math.max(1L, (long) (1000000000.0 / rate));
+		this.capacityNanos = nanosPerToken * Math.max(1, burst);
+		this.creditNanos = capacityNanos;
+		this.lastNanos = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 *
+	 * @return True if a token was taken, and the action may go ahead.
+	 */
+	public boolean tryTake() {
+		refill(System.nanoTime());
+		if (creditNanos < nanosPerToken) {
+			return false;
+		}
+		creditNanos -= nanosPerToken;
+		return true;
+	}
+
+	/**
+	 * @return Milliseconds until a token will be available, or 0 if one is
+	 * now.
+	 */
+	public long millisUntilToken() {
+		refill(System.nanoTime());
+		long missing = nanosPerToken - creditNanos;
+		return missing <= 0L ? 0L : (missing + 999999L) / 1000000L;
+	}
+
+	private void refill(long now) {
+		long elapsed = now - lastNanos;
+		lastNanos = now;
+		if (elapsed > 0L) {
+			creditNanos = Math.min(capacityNanos, creditNanos + elapsed);
+		}
+	}
+}